@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+/**
+ * Binary morphology with a disk structuring element of any radius: the pixels
+ * within the radius are the ones with dx * dx + dy * dy <= radius * radius,
+ * the same disk that the CIRCLE element of mmorpho builds.
+ * 
+ * The operators do not slide the element over the image. A dilation selects
+ * the pixels whose squared Euclidean distance to the nearest selected pixel is
+ * at most the squared radius, and an erosion the pixels whose distance to the
+ * nearest pixel that is not selected is larger than it. The distances are
+ * computed with the separable transform of Meijster, Roerdink and Hesselink:
+ * a scan per column and a lower envelope of parabolas per row. Thus the cost
+ * per pixel does not depend on the radius, and the exact disk is used, not
+ * an approximation by lines or octagons.
+ * 
+ * The packed {@link BitMask} masks are dilated a row of the disk at a time
+ * instead: each row of the mask is dilated by the half widths of the disk,
+ * from the narrowest to the widest, with word shifts, and OR'ed into the rows
+ * that the disk covers. The half widths are computed once, when the object is
+ * built. The cost grows with the radius, but 64 pixels are handled by each
+ * word operation. On 512 and 2048 pixels slices it stays below the distance
+ * transforms up to a radius of about 128 to 160 pixels, so the packed masks
+ * are unpacked and go through the distance transforms above a radius of
+ * 128. The cost per pixel thus stays bounded for any radius.
+ * 
+ * As in mmorpho, the pixels outside the image are not selected for the
+ * dilation and are selected for the erosion.
+ * 
+ * The disk is fixed when the object is built and the buffers are kept
+ * between calls, thus it is meant to be kept in the state of a stage. It is
+ * not thread-safe.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class BinaryMorphology {
+
+	private static final byte selected = (byte) 255;
+
+	/* Above this radius the row decomposition costs more than the transforms */
+	private static final int maximumPackedRadius = 128;
+
+	private final int radius;
+	private final int squaredRadius;
+
+	/* Half width of the row dy of the disk, for dy from 0 to the radius */
+	private final int[] halfWidths;
+
+	/*
+	 * Distances along the columns, clamped to radius + 1: a farther pixel
+	 * can not be inside the disk, so the clamp keeps the result exact.
+	 */
+	private int[] columnDistance = new int[0];
+
+	/* Lower envelope of a row: centres and starts of the parabolas */
+	private int[] centres = new int[0];
+	private int[] starts = new int[0];
+
+	/* The rows of a packed mask dilated so far, and the dilation result */
+	private BitMask dilatedRows;
+	private BitMask dilation;
+
+	/* A packed mask unpacked for the distance transforms */
+	private byte[] unpacked = new byte[0];
+
+	/***
+	 * @param radius
+	 *            of the disk, in pixels
+	 */
+	public BinaryMorphology(int radius) {
+		if (radius < 0) {
+			throw new IllegalArgumentException("Negative radius: " + radius);
+		}
+		this.radius = radius;
+		this.squaredRadius = radius * radius;
+
+		halfWidths = new int[radius + 1];
+		for (int dy = 0; dy <= radius; dy++) {
+			int halfWidth = 0;
+			while ((halfWidth + 1) * (halfWidth + 1) + dy * dy <= squaredRadius) {
+				halfWidth++;
+			}
+			halfWidths[dy] = halfWidth;
+		}
+	}
+
+	public int getRadius() {
+		return radius;
+	}
+
+	/***
+	 * Closes the mask in place: a dilation followed by an erosion.
+	 * 
+	 * @param mask
+	 *            binary mask, 255 for the selected pixels and 0 otherwise
+	 * @param width
+	 * @param height
+	 */
+	public void close(byte[] mask, int width, int height) {
+		dilate(mask, width, height);
+		erode(mask, width, height);
+	}
+
+	/***
+	 * Dilates the mask in place.
+	 * 
+	 * @param mask
+	 *            binary mask, 255 for the selected pixels and 0 otherwise
+	 * @param width
+	 * @param height
+	 */
+	public void dilate(byte[] mask, int width, int height) {
+		threshold(mask, width, height, selected, false);
+	}
+
+	/***
+	 * Erodes the mask in place.
+	 * 
+	 * @param mask
+	 *            binary mask, 255 for the selected pixels and 0 otherwise
+	 * @param width
+	 * @param height
+	 */
+	public void erode(byte[] mask, int width, int height) {
+		threshold(mask, width, height, (byte) 0, true);
+	}
+
+	/***
+	 * Closes a packed mask in place: a dilation followed by an erosion.
+	 * 
+	 * @param mask
+	 */
+	public void close(BitMask mask) {
+		dilate(mask);
+		erode(mask);
+	}
+
+	/***
+	 * Dilates a packed mask in place.
+	 * 
+	 * @param mask
+	 */
+	public void dilate(BitMask mask) {
+		if (radius > maximumPackedRadius) {
+			unpack(mask);
+			dilate(unpacked, mask.getWidth(), mask.getHeight());
+			mask.fromBytes(unpacked);
+			return;
+		}
+
+		dilatedRows = BitMask.reuse(dilatedRows, mask.getWidth(),
+				mask.getHeight());
+		dilation = BitMask.reuse(dilation, mask.getWidth(), mask.getHeight());
+
+		dilatedRows.copyFrom(mask);
+		dilation.clear();
+
+		/* The rows of the disk widen towards its centre */
+		int reach = 0;
+		for (int dy = radius; dy >= 0; dy--) {
+			if (halfWidths[dy] > reach) {
+				dilatedRows.dilateRows(dilatedRows, halfWidths[dy] - reach);
+				reach = halfWidths[dy];
+			}
+
+			dilation.orShiftedRows(dilatedRows, dy);
+			if (dy != 0) {
+				dilation.orShiftedRows(dilatedRows, -dy);
+			}
+		}
+
+		mask.copyFrom(dilation);
+	}
+
+	/***
+	 * Erodes a packed mask in place. Up to the packed radius limit it is the
+	 * dilation of the pixels that are not selected, which are never outside
+	 * the image.
+	 * 
+	 * @param mask
+	 */
+	public void erode(BitMask mask) {
+		if (radius > maximumPackedRadius) {
+			unpack(mask);
+			erode(unpacked, mask.getWidth(), mask.getHeight());
+			mask.fromBytes(unpacked);
+			return;
+		}
+
+		mask.not();
+		dilate(mask);
+		mask.not();
+	}
+
+	private void unpack(BitMask mask) {
+		int size = mask.getWidth() * mask.getHeight();
+		if (unpacked.length != size) {
+			unpacked = new byte[size];
+		}
+		mask.toBytes(unpacked);
+	}
+
+	/***
+	 * Selects the pixels within the radius of a pixel with the feature value,
+	 * or the ones farther than it if inverted.
+	 */
+	private void threshold(byte[] mask, int width, int height, byte feature,
+			boolean inverted) {
+		allocate(width, height);
+
+		int far = radius + 1;
+		int[] distance = columnDistance;
+
+		/*
+		 * First phase: distance to the feature in the same column. The columns
+		 * are scanned a whole row at a time, down and then up, so the arrays
+		 * are read in order.
+		 */
+		for (int x = 0; x < width; x++) {
+			distance[x] = mask[x] == feature ? 0 : far;
+		}
+		for (int index = width; index < width * height; index++) {
+			int above = distance[index - width] + 1;
+			distance[index] = mask[index] == feature ? 0 : Math.min(above,
+					far);
+		}
+		for (int index = (height - 1) * width - 1; index >= 0; index--) {
+			int below = distance[index + width] + 1;
+			if (below < distance[index]) {
+				distance[index] = below;
+			}
+		}
+
+		/* Second phase: the lower envelope of the column distances of a row */
+		int[] centres = this.centres;
+		int[] starts = this.starts;
+
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			int last = 0;
+			centres[0] = 0;
+			starts[0] = 0;
+
+			for (int u = 1; u < width; u++) {
+				int gu = distance[row + u];
+
+				while (last >= 0
+						&& parabola(starts[last], centres[last],
+								distance[row + centres[last]]) > parabola(
+								starts[last], u, gu)) {
+					last--;
+				}
+
+				if (last < 0) {
+					last = 0;
+					centres[0] = u;
+				} else {
+					int i = centres[last];
+					int gi = distance[row + i];
+					int start = 1 + (u * u - i * i + gu * gu - gi * gi)
+							/ (2 * (u - i));
+					if (start < width) {
+						last++;
+						centres[last] = u;
+						starts[last] = start;
+					}
+				}
+			}
+
+			for (int u = width - 1; u >= 0; u--) {
+				int i = centres[last];
+				boolean near = parabola(u, i, distance[row + i]) <= squaredRadius;
+				mask[row + u] = near != inverted ? selected : 0;
+				if (u == starts[last]) {
+					last--;
+				}
+			}
+		}
+	}
+
+	private static int parabola(int x, int centre, int height) {
+		return (x - centre) * (x - centre) + height * height;
+	}
+
+	private void allocate(int width, int height) {
+		if (columnDistance.length < width * height) {
+			columnDistance = new int[width * height];
+		}
+		if (centres.length < width) {
+			centres = new int[width];
+			starts = new int[width];
+		}
+	}
+}
@@ -0,0 +1,439 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.Arrays;
+
+/**
+ * A binary mask packed 64 pixels per long. Pixel (x, y) is the bit x % 64 of
+ * the word x / 64 of row y, and every row starts on a new word, so the rows
+ * can be shifted and combined a word at a time. The bits after the last
+ * pixel of a row are always clear.
+ * 
+ * The mask takes an eighth of the memory of a byte per pixel mask, and the
+ * logical operations, the shifts of the morphology and the pixel count work
+ * on 64 pixels at once. The runs of set pixels of a row are found with
+ * {@link #nextSetBit(int, int)} and {@link #nextClearBit(int, int)}, which
+ * skip whole words.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class BitMask {
+
+	private final int width;
+	private final int height;
+	private final int wordsPerRow;
+
+	private final long[] words;
+
+	/* Valid bits of the last word of each row */
+	private final long lastWordMask;
+
+	/***
+	 * Creates an empty mask.
+	 * 
+	 * @param width
+	 * @param height
+	 */
+	public BitMask(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = (width + 63) >>> 6;
+		this.words = new long[wordsPerRow * height];
+		this.lastWordMask = -1L >>> (-width & 63);
+	}
+
+	/***
+	 * Returns a mask of the given size, reusing the previous one if it
+	 * already has that size. The content of a reused mask is kept.
+	 * 
+	 * @param previous
+	 *            may be null
+	 * @param width
+	 * @param height
+	 * @return a mask of width x height pixels
+	 */
+	public static BitMask reuse(BitMask previous, int width, int height) {
+		if (previous != null && previous.width == width
+				&& previous.height == height) {
+			return previous;
+		}
+		return new BitMask(width, height);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/***
+	 * @return the number of words of a row
+	 */
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/***
+	 * @return the backing array, row after row. The bits after the last pixel
+	 *         of a row must be left clear.
+	 */
+	public long[] getWords() {
+		return words;
+	}
+
+	public boolean get(int x, int y) {
+		return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	public void set(int x, int y) {
+		words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+	}
+
+	public void clear(int x, int y) {
+		words[y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+	}
+
+	/***
+	 * Clears every pixel.
+	 */
+	public void clear() {
+		Arrays.fill(words, 0);
+	}
+
+	/***
+	 * Copies the pixels of a mask of the same size.
+	 * 
+	 * @param source
+	 */
+	public void copyFrom(BitMask source) {
+		checkSize(source);
+		System.arraycopy(source.words, 0, words, 0, words.length);
+	}
+
+	/***
+	 * Copies rows of a mask of the same width.
+	 * 
+	 * @param source
+	 * @param sourceRow
+	 *            first row copied from the source
+	 * @param targetRow
+	 *            row of this mask where the first row is copied
+	 * @param rows
+	 *            number of rows copied
+	 */
+	public void copyRows(BitMask source, int sourceRow, int targetRow,
+			int rows) {
+		if (source.width != width) {
+			throw new IllegalArgumentException("Masks of different widths: "
+					+ width + " and " + source.width);
+		}
+		System.arraycopy(source.words, sourceRow * wordsPerRow, words,
+				targetRow * wordsPerRow, rows * wordsPerRow);
+	}
+
+	/***
+	 * Keeps only the pixels that are also set in the other mask.
+	 * 
+	 * @param other
+	 *            mask of the same size
+	 */
+	public void and(BitMask other) {
+		checkSize(other);
+		for (int i = 0; i < words.length; i++) {
+			words[i] &= other.words[i];
+		}
+	}
+
+	/***
+	 * Sets the pixels that are set in the other mask.
+	 * 
+	 * @param other
+	 *            mask of the same size
+	 */
+	public void or(BitMask other) {
+		checkSize(other);
+		for (int i = 0; i < words.length; i++) {
+			words[i] |= other.words[i];
+		}
+	}
+
+	/***
+	 * Clears the pixels that are set in the other mask.
+	 * 
+	 * @param other
+	 *            mask of the same size
+	 */
+	public void andNot(BitMask other) {
+		checkSize(other);
+		for (int i = 0; i < words.length; i++) {
+			words[i] &= ~other.words[i];
+		}
+	}
+
+	/***
+	 * Inverts every pixel.
+	 */
+	public void not() {
+		for (int i = 0; i < words.length; i++) {
+			words[i] = ~words[i];
+		}
+		clearPadding();
+	}
+
+	/***
+	 * @return the number of set pixels
+	 */
+	public int count() {
+		int count = 0;
+		for (int i = 0; i < words.length; i++) {
+			count += Long.bitCount(words[i]);
+		}
+		return count;
+	}
+
+	/***
+	 * @param y
+	 *            row
+	 * @param x
+	 *            first column looked up
+	 * @return the first set pixel of the row from x on, or the width if there
+	 *         is none.
+	 */
+	public int nextSetBit(int y, int x) {
+		if (x >= width) {
+			return width;
+		}
+
+		int rowStart = y * wordsPerRow;
+		int index = x >>> 6;
+		long word = words[rowStart + index] & (-1L << x);
+
+		while (word == 0) {
+			if (++index == wordsPerRow) {
+				return width;
+			}
+			word = words[rowStart + index];
+		}
+		return (index << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/***
+	 * @param y
+	 *            row
+	 * @param x
+	 *            first column looked up
+	 * @return the first clear pixel of the row from x on, or the width if
+	 *         there is none.
+	 */
+	public int nextClearBit(int y, int x) {
+		if (x >= width) {
+			return width;
+		}
+
+		int rowStart = y * wordsPerRow;
+		int index = x >>> 6;
+		long word = ~words[rowStart + index] & (-1L << x);
+
+		while (word == 0) {
+			if (++index == wordsPerRow) {
+				return width;
+			}
+			word = ~words[rowStart + index];
+		}
+		return Math.min((index << 6) + Long.numberOfTrailingZeros(word), width);
+	}
+
+	/***
+	 * Sets the pixels of a row from the column from (inclusive) to the column
+	 * to (exclusive).
+	 * 
+	 * @param y
+	 * @param from
+	 * @param to
+	 */
+	public void setRun(int y, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+
+		int rowStart = y * wordsPerRow;
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+
+		if (first == last) {
+			words[rowStart + first] |= firstMask & lastMask;
+			return;
+		}
+
+		words[rowStart + first] |= firstMask;
+		for (int i = first + 1; i < last; i++) {
+			words[rowStart + i] = -1L;
+		}
+		words[rowStart + last] |= lastMask;
+	}
+
+	/***
+	 * Dilates every row by the given distance: a pixel is set if a pixel of
+	 * the same row of the source, at most distance columns away, is set. The
+	 * reach is doubled on every step, so the cost is logarithmic in the
+	 * distance.
+	 * 
+	 * @param source
+	 *            mask of the same size, it may be this mask
+	 * @param distance
+	 */
+	public void dilateRows(BitMask source, int distance) {
+		checkSize(source);
+		if (source != this) {
+			copyFrom(source);
+		}
+
+		long[] row = new long[wordsPerRow];
+
+		for (int rowStart = 0; rowStart < words.length; rowStart += wordsPerRow) {
+			int reach = 0;
+			while (reach < distance) {
+				int shift = Math.min(reach + 1, distance - reach);
+
+				System.arraycopy(words, rowStart, row, 0, wordsPerRow);
+				orShifted(row, shift, words, rowStart);
+				orShifted(row, -shift, words, rowStart);
+				words[rowStart + wordsPerRow - 1] &= lastWordMask;
+
+				reach += shift;
+			}
+		}
+	}
+
+	/***
+	 * Sets the pixels whose pixel dy rows above, in the source, is set. Rows
+	 * moved out of the image are lost, and nothing comes in from outside it.
+	 * 
+	 * @param source
+	 *            mask of the same size, not this mask
+	 * @param dy
+	 *            rows moved down, negative to move up
+	 */
+	public void orShiftedRows(BitMask source, int dy) {
+		checkSize(source);
+
+		int firstRow = Math.max(dy, 0);
+		int lastRow = Math.min(height, height + dy);
+
+		for (int y = firstRow; y < lastRow; y++) {
+			int target = y * wordsPerRow;
+			int origin = (y - dy) * wordsPerRow;
+			for (int i = 0; i < wordsPerRow; i++) {
+				words[target + i] |= source.words[origin + i];
+			}
+		}
+	}
+
+	/***
+	 * Unpacks the mask to one byte per pixel: 255 if set, 0 otherwise.
+	 * 
+	 * @param output
+	 *            width x height bytes
+	 */
+	public void toBytes(byte[] output) {
+		for (int y = 0; y < height; y++) {
+			int rowStart = y * wordsPerRow;
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				long bit = words[rowStart + (x >>> 6)] >>> x;
+				output[offset + x] = (byte) -(bit & 1);
+			}
+		}
+	}
+
+	/***
+	 * Packs a mask of one byte per pixel, where any non-zero byte is set.
+	 * 
+	 * @param input
+	 *            width x height bytes
+	 */
+	public void fromBytes(byte[] input) {
+		for (int y = 0; y < height; y++) {
+			int rowStart = y * wordsPerRow;
+			int offset = y * width;
+			for (int index = 0; index < wordsPerRow; index++) {
+				int x = index << 6;
+				int end = Math.min(x + 64, width);
+				long word = 0;
+				for (; x < end; x++) {
+					int value = input[offset + x];
+					word |= (long) ((value | -value) >>> 31) << x;
+				}
+				words[rowStart + index] = word;
+			}
+		}
+	}
+
+	/***
+	 * ORs a row, moved shift columns to the right (or to the left if
+	 * negative), into the row of the target that starts at the offset.
+	 */
+	private void orShifted(long[] row, int shift, long[] target, int offset) {
+		int wordShift = Math.abs(shift) >>> 6;
+		int bitShift = Math.abs(shift) & 63;
+
+		if (shift > 0) {
+			for (int i = wordsPerRow - 1; i >= wordShift; i--) {
+				long moved = row[i - wordShift] << bitShift;
+				if (bitShift != 0 && i - wordShift > 0) {
+					moved |= row[i - wordShift - 1] >>> (64 - bitShift);
+				}
+				target[offset + i] |= moved;
+			}
+		} else {
+			for (int i = 0; i < wordsPerRow - wordShift; i++) {
+				long moved = row[i + wordShift] >>> bitShift;
+				if (bitShift != 0 && i + wordShift + 1 < wordsPerRow) {
+					moved |= row[i + wordShift + 1] << (64 - bitShift);
+				}
+				target[offset + i] |= moved;
+			}
+		}
+	}
+
+	private void clearPadding() {
+		if (lastWordMask == -1L) {
+			return;
+		}
+		for (int i = wordsPerRow - 1; i < words.length; i += wordsPerRow) {
+			words[i] &= lastWordMask;
+		}
+	}
+
+	private void checkSize(BitMask other) {
+		if (other.width != width || other.height != height) {
+			throw new IllegalArgumentException("Masks of different sizes: "
+					+ width + "x" + height + " and " + other.width + "x"
+					+ other.height);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.Arrays;
+
+/**
+ * Removes the components of a packed mask that touch the borders of the
+ * image, and fills the holes of the ones left. It works on the runs of the
+ * rows instead of on the pixels: the runs are found a word at a time, the
+ * runs that touch on consecutive rows are joined in a union-find forest, and
+ * the components that reach a border are the trees with a border run. Every
+ * run is visited a fixed number of times, so the cost is linear in the
+ * number of runs, which is much lower than the number of pixels.
+ * 
+ * With a {@link TileScheduler}, the runs of each band of rows are found and
+ * joined at the same time. The forests of the bands are then stitched, by
+ * joining the runs that touch across the seams, and the bands are painted at
+ * the same time again.
+ * 
+ * The fill keeps its buffers between calls, thus it is meant to be kept in
+ * the state of a stage. It is not thread-safe.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class BorderFill {
+
+	/***
+	 * The runs of a band: row, first column and end column of each one, and
+	 * the union-find forest of the band.
+	 */
+	private static class RunBand {
+		int[] runRow = new int[1024];
+		int[] runStart = new int[1024];
+		int[] runEnd = new int[1024];
+		int[] parent = new int[1024];
+		boolean[] border = new boolean[1024];
+		int runCount;
+
+		/* Runs of the first row of the band, and first run of the last row */
+		int firstRowEnd;
+		int lastRowStart;
+
+		/* Index of the first run of the band in the stitched forest */
+		int offset;
+
+		void addRun(int row, int start, int end, boolean touchesBorder) {
+			if (runCount == parent.length) {
+				int capacity = runCount * 2;
+				runRow = Arrays.copyOf(runRow, capacity);
+				runStart = Arrays.copyOf(runStart, capacity);
+				runEnd = Arrays.copyOf(runEnd, capacity);
+				parent = Arrays.copyOf(parent, capacity);
+				border = Arrays.copyOf(border, capacity);
+			}
+
+			runRow[runCount] = row;
+			runStart[runCount] = start;
+			runEnd[runCount] = end;
+			parent[runCount] = runCount;
+			border[runCount] = touchesBorder;
+			runCount++;
+		}
+	}
+
+	private RunBand[] bands = new RunBand[0];
+
+	/* Forest of the runs of all the bands, and the runs kept by the paint */
+	private int[] parent = new int[1024];
+	private boolean[] border = new boolean[1024];
+
+	/***
+	 * Removes the 8-connected components of the mask that touch any border of
+	 * the image, and then fills the holes of the components left: the
+	 * 4-connected background regions that do not reach a border.
+	 * 
+	 * @param mask
+	 * @param output
+	 *            the components that do not touch the borders, with their
+	 *            holes filled. A mask of the same size, not the mask itself.
+	 */
+	public void removeBorderComponents(BitMask mask, BitMask output) {
+		removeBorderComponents(mask, output, TileScheduler.sequential());
+	}
+
+	/***
+	 * Removes the components that touch the borders and fills the holes,
+	 * splitting the work in the bands of the scheduler.
+	 * 
+	 * @param mask
+	 * @param output
+	 *            a mask of the same size, not the mask itself
+	 * @param scheduler
+	 */
+	public void removeBorderComponents(BitMask mask, BitMask output,
+			TileScheduler scheduler) {
+		int height = mask.getHeight();
+		int bandCount = scheduler.getBandCount(height);
+		if (bands.length != bandCount) {
+			bands = new RunBand[bandCount];
+			for (int band = 0; band < bandCount; band++) {
+				bands[band] = new RunBand();
+			}
+		}
+
+		/* The components that touch a border are left out */
+		labelRuns(mask, true, true, scheduler);
+		output.clear();
+		paintInnerRuns(output, scheduler);
+
+		/* The background that does not reach a border is hole */
+		labelRuns(output, false, false, scheduler);
+		paintInnerRuns(output, scheduler);
+	}
+
+	/***
+	 * Finds the runs of pixels with the given value, and joins the ones that
+	 * touch on consecutive rows.
+	 */
+	private void labelRuns(final BitMask mask, final boolean value,
+			final boolean eightConnected, TileScheduler scheduler) {
+		scheduler.run(mask.getHeight(), new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				labelBand(mask, value, eightConnected, firstRow, endRow,
+						bands[band]);
+			}
+		});
+
+		/* The forests of the bands, one after the other */
+		int total = 0;
+		for (RunBand band : bands) {
+			band.offset = total;
+			total += band.runCount;
+		}
+		if (parent.length < total) {
+			parent = new int[total];
+			border = new boolean[total];
+		}
+		for (RunBand band : bands) {
+			for (int run = 0; run < band.runCount; run++) {
+				parent[band.offset + run] = band.offset + band.parent[run];
+			}
+			System.arraycopy(band.border, 0, border, band.offset,
+					band.runCount);
+		}
+
+		/* Joins the runs that touch across the seams */
+		int slack = eightConnected ? 1 : 0;
+		for (int index = 1; index < bands.length; index++) {
+			RunBand upper = bands[index - 1];
+			RunBand lower = bands[index];
+
+			joinRows(upper.runStart, upper.runEnd, upper.lastRowStart,
+					upper.runCount, upper.offset, lower.runStart,
+					lower.runEnd, 0, lower.firstRowEnd, lower.offset, slack,
+					parent, border);
+		}
+
+		/* Resolves whether each run reaches a border, for the paint */
+		for (int run = 0; run < total; run++) {
+			border[run] = border[find(parent, run)];
+		}
+	}
+
+	/***
+	 * Finds and joins the runs of the rows of a band.
+	 */
+	private static void labelBand(BitMask mask, boolean value,
+			boolean eightConnected, int firstRow, int endRow, RunBand band) {
+		int width = mask.getWidth();
+		int height = mask.getHeight();
+		int slack = eightConnected ? 1 : 0;
+
+		band.runCount = 0;
+		int previousFirst = 0;
+		int previousEnd = 0;
+
+		for (int y = firstRow; y < endRow; y++) {
+			int rowFirst = band.runCount;
+			boolean borderRow = y == 0 || y == height - 1;
+
+			int x = 0;
+			while (true) {
+				int start = value ? mask.nextSetBit(y, x) : mask
+						.nextClearBit(y, x);
+				if (start >= width) {
+					break;
+				}
+				int end = value ? mask.nextClearBit(y, start) : mask
+						.nextSetBit(y, start);
+
+				band.addRun(y, start, end, borderRow || start == 0
+						|| end == width);
+				x = end;
+			}
+
+			if (y == firstRow) {
+				band.firstRowEnd = band.runCount;
+			} else {
+				joinRows(band.runStart, band.runEnd, previousFirst,
+						previousEnd, 0, band.runStart, band.runEnd, rowFirst,
+						band.runCount, 0, slack, band.parent, band.border);
+			}
+
+			band.lastRowStart = rowFirst;
+			previousFirst = rowFirst;
+			previousEnd = band.runCount;
+		}
+	}
+
+	/***
+	 * Joins the runs of a row with the runs of the row above that touch them.
+	 * Both rows are walked once, from left to right.
+	 */
+	private static void joinRows(int[] upperStart, int[] upperEnd,
+			int upperFirst, int upperLast, int upperOffset, int[] lowerStart,
+			int[] lowerEnd, int lowerFirst, int lowerLast, int lowerOffset,
+			int slack, int[] parent, boolean[] border) {
+		int above = upperFirst;
+		for (int run = lowerFirst; run < lowerLast; run++) {
+			while (above < upperLast
+					&& upperEnd[above] + slack <= lowerStart[run]) {
+				above++;
+			}
+			for (int touching = above; touching < upperLast
+					&& upperStart[touching] < lowerEnd[run] + slack; touching++) {
+				union(parent, border, upperOffset + touching, lowerOffset
+						+ run);
+			}
+		}
+	}
+
+	/***
+	 * Sets the runs whose component does not reach a border.
+	 */
+	private void paintInnerRuns(final BitMask output, TileScheduler scheduler) {
+		scheduler.run(output.getHeight(), new TileScheduler.BandTask() {
+			@Override
+			public void run(int index, int firstRow, int endRow) {
+				RunBand band = bands[index];
+				for (int run = 0; run < band.runCount; run++) {
+					if (!border[band.offset + run]) {
+						output.setRun(band.runRow[run], band.runStart[run],
+								band.runEnd[run]);
+					}
+				}
+			}
+		});
+	}
+
+	private static int find(int[] parent, int run) {
+		while (parent[run] != run) {
+			parent[run] = parent[parent[run]];
+			run = parent[run];
+		}
+		return run;
+	}
+
+	private static void union(int[] parent, boolean[] border, int first,
+			int second) {
+		int firstRoot = find(parent, first);
+		int secondRoot = find(parent, second);
+
+		if (firstRoot == secondRoot) {
+			return;
+		}
+
+		/* The smaller root wins, and keeps the border of both trees */
+		int root = Math.min(firstRoot, secondRoot);
+		int child = Math.max(firstRoot, secondRoot);
+		parent[child] = root;
+		border[root] |= border[child];
+	}
+}
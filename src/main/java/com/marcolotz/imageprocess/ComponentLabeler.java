@@ -0,0 +1,515 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Two-pass union-find labeling of the 8-connected components of a binary
+ * mask. The first pass gives every pixel a provisional label from its already
+ * visited neighbours, joins the labels that meet and accumulates the features
+ * of each provisional label: bounding box, pixel count, coordinate sums and
+ * the 2x2 pixel patterns (bit quads) of the border, which give the enclosed
+ * area and the perimeter. The second pass writes the final labels, after the
+ * features of the joined labels were merged and the size filter was applied.
+ * 
+ * No contour is traced and no object is created for the components that the
+ * filter rejects, which are most of them on a noisy slice.
+ * 
+ * With a {@link TileScheduler}, the first pass runs on each band of rows at
+ * the same time, with labels of its own. The labels of the bands are then
+ * stitched: they are numbered after the ones of the bands above, and the
+ * labels that meet across the seam rows are joined. The components, their
+ * features and their order are the same as with a single band.
+ * 
+ * The labeler keeps its buffers between calls, thus it is meant to be kept
+ * in the state of a stage. It is not thread-safe.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ComponentLabeler {
+
+	/* Label of each pixel, 0 for the pixels not labeled */
+	private int[] labels = new int[0];
+
+	/* Provisional labels of each band, and of the whole mask once stitched */
+	private LabelTable[] bandTables = new LabelTable[0];
+	private final LabelTable stitched = new LabelTable();
+
+	/* Components found by the last call, before the size filter */
+	private int totalCount;
+
+	/***
+	 * The provisional labels and their features: a union-find forest whose
+	 * roots are the smallest labels of their trees.
+	 */
+	private static class LabelTable {
+		/* Labels used so far are 1 to next - 1 */
+		int next = 1;
+
+		int[] parent = new int[1024];
+
+		int[] count = new int[1024];
+		int[] minX = new int[1024];
+		int[] maxX = new int[1024];
+		int[] minY = new int[1024];
+		int[] maxY = new int[1024];
+		long[] sumX = new long[1024];
+		long[] sumY = new long[1024];
+
+		/* Bit quads: three and four pixels set, two adjacent and two diagonal */
+		int[] quads3 = new int[1024];
+		int[] quads4 = new int[1024];
+		int[] quadsAdjacent = new int[1024];
+		int[] quadsDiagonal = new int[1024];
+
+		int newLabel(int x, int y) {
+			int label = next++;
+			if (label == parent.length) {
+				grow(label + 1);
+			}
+			parent[label] = label;
+			count[label] = 0;
+			minX[label] = x;
+			maxX[label] = x;
+			minY[label] = y;
+			maxY[label] = y;
+			sumX[label] = 0;
+			sumY[label] = 0;
+			quads3[label] = 0;
+			quads4[label] = 0;
+			quadsAdjacent[label] = 0;
+			quadsDiagonal[label] = 0;
+			return label;
+		}
+
+		/***
+		 * Copies the labels of a band after the ones already in the table.
+		 * 
+		 * @return the offset added to the labels of the band
+		 */
+		int append(LabelTable band) {
+			int offset = next - 1;
+			int added = band.next - 1;
+			if (next + added > parent.length) {
+				grow(next + added);
+			}
+
+			for (int label = 1; label <= added; label++) {
+				parent[offset + label] = band.parent[label] + offset;
+			}
+			System.arraycopy(band.count, 1, count, next, added);
+			System.arraycopy(band.minX, 1, minX, next, added);
+			System.arraycopy(band.maxX, 1, maxX, next, added);
+			System.arraycopy(band.minY, 1, minY, next, added);
+			System.arraycopy(band.maxY, 1, maxY, next, added);
+			System.arraycopy(band.sumX, 1, sumX, next, added);
+			System.arraycopy(band.sumY, 1, sumY, next, added);
+			System.arraycopy(band.quads3, 1, quads3, next, added);
+			System.arraycopy(band.quads4, 1, quads4, next, added);
+			System.arraycopy(band.quadsAdjacent, 1, quadsAdjacent, next,
+					added);
+			System.arraycopy(band.quadsDiagonal, 1, quadsDiagonal, next,
+					added);
+
+			next += added;
+			return offset;
+		}
+
+		/***
+		 * Joins two provisional labels.
+		 * 
+		 * @return the label to give to the pixel
+		 */
+		int join(int label, int neighbour) {
+			if (neighbour == 0 || neighbour == label) {
+				return label;
+			}
+			if (label == 0) {
+				return neighbour;
+			}
+
+			int root = find(label);
+			int neighbourRoot = find(neighbour);
+			if (root < neighbourRoot) {
+				parent[neighbourRoot] = root;
+			} else if (neighbourRoot < root) {
+				parent[root] = neighbourRoot;
+			}
+			return label;
+		}
+
+		int find(int label) {
+			while (parent[label] != label) {
+				/* Path halving */
+				parent[label] = parent[parent[label]];
+				label = parent[label];
+			}
+			return label;
+		}
+
+		/***
+		 * Counts the 2x2 patterns between two rows of the label image,
+		 * including the ones that overlap the image borders. Every pixel of a
+		 * pattern is 8-connected to the others, thus a pattern belongs to a
+		 * single component.
+		 * 
+		 * @param labels
+		 * @param upperRow
+		 *            start of the upper row, or -width if it is above the image
+		 * @param lowerRow
+		 *            start of the lower row, or -1 if it is below the image
+		 * @param width
+		 */
+		void countQuads(int[] labels, int upperRow, int lowerRow, int width) {
+			int left = 0;
+			int lowerLeft = 0;
+
+			for (int x = 0; x <= width; x++) {
+				int right = 0;
+				int lowerRight = 0;
+				if (x < width) {
+					right = upperRow >= 0 ? labels[upperRow + x] : 0;
+					lowerRight = lowerRow >= 0 ? labels[lowerRow + x] : 0;
+				}
+
+				int set = (left != 0 ? 1 : 0) + (right != 0 ? 1 : 0)
+						+ (lowerLeft != 0 ? 1 : 0) + (lowerRight != 0 ? 1 : 0);
+
+				if (set >= 2) {
+					int label = left != 0 ? left : right != 0 ? right
+							: lowerLeft;
+
+					if (set == 4) {
+						quads4[label]++;
+					} else if (set == 3) {
+						quads3[label]++;
+					} else if ((left != 0 && lowerRight != 0)
+							|| (right != 0 && lowerLeft != 0)) {
+						quadsDiagonal[label]++;
+					} else {
+						quadsAdjacent[label]++;
+					}
+				}
+
+				left = right;
+				lowerLeft = lowerRight;
+			}
+		}
+
+		void grow(int minimumCapacity) {
+			int capacity = Math.max(parent.length * 2, minimumCapacity);
+			parent = Arrays.copyOf(parent, capacity);
+			count = Arrays.copyOf(count, capacity);
+			minX = Arrays.copyOf(minX, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+			sumX = Arrays.copyOf(sumX, capacity);
+			sumY = Arrays.copyOf(sumY, capacity);
+			quads3 = Arrays.copyOf(quads3, capacity);
+			quads4 = Arrays.copyOf(quads4, capacity);
+			quadsAdjacent = Arrays.copyOf(quadsAdjacent, capacity);
+			quadsDiagonal = Arrays.copyOf(quadsDiagonal, capacity);
+		}
+	}
+
+	/***
+	 * Labels the 8-connected components of the non-zero pixels of the mask.
+	 * 
+	 * @param mask
+	 * @param width
+	 * @param height
+	 * @return all the components, in raster order of their first pixel
+	 */
+	public List<ConnectedComponent> label(byte[] mask, int width, int height) {
+		return label(mask, width, height, 0, 0, TileScheduler.sequential());
+	}
+
+	/***
+	 * Labels the 8-connected components of the non-zero pixels of the mask,
+	 * keeping only the ones whose bounding box has at least the given size.
+	 * The pixels of the other components get the label 0.
+	 * 
+	 * @param mask
+	 * @param width
+	 * @param height
+	 * @param minimumWidth
+	 * @param minimumHeight
+	 * @param scheduler
+	 *            runs the first and the second pass on bands of rows
+	 * @return the components that passed the filter, in raster order of their
+	 *         first pixel
+	 */
+	public List<ConnectedComponent> label(final byte[] mask, final int width,
+			final int height, int minimumWidth, int minimumHeight,
+			TileScheduler scheduler) {
+		int size = width * height;
+		if (labels.length < size) {
+			labels = new int[size];
+		}
+
+		int bands = scheduler.getBandCount(height);
+		if (bandTables.length != bands) {
+			bandTables = new LabelTable[bands];
+			for (int band = 0; band < bands; band++) {
+				bandTables[band] = new LabelTable();
+			}
+		}
+
+		scheduler.run(height, new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				firstPass(mask, width, height, firstRow, endRow,
+						bandTables[band]);
+			}
+		});
+
+		LabelTable table = bands == 1 ? bandTables[0] : stitch(scheduler,
+				width, height);
+
+		return resolve(table, scheduler, width, height, minimumWidth,
+				minimumHeight);
+	}
+
+	/***
+	 * @return the label image of the last call: the label of the component of
+	 *         each pixel, or 0. It is overwritten by the next call.
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/***
+	 * @return the number of components of the last call, before the size
+	 *         filter.
+	 */
+	public int getTotalCount() {
+		return totalCount;
+	}
+
+	/***
+	 * Labels the rows of a band, with the labels of the table. The patterns
+	 * above the first row of the band are left for the stitching, unless it
+	 * is the first row of the image.
+	 */
+	private void firstPass(byte[] mask, int width, int height, int firstRow,
+			int endRow, LabelTable table) {
+		int[] labels = this.labels;
+		table.next = 1;
+
+		for (int y = firstRow; y < endRow; y++) {
+			int row = y * width;
+
+			for (int x = 0; x < width; x++) {
+				int index = row + x;
+
+				if (mask[index] == 0) {
+					labels[index] = 0;
+					continue;
+				}
+
+				/* The neighbours already visited: W, and NW, N, NE */
+				int label = x > 0 ? labels[index - 1] : 0;
+				if (y > firstRow) {
+					int up = index - width;
+					if (x > 0) {
+						label = table.join(label, labels[up - 1]);
+					}
+					label = table.join(label, labels[up]);
+					if (x < width - 1) {
+						label = table.join(label, labels[up + 1]);
+					}
+				}
+
+				if (label == 0) {
+					label = table.newLabel(x, y);
+				}
+
+				labels[index] = label;
+				table.count[label]++;
+				table.sumX[label] += x;
+				table.sumY[label] += y;
+				if (x < table.minX[label]) {
+					table.minX[label] = x;
+				} else if (x > table.maxX[label]) {
+					table.maxX[label] = x;
+				}
+				table.maxY[label] = y;
+			}
+
+			if (y > firstRow || y == 0) {
+				table.countQuads(labels, row - width, row, width);
+			}
+		}
+
+		if (endRow == height) {
+			table.countQuads(labels, (height - 1) * width, -1, width);
+		}
+	}
+
+	/***
+	 * Numbers the labels of each band after the ones of the bands above, and
+	 * joins the labels that meet across the seams.
+	 * 
+	 * @return the table of the stitched labels
+	 */
+	private LabelTable stitch(TileScheduler scheduler, final int width,
+			int height) {
+		final int bands = bandTables.length;
+		final int[] offsets = new int[bands];
+
+		stitched.next = 1;
+		for (int band = 0; band < bands; band++) {
+			offsets[band] = stitched.append(bandTables[band]);
+		}
+
+		final int[] labels = this.labels;
+		scheduler.run(height, new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				int offset = offsets[band];
+				if (offset == 0) {
+					return;
+				}
+				for (int index = firstRow * width; index < endRow * width; index++) {
+					if (labels[index] != 0) {
+						labels[index] += offset;
+					}
+				}
+			}
+		});
+
+		for (int band = 1; band < bands; band++) {
+			int row = scheduler.getBandStart(band, height) * width;
+			int up = row - width;
+
+			for (int x = 0; x < width; x++) {
+				int label = labels[row + x];
+				if (label == 0) {
+					continue;
+				}
+				if (x > 0) {
+					stitched.join(label, labels[up + x - 1]);
+				}
+				stitched.join(label, labels[up + x]);
+				if (x < width - 1) {
+					stitched.join(label, labels[up + x + 1]);
+				}
+			}
+
+			stitched.countQuads(labels, up, row, width);
+		}
+
+		return stitched;
+	}
+
+	/***
+	 * Merges the features of the joined labels into their roots, creates the
+	 * components that pass the filter and writes their labels in the label
+	 * image.
+	 */
+	private List<ConnectedComponent> resolve(LabelTable table,
+			TileScheduler scheduler, final int width, int height,
+			int minimumWidth, int minimumHeight) {
+		final int[] parent = table.parent;
+		int next = table.next;
+
+		for (int label = 1; label < next; label++) {
+			int root = table.find(label);
+			if (root == label) {
+				continue;
+			}
+			parent[label] = root;
+
+			table.count[root] += table.count[label];
+			table.sumX[root] += table.sumX[label];
+			table.sumY[root] += table.sumY[label];
+			table.minX[root] = Math.min(table.minX[root], table.minX[label]);
+			table.maxX[root] = Math.max(table.maxX[root], table.maxX[label]);
+			table.minY[root] = Math.min(table.minY[root], table.minY[label]);
+			table.maxY[root] = Math.max(table.maxY[root], table.maxY[label]);
+			table.quads3[root] += table.quads3[label];
+			table.quads4[root] += table.quads4[label];
+			table.quadsAdjacent[root] += table.quadsAdjacent[label];
+			table.quadsDiagonal[root] += table.quadsDiagonal[label];
+		}
+
+		List<ConnectedComponent> components = new ArrayList<ConnectedComponent>();
+		totalCount = 0;
+
+		/* The roots come first, so parent can hold the final labels */
+		for (int label = 1; label < next; label++) {
+			int root = parent[label];
+			if (root != label) {
+				/* Its root is resolved, it has the final label now */
+				parent[label] = parent[root];
+				continue;
+			}
+
+			totalCount++;
+			int componentWidth = table.maxX[label] - table.minX[label] + 1;
+			int componentHeight = table.maxY[label] - table.minY[label] + 1;
+
+			if (componentWidth < minimumWidth
+					|| componentHeight < minimumHeight) {
+				parent[label] = 0;
+				continue;
+			}
+
+			ConnectedComponent component = new ConnectedComponent();
+			component.label = components.size() + 1;
+			component.x = table.minX[label];
+			component.y = table.minY[label];
+			component.width = componentWidth;
+			component.height = componentHeight;
+			component.pixelCount = table.count[label];
+			component.sumX = table.sumX[label];
+			component.sumY = table.sumY[label];
+
+			/* A border step per adjacent pattern, diagonal patterns cross twice */
+			component.enclosedArea = table.quads4[label]
+					+ table.quads3[label] / 2.0;
+			component.straightSteps = table.quadsAdjacent[label];
+			component.diagonalSteps = table.quads3[label] + 2
+					* table.quadsDiagonal[label];
+
+			components.add(component);
+			parent[label] = component.label;
+		}
+
+		parent[0] = 0;
+		final int[] labels = this.labels;
+		scheduler.run(height, new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				for (int index = firstRow * width; index < endRow * width; index++) {
+					labels[index] = parent[labels[index]];
+				}
+			}
+		});
+
+		return components;
+	}
+}
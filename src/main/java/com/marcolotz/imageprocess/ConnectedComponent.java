@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+/**
+ * A connected component found by the {@link ComponentLabeler}, with the
+ * features that were accumulated while it was labeled.
+ * 
+ * The enclosed area and the perimeter are the ones of the polygon that joins
+ * the centres of the border pixels, as the contour tracing of the ImageJ blob
+ * plugin measured them: the perimeter uses the Vossepoel and Smeulders weights
+ * of the straight and diagonal steps of the border. Unlike the plugin, the
+ * borders of the holes are included: the area of the holes is not enclosed and
+ * their border adds to the perimeter.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ConnectedComponent {
+
+	/* Weights of the straight and diagonal border steps */
+	private static final double straightStepLength = 0.948;
+	private static final double diagonalStepLength = 1.34;
+
+	/* Value of the component pixels in the label image, from 1 */
+	int label;
+
+	/* Bounding box of the pixels */
+	int x;
+	int y;
+	int width;
+	int height;
+
+	int pixelCount;
+	long sumX;
+	long sumY;
+
+	/* Polygon area and number of border steps */
+	double enclosedArea;
+	int straightSteps;
+	int diagonalSteps;
+
+	public int getLabel() {
+		return label;
+	}
+
+	/***
+	 * @return the leftmost column of the component
+	 */
+	public int getX() {
+		return x;
+	}
+
+	/***
+	 * @return the top row of the component
+	 */
+	public int getY() {
+		return y;
+	}
+
+	/***
+	 * @return the number of columns spanned by the component
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/***
+	 * @return the number of rows spanned by the component
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	public int getPixelCount() {
+		return pixelCount;
+	}
+
+	public double getCentroidX() {
+		return (double) sumX / pixelCount;
+	}
+
+	public double getCentroidY() {
+		return (double) sumY / pixelCount;
+	}
+
+	/***
+	 * @return the area of the polygon that joins the centres of the border
+	 *         pixels. It is 0 for lines.
+	 */
+	public double getEnclosedArea() {
+		return enclosedArea;
+	}
+
+	/***
+	 * @return the length of the border. A single pixel has a perimeter of 1.
+	 */
+	public double getPerimeter() {
+		if (pixelCount == 1) {
+			return 1;
+		}
+		return straightSteps * straightStepLength + diagonalSteps
+				* diagonalStepLength;
+	}
+
+	/***
+	 * @return perimeter * perimeter / enclosed area. It grows as the component
+	 *         gets elongated.
+	 */
+	public double getCircularity() {
+		double perimeter = getPerimeter();
+		return perimeter * perimeter / enclosedArea;
+	}
+
+	/***
+	 * @param imageWidth
+	 * @param imageHeight
+	 * @return true if the component has pixels on any border of the image
+	 */
+	public boolean touchesBorder(int imageWidth, int imageHeight) {
+		return x == 0 || y == 0 || x + width == imageWidth
+				|| y + height == imageHeight;
+	}
+}
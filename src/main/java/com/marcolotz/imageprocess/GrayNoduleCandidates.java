@@ -20,38 +20,50 @@
 
 package com.marcolotz.imageprocess;
 
-import java.awt.Color;
-import java.awt.Polygon;
-import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
 import java.util.ArrayList;
-import java.util.Iterator;
 
-import ij.ImagePlus;
-import ij.blob.Blob;
-import ij.blob.ManyBlobs;
-import ij.process.ByteProcessor;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
 
 /**
  * Node Candidates Detector based in Gray level plugin. Once the Lung is
  * extracted from the original image, it uses gray scale analysis to find
  * possible components that are Node candidates. Since the input image has the
  * same 16-bits depth of the original DICOM, the grey level convertion is done
- * using a rule of three.
+ * using a rule of three. The limits found are stored values of the series the
+ * method was tuned on, which are converted to Hounsfield units, so that the
+ * {@link HounsfieldTable} of the context selects the same tissues on series
+ * with any rescale.
  * 
  * The candidates will only be taken as a nodule in a post-processing phase,
  * using the criteria defined in the 2003 paper.
  * 
+ * The thresholds are read once, when the configuration is set. The masks and
+ * the candidates of a slice are kept in the {@link ProcessingContext} of the
+ * run, and the masks are reused while the slices have the same size.
+ * 
  * @author Marco Aurelio Lotz
  * 
  */
 public class GrayNoduleCandidates extends ImageProcessingClass {
 
-	private BufferedImage binaryMask;
-	private BufferedImage eightBitDICOM;
-	private ImagePlus output;
+	private static final Logger LOG = Logger
+			.getLogger(GrayNoduleCandidates.class);
+
+	/***
+	 * The buffers and the results of a run of the stage.
+	 */
+	private static class State {
+		/* Regions of interest */
+		byte[] binaryMask;
 
-	private ArrayList<Blob> nodeCandidatesList;
+		final ComponentLabeler labeler = new ComponentLabeler();
+
+		/* The output with the candidates only */
+		Slice candidatesSlice;
+
+		ArrayList<ConnectedComponent> nodeCandidatesList;
+	}
 
 	/***
 	 * The minimum and maximum gray value of regions of interest, according to
@@ -75,6 +87,13 @@ public class GrayNoduleCandidates extends ImageProcessingClass {
 	int dicomBottomLimit;
 	int dicomUpperLimit;
 
+	/***
+	 * The DICOM limits in Hounsfield units, with the intercept of the series
+	 * they were tuned on.
+	 */
+	int hounsfieldBottomLimit;
+	int hounsfieldUpperLimit;
+
 	/***
 	 * The minimum size (in pixel) of the components that will be filtered.
 	 */
@@ -90,28 +109,48 @@ public class GrayNoduleCandidates extends ImageProcessingClass {
 	//ImageViewer imgDebug = new ImageViewer();
 
 	@Override
-	protected ImagePlus process(ImagePlus inputImage) {
-		/* Updates the parameters to match the configuration file*/
-		configure();
-		
-		/* Generates an 8 bits version of the input Image */
-		eightBitDICOM = inputImage.getBufferedImage();
+	protected Object createState() {
+		return new State();
+	}
 
-		// Allocates a mask. The 8 bits version is used as an input because it
-		// is the required depth by the blob detector. The color attributes
-		// themselves are never analysed here.
-		binaryMask = cloneBufferedImage(eightBitDICOM);
+	@Override
+	protected Slice process(Slice input, ProcessingContext context) {
+		State state = (State) context.getState(this);
+		TileScheduler scheduler = context.getScheduler();
+
+		// Allocates the masks, if the slice size changed.
+		allocateMasks(state, input.getWidth(), input.getHeight());
 
 		// Selects only regions that are between the thresholds.
-		thresholdSelector(dicomBottomLimit, dicomUpperLimit, inputImage);
+		HounsfieldTable table = context.getHounsfieldTable();
+		int candidateBit = table.rangeBit(hounsfieldBottomLimit,
+				hounsfieldUpperLimit);
+		thresholdSelector(table.getBits(input), candidateBit, input,
+				state.binaryMask, scheduler);
 
 		// Selects only the components with dimensions larger than a value
-		minimumSizeMask(minimumWidth, minimumHeight);
+		minimumSizeMask(minimumWidth, minimumHeight, state, input.getWidth(),
+				input.getHeight(), scheduler);
 
 		//imgDebug.setImage(binaryMask);
-		generateOutput();
+		return generateOutput(input, state);
+	}
 
-		return this.output;
+	@Override
+	public void setConfiguration(Configuration conf) {
+		super.setConfiguration(conf);
+
+		/* Updates the parameters to match the configuration file */
+		configure();
+	}
+
+	private void allocateMasks(State state, int width, int height) {
+		if (state.candidatesSlice == null
+				|| state.candidatesSlice.getWidth() != width
+				|| state.candidatesSlice.getHeight() != height) {
+			state.binaryMask = new byte[width * height];
+			state.candidatesSlice = new Slice(width, height);
+		}
 	}
 
 	/***
@@ -126,117 +165,117 @@ public class GrayNoduleCandidates extends ImageProcessingClass {
 		
 		dicomUpperLimit = upperLimit * maximumValueRange
 				/ maximumValueEightBits;
+
+		hounsfieldBottomLimit = dicomBottomLimit
+				+ HounsfieldTable.legacyIntercept;
+		hounsfieldUpperLimit = dicomUpperLimit
+				+ HounsfieldTable.legacyIntercept;
 	}
 
 	/***
-	 * Selects Regions of Interest based on the gray level of the region
+	 * Selects Regions of Interest based on the gray level of the region. The
+	 * bands of rows are thresholded at the same time.
 	 * 
-	 * @param bottomLimit
-	 * @param upperLimit
+	 * @param tableBits
+	 *            the Hounsfield table, for the calibration of the input
+	 * @param candidateBit
+	 *            the bit of the table of the values between the limits
+	 * @param input
+	 * @param binaryMask
+	 * @param scheduler
 	 */
-	private void thresholdSelector(int bottomLimit, int upperLimit,
-			ImagePlus inputImage) {
-		int xcoord = 0;
-		int ycoord = 0;
-
-		int[] maskPixelValue = new int[1];
-		int inputPixelValue = 0;
-
-		WritableRaster maskRaster = binaryMask.getRaster();
-		ij.process.ImageProcessor inputProcessor = inputImage.getProcessor();
-
-		for (ycoord = 0; ycoord < binaryMask.getHeight(); ycoord++) {
-			for (xcoord = 0; xcoord < binaryMask.getWidth(); xcoord++) {
-
-				inputPixelValue = inputProcessor.getPixel(xcoord, ycoord);
-
-				// Since the mask has an 8 bits depth:
-				if ((inputPixelValue >= bottomLimit)
-						&& (inputPixelValue <= upperLimit)) {
-					maskPixelValue[0] = ROIColour;
-
-				} else {
-					maskPixelValue[0] = backGroundColour;
-				}
-				maskRaster.setPixel(xcoord, ycoord, maskPixelValue);
+	private void thresholdSelector(final byte[] tableBits,
+			final int candidateBit, Slice input, final byte[] binaryMask,
+			TileScheduler scheduler) {
+		final short[] pixels = input.getPixels();
+		final int width = input.getWidth();
+
+		scheduler.run(input.getHeight(), new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				SegmentationKernels.select(pixels, tableBits, candidateBit,
+						binaryMask, firstRow * width, endRow * width);
 			}
-		}
+		});
 	}
 
 	/***
-	 * Verifies connected components (blobs) in the objects mask. Then filters
-	 * the blobs based on their minimum height and width.
+	 * Labels the connected components in the objects mask. Then filters the
+	 * components based on their minimum height and width, and draws the ones
+	 * left on the candidates slice.
 	 * 
 	 * @param minimumWidth
 	 * @param minimumHeight
+	 * @param state
+	 * @param width
+	 *            of the slice
+	 * @param height
+	 *            of the slice
+	 * @param scheduler
+	 *            splits the labeling and the drawing in bands of rows
 	 */
-	private void minimumSizeMask(int minimumWidth, int minimumHeight) {
-		// Show blobs in white when using their draw method
-		Blob.setDefaultColor(Color.WHITE);
-
-		ImagePlus ip = new ImagePlus("Threshold Candidates", this.binaryMask);
-		ManyBlobs mb = new ManyBlobs(ip);
-
-		// Detect the black areas as background.
-		mb.setBackground(0);
-
-		mb.findConnectedComponents();
-
-		System.out.println("Found " + mb.size() + " Regions on interest.");
+	private void minimumSizeMask(int minimumWidth, int minimumHeight,
+			State state, final int width, int height, TileScheduler scheduler) {
+		ComponentLabeler labeler = state.labeler;
 
 		// Filters for nodes that match the designated size.
-		System.out.println("Filtering by size:" + minimumWidth + "x"
-				+ minimumHeight);
-
-		Iterator<Blob> blobIter = mb.iterator();
-
-		nodeCandidatesList = new ArrayList<Blob>();
-
-		while (blobIter.hasNext()) {
-			Blob analysedBlob = blobIter.next();
-			Polygon pol = analysedBlob.getOuterContour();
-
-			double width = pol.getBounds().getWidth();
-			double height = pol.getBounds().getHeight();
-
-			// Increment one, since 1 pixel size is considered 0 width by
-			// the polygon class.
-			width++;
-			height++;
-
-			// If it is larger than the desired size, add to the list
-			if ((width >= minimumWidth) && (height >= minimumHeight)) {
-				System.out.println("Node candidate found!");
-				System.out.println("Dimensions: " + width + "x" + height);
-				nodeCandidatesList.add(analysedBlob);
-			}
-		}
-
-		// Generates a new binary mask with only candidates
-		ByteProcessor newProcessor = new ByteProcessor(binaryMask.getWidth(),
-				binaryMask.getHeight());
-
-		Iterator<Blob> printIter = nodeCandidatesList.iterator();
-		while (printIter.hasNext()) {
-			printIter.next().draw(newProcessor);
+		ArrayList<ConnectedComponent> nodeCandidatesList = new ArrayList<ConnectedComponent>(
+				labeler.label(state.binaryMask, width, height, minimumWidth,
+						minimumHeight, scheduler));
+		state.nodeCandidatesList = nodeCandidatesList;
+
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Found " + labeler.getTotalCount()
+					+ " regions of interest, " + nodeCandidatesList.size()
+					+ " of at least " + minimumWidth + "x" + minimumHeight);
 		}
 
-		binaryMask = newProcessor.getBufferedImage();
+		// Draws a binary mask with only the candidates pixels. The filtered
+		// components have no label.
+		final int[] labels = labeler.getLabels();
+		final short[] candidates = state.candidatesSlice.getPixels();
+
+		scheduler.run(height, new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				for (int i = firstRow * width; i < endRow * width; i++) {
+					candidates[i] = (short) (labels[i] != 0 ? ROIColour
+							: backGroundColour);
+				}
+			}
+		});
 	}
 
 	/***
-	 * Generates a ImagePlus file from the final binary mask
+	 * The output is the slice of the candidates mask, which is drawn again for
+	 * every slice. It has the pixel size of the input, but its values are not
+	 * rescaled.
+	 * 
+	 * @param input
+	 * @param state
+	 * @return the output slice
 	 */
-	public void generateOutput() {
-		this.output = new ImagePlus("Candidates Nodes", this.binaryMask);
+	private Slice generateOutput(Slice input, State state) {
+		state.candidatesSlice.setPixelWidth(input.getPixelWidth());
+		state.candidatesSlice.setPixelHeight(input.getPixelHeight());
+		return state.candidatesSlice;
+	}
+
+	@Override
+	public void clearResults(ProcessingContext context) {
+		State state = (State) context.getState(this);
+		state.nodeCandidatesList = new ArrayList<ConnectedComponent>(0);
 	}
 
 	/***
 	 * Gets the Nodule Candidates List
 	 * 
-	 * @return The nodules Candidates List
+	 * @param context
+	 *            the context of the run
+	 * @return The nodules Candidates List of the last slice processed in the
+	 *         context
 	 */
-	public ArrayList<Blob> getCandidatesList() {
-		return this.nodeCandidatesList;
+	public ArrayList<ConnectedComponent> getCandidatesList(ProcessingContext context) {
+		return ((State) context.getState(this)).nodeCandidatesList;
 	}
 }
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+/**
+ * Classifies the stored values of the slices of a series with a single table
+ * lookup per pixel. The stages register the ranges of Hounsfield units they
+ * select, and each range gets a bit of the table. The table has an entry for
+ * each of the 65536 stored values, with the bits of the ranges that the
+ * calibrated value (intercept + slope * stored value) falls in.
+ * 
+ * The table is only built again when a slice has a different calibration
+ * from the previous one, which in practice is once per series. Scanners that
+ * store the values with different intercepts, or signed values that ImageJ
+ * offsets by 32768, are thus classified by the same Hounsfield thresholds.
+ * 
+ * Slices without a rescale (slope 1 and intercept 0) are taken as stored with
+ * the default intercept, since with an intercept of 0 the stored values could
+ * not hold the air, below 0 HU.
+ * The original thresholds of the stages assumed a stored value of HU + 1000.
+ * 
+ * A table belongs to a {@link ProcessingContext} and is not thread-safe.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class HounsfieldTable {
+
+	/***
+	 * The intercept that the original thresholds were written for.
+	 */
+	public static final int legacyIntercept = -1000;
+
+	/* One bit per range in each byte of the table */
+	private static final int maximumRanges = 8;
+
+	private final byte[] bits = new byte[65536];
+
+	/* The registered ranges, inclusive */
+	private final double[] lows = new double[maximumRanges];
+	private final double[] highs = new double[maximumRanges];
+	private int ranges = 0;
+
+	private final double defaultIntercept;
+
+	/* Calibration of the current bits, NaN if they must be built again */
+	private double slope = Double.NaN;
+	private double intercept = Double.NaN;
+
+	/***
+	 * @param defaultIntercept
+	 *            intercept of the slices without a rescale
+	 */
+	public HounsfieldTable(double defaultIntercept) {
+		this.defaultIntercept = defaultIntercept;
+	}
+
+	/***
+	 * Returns the bit of the table that selects a range of Hounsfield units.
+	 * The range is registered on its first call, and the next calls with the
+	 * same limits return the same bit.
+	 * 
+	 * @param low
+	 *            lowest selected value, may be Double.NEGATIVE_INFINITY
+	 * @param high
+	 *            highest selected value, may be Double.POSITIVE_INFINITY
+	 * @return the bit of the range, from 0 to 7
+	 * @throws IllegalStateException
+	 *             if there are already 8 other ranges
+	 */
+	public int rangeBit(double low, double high) {
+		for (int bit = 0; bit < ranges; bit++) {
+			if (lows[bit] == low && highs[bit] == high) {
+				return bit;
+			}
+		}
+
+		if (ranges == maximumRanges) {
+			throw new IllegalStateException("A table holds at most "
+					+ maximumRanges + " ranges");
+		}
+
+		lows[ranges] = low;
+		highs[ranges] = high;
+
+		/* The new bit is not in the current table */
+		slope = Double.NaN;
+		return ranges++;
+	}
+
+	/***
+	 * Returns the table for the calibration of a slice, building it if the
+	 * calibration changed. The entry of a stored value is read with
+	 * bits[value & 0xFFFF].
+	 * 
+	 * @param slice
+	 * @return the 65536 entries of the table. The array is reused by the next
+	 *         calls.
+	 */
+	public byte[] getBits(Slice slice) {
+		double sliceSlope = slice.getRescaleSlope();
+		double sliceIntercept = slice.getRescaleIntercept();
+
+		if (sliceSlope == 1 && sliceIntercept == 0) {
+			sliceIntercept = defaultIntercept;
+		}
+
+		if (sliceSlope != slope || sliceIntercept != intercept) {
+			build(sliceSlope, sliceIntercept);
+		}
+		return bits;
+	}
+
+	/***
+	 * Returns the stored value of a calibrated value, for the calibration of
+	 * the last {@link #getBits(Slice)} call.
+	 * 
+	 * @param hounsfield
+	 * @return the nearest stored value, from 0 to 65535
+	 */
+	public int getStoredValue(double hounsfield) {
+		long value = Math.round((hounsfield - intercept) / slope);
+		return (int) Math.max(Math.min(value, bits.length - 1), 0);
+	}
+
+	public double getDefaultIntercept() {
+		return defaultIntercept;
+	}
+
+	private void build(double slope, double intercept) {
+		for (int value = 0; value < bits.length; value++) {
+			double hounsfield = intercept + slope * value;
+
+			int entry = 0;
+			for (int bit = 0; bit < ranges; bit++) {
+				if (hounsfield >= lows[bit] && hounsfield <= highs[bit]) {
+					entry |= 1 << bit;
+				}
+			}
+			bits[value] = (byte) entry;
+		}
+
+		this.slope = slope;
+		this.intercept = intercept;
+	}
+}
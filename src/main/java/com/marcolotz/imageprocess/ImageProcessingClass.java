@@ -19,19 +19,16 @@
  ******************************************************************************/
 package com.marcolotz.imageprocess;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.WritableRaster;
-
 import org.apache.hadoop.conf.Configuration;
 
-import ij.ImagePlus;
-import ij.plugin.Duplicator;
-
 /***
  * An abstract class that should be extended by class that is going to process
  * images. The {@link ImageProcessor} uses it when calling the processing
- * classes.
+ * classes. The stages consume and produce {@link Slice} objects.
+ * 
+ * A stage is configured once and then only read: everything that changes from
+ * a slice to another is kept in the {@link ProcessingContext} of the run. This
+ * way one instance may process the slices of many threads at once.
  * 
  * @author Marco Aurelio Lotz
  * 
@@ -40,99 +37,73 @@ public class ImageProcessingClass {
 
 	Configuration conf;
 
-	ImagePlus input;
-	ImagePlus output;
-
-	/* For time benchmarks */
-	float startTime;
-	float totalLatency;
-
-	public void setInput(ImagePlus input) {
-		this.input = input;
-	}
-
-	public ImagePlus getInput() {
-		return this.input;
-	}
-
-	public void setOutput(ImagePlus output) {
-		this.output = output;
-	}
-
-	public ImagePlus getOutput() {
-		return this.output;
-	}
-
-	private void startTimer() {
-		this.startTime = System.currentTimeMillis();
-	}
-
-	private void stopTimer() {
-		this.totalLatency = System.currentTimeMillis() - this.startTime;
-	}
-
-	public float getLatency() {
-		return this.totalLatency;
-	}
-
-	public void run(ImagePlus input) {
-		setInput(input);
-
-		startTimer();
+	/***
+	 * Runs the stage on a slice.
+	 * 
+	 * @param input
+	 * @param context
+	 *            the state of the run, owned by the calling thread
+	 * @return the output slice of the stage
+	 */
+	public Slice run(Slice input, ProcessingContext context) {
+		long startTime = System.currentTimeMillis();
 
 		// Runs the class defined process instruction
 		System.out.println("\n Starting " + this.getClass().getName());
-		setOutput(process(input));
+		Slice output = process(input, context);
 
-		stopTimer();
+		context.setLatency(System.currentTimeMillis() - startTime);
 		System.out.println(this.getClass().getName() + " finished");
-		System.out.println("Total processing time (ms): " + this.getLatency());
+		System.out.println("Total processing time (ms): "
+				+ (float) context.getLatency());
+
+		return output;
 	}
 
 	/***
 	 * User Defined processing method. This should be implemented in a
-	 * user-defined way in order to keep the modularity of the code.
+	 * user-defined way in order to keep the modularity of the code. It may be
+	 * called concurrently, thus the state of the run must be kept in the
+	 * context and not in the stage.
 	 * 
-	 * @param inputImage
-	 * @return Processed image from that module.
+	 * @param input
+	 * @param context
+	 * @return Processed slice from that module. It may be kept in the context
+	 *         and reused by the next run.
 	 */
-	protected ImagePlus process(ImagePlus inputImage) {
+	protected Slice process(Slice input, ProcessingContext context) {
 		// * Do nothing */
-		return getInput();
+		return input;
 	}
 
 	/***
-	 * Generates a binary mask the originally is a clone of the input image.
+	 * Clears the results of the last run that the stage keeps in the context,
+	 * before the next run, so that a failed run does not leave them to the
+	 * next slice.
 	 * 
-	 * @param input
-	 * @return the new allocated Mask
+	 * @param context
 	 */
-	protected BufferedImage cloneBufferedImage(BufferedImage input) {
-		ColorModel cModel = input.getColorModel();
-		boolean isAlphaPremultiplied = input.isAlphaPremultiplied();
-		WritableRaster maskRaster = input.copyData(null);
-
-		BufferedImage Mask = new BufferedImage(cModel, maskRaster,
-				isAlphaPremultiplied, null);
-
-		return Mask;
+	public void clearResults(ProcessingContext context) {
+		// * Nothing kept by default */
 	}
 
 	/***
-	 * Since the object.clone for ImageJ only copies bare data (doesnt copy the
-	 * image properties as calibration, info, etc), one needs to use the
-	 * Duplicator method for this.
+	 * Creates the state that the stage keeps in each
+	 * {@link ProcessingContext}, such as its scratch buffers. It is retrieved
+	 * with {@link ProcessingContext#getState(ImageProcessingClass)}.
 	 * 
-	 * Reference:http://imagej.1557.x6.nabble.com/Copying-an-8-bit-image-
-	 * td3686474.html
-	 * 
-	 * @param sourceImage
-	 * @return ImagePlus a copy of the image
+	 * @return the state of the stage, null if it has none.
 	 */
-	protected ImagePlus duplicate(ImagePlus sourceImage) {
-		return new Duplicator().run(sourceImage);
+	protected Object createState() {
+		return null;
 	}
 
+	/***
+	 * Sets the configuration of the stage. It must be called once, before the
+	 * stage is shared between threads.
+	 * 
+	 * @param conf
+	 */
 	public void setConfiguration(Configuration conf) {
 		this.conf = conf;
 	}
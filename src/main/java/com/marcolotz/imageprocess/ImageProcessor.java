@@ -24,12 +24,20 @@ import java.util.ArrayList;
 import org.apache.hadoop.conf.Configuration;
 
 import ij.ImagePlus;
-import ij.blob.Blob;
 
 /**
  * Manages all the image processing. The modules that are going to be used in
  * the processing parts should be defined on the constructor.
  * 
+ * The modules are instantiated and configured once, by the constructor. They
+ * keep no state: the scratch buffers of a run are kept in the
+ * {@link ProcessingContext} of the ImageProcessor, between runs. Thus a single
+ * ImageProcessor should be used for all the images of a thread, and the
+ * threads of a task can share the modules with
+ * {@link #ImageProcessor(ImageProcessor)}. The processor built from the
+ * configuration owns the tile scheduler, and must be shut down with
+ * {@link #shutdown()} at the end of the task.
+ * 
  * @author Marco Aurelio Lotz
  * 
  */
@@ -54,25 +62,28 @@ public class ImageProcessor {
 	// Processing Class.
 	private ImageProcessingClass nodeCandidatesDetector;
 
+	/* The state of the runs of this processor */
+	private final ProcessingContext context = new ProcessingContext();
+
 	// sequence:
 	// pre-processing -> lung extraction -> node candidates detector
 
 	// Image info
 	private String imageName;
 
-	/* Images: */
+	/* Slices: */
 
 	/* The input of the pre processor */
-	ImagePlus inputImage;
+	Slice inputSlice;
 
 	/* output of the pre processor */
-	ImagePlus preProcessedImage;
+	Slice preProcessedSlice;
 
-	/* the lung segmented image */
-	ImagePlus lungExtractedImage;
+	/* the lung segmented slice */
+	Slice lungExtractedSlice;
 
-	/* Image with the detected nodules */
-	ImagePlus nodeCandidatesImage;
+	/* Mask with the detected nodules */
+	Slice nodeCandidatesSlice;
 
 /**
  * Image processor default constructor
@@ -98,9 +109,63 @@ public class ImageProcessor {
 
 		configureProcessors(this.conf);
 
+		context.setScheduler(TileScheduler.create(this.conf));
+		context.setHounsfieldTable(new HounsfieldTable(this.conf.getFloat(
+				"com.marcolotz.hounsfield.defaultIntercept",
+				HounsfieldTable.legacyIntercept)));
+
 		// Make any possible definition that one may want.
 	}
 
+	/***
+	 * Builds the pipeline with the stages named in the configuration. It is
+	 * meant to be built once per task and run for every slice, with
+	 * {@link #setInput(Slice)} and {@link #run()}.
+	 * 
+	 * @param configuration
+	 */
+	public ImageProcessor(Configuration configuration) {
+		this(configuration.getClass("com.marcolotz.pipeline.preProcessor",
+				NullPreProcessor.class, ImageProcessingClass.class),
+				configuration.getClass("com.marcolotz.pipeline.lungExtractor",
+						TresholdLung.class, ImageProcessingClass.class),
+				configuration.getClass(
+						"com.marcolotz.pipeline.noduleDetector",
+						GrayNoduleCandidates.class, ImageProcessingClass.class),
+				configuration);
+	}
+
+	/***
+	 * Creates a processor with the same modules as the given one, and a
+	 * processing context of its own. Both processors can run at the same time
+	 * in different threads. They share the tile scheduler, but each one
+	 * builds its own Hounsfield table.
+	 * 
+	 * @param stages
+	 *            the processor that owns the modules
+	 */
+	public ImageProcessor(ImageProcessor stages) {
+		imageName = "no Image";
+
+		this.conf = stages.conf;
+		this.preProcessor = stages.preProcessor;
+		this.lungExtractor = stages.lungExtractor;
+		this.nodeCandidatesDetector = stages.nodeCandidatesDetector;
+
+		context.setScheduler(stages.context.getScheduler());
+		context.setHounsfieldTable(new HounsfieldTable(stages.context
+				.getHounsfieldTable().getDefaultIntercept()));
+	}
+
+	/***
+	 * Stops the threads of the tile scheduler. It must only be called on the
+	 * processor built from the configuration, once the processors that share
+	 * its modules are done.
+	 */
+	public void shutdown() {
+		context.getScheduler().shutdown();
+	}
+
 	private void configureProcessors(Configuration conf) {
 		preProcessor.setConfiguration(conf);
 		lungExtractor.setConfiguration(conf);
@@ -109,25 +174,39 @@ public class ImageProcessor {
 
 	/***
 	 * Main method. Defines the behavior of the ImageProcessor.
+	 * 
+	 * The results of the last run are cleared first. If a stage fails, its
+	 * exception is thrown and the results of the run are left empty, so they
+	 * are never taken for the ones of the new slice.
 	 */
 
 	public void run() {
 		startTimer();
+		clearResults();
 
 		// Put user define process sequence here.
 
-		preProcessedImage = preProcess(inputImage);
-		try {
-			lungExtractedImage = LungExtraction(preProcessedImage);
-			nodeCandidatesImage = DetectNodesCandidates(lungExtractedImage);
-		} catch (Exception e) {
-			System.out.println(e.toString());
-		}
+		preProcessedSlice = preProcess(inputSlice);
+		lungExtractedSlice = LungExtraction(preProcessedSlice);
+		nodeCandidatesSlice = DetectNodesCandidates(lungExtractedSlice);
 
 		// Stop user defined process sequence here.
 		stopTimer();
 	}
 
+	private void clearResults() {
+		preProcessedSlice = null;
+		lungExtractedSlice = null;
+		nodeCandidatesSlice = null;
+
+		for (ImageProcessingClass stage : new ImageProcessingClass[] {
+				preProcessor, lungExtractor, nodeCandidatesDetector }) {
+			if (stage != null) {
+				stage.clearResults(context);
+			}
+		}
+	}
+
 	private void stopTimer() {
 		this.totalLatency = System.currentTimeMillis() - this.startTime;
 	}
@@ -178,64 +257,89 @@ public class ImageProcessor {
 		}
 	}
 
+	/***
+	 * Sets a decoded image as the input. Its pixels are shared with the input
+	 * slice when it has 16 bits.
+	 * 
+	 * @param image
+	 */
 	public void setInput(ImagePlus image) {
-		this.inputImage = image;
+		setInput(Slice.fromImage(image));
+	}
+
+	public void setInput(Slice slice) {
+		this.inputSlice = slice;
 	}
 
-	public ImagePlus getInputImage() {
-		return this.inputImage;
+	public Slice getInputSlice() {
+		return this.inputSlice;
 	}
 
-	public ImagePlus getPreProcessedImage() {
-		return this.preProcessedImage;
+	public Slice getPreProcessedSlice() {
+		return this.preProcessedSlice;
 	}
 
+	/***
+	 * @return the lung segmented slice. It is reused by the next run.
+	 */
+	public Slice getLungExtractedSlice() {
+		return this.lungExtractedSlice;
+	}
+
+	/***
+	 * @return the mask of the detected nodule candidates. It is reused by the
+	 *         next run.
+	 */
+	public Slice getNodeCandidatesSlice() {
+		return this.nodeCandidatesSlice;
+	}
+
+	/***
+	 * @return an image over the lung segmented slice, for debugging
+	 */
 	public ImagePlus getLungExtractedImage() {
-		return this.lungExtractedImage;
+		return lungExtractedSlice.toImage("Extracted Lung");
 	}
 
-	public ImagePlus preProcess(ImagePlus input) {
+	public Slice preProcess(Slice input) {
 		// There must be a lung extractor
 		if (preProcessor == null) {
 			throw new UnsupportedOperationException("No preprocessor");
 		} else {
-			preProcessor.run(inputImage);
-			return preProcessor.getOutput();
+			return preProcessor.run(input, context);
 		}
 	}
 
-	public ImagePlus LungExtraction(ImagePlus preProcessedImage)
+	public Slice LungExtraction(Slice preProcessedSlice)
 			throws UnsupportedOperationException {
 		// There must be a lung extractor
 
 		if (this.lungExtractor == null) {
 			throw new UnsupportedOperationException("No lung Extractor");
 		} else {
-			lungExtractor.run(preProcessedImage);
-			return lungExtractor.getOutput();
+			return lungExtractor.run(preProcessedSlice, context);
 		}
 	}
 
-	public ImagePlus DetectNodesCandidates(ImagePlus lungExtractedImage)
+	public Slice DetectNodesCandidates(Slice lungExtractedSlice)
 			throws UnsupportedOperationException {
 		// There must be a Node Detector class
 		if (this.nodeCandidatesDetector == null) {
 			throw new UnsupportedOperationException("No node detection");
 		} else {
-			nodeCandidatesDetector.run(lungExtractedImage);
-			return nodeCandidatesDetector.getOutput();
+			return nodeCandidatesDetector.run(lungExtractedSlice, context);
 		}
 	}
 
 	/***
-	 * Returns an Array list with all the blobs that can be nodules TODO: Find a
-	 * way to do not force the CandidatesDetector to be of type
+	 * Returns an Array list with all the components that can be nodules TODO:
+	 * Find a way to do not force the CandidatesDetector to be of type
 	 * GrayNodeCandidates.
 	 * 
-	 * @return an array of blobs
+	 * @return an array of connected components
 	 */
-	public ArrayList<Blob> getNodeCandidates() {
+	public ArrayList<ConnectedComponent> getNodeCandidates() {
 		GrayNoduleCandidates processor = (GrayNoduleCandidates) nodeCandidatesDetector;
-		return processor.getCandidatesList();
+		return processor.getCandidatesList(context);
 	}
 }
@@ -19,8 +19,6 @@
  ******************************************************************************/
 package com.marcolotz.imageprocess;
 
-import ij.ImagePlus;
-
 /**
  * This class basically return its input value. It is used as a wildcard in
  * order to keep the modularity of the code.
@@ -34,8 +32,8 @@ import ij.ImagePlus;
 public class NullPreProcessor extends ImageProcessingClass {
 
 	@Override
-	protected ImagePlus process(ImagePlus inputImage) {
+	protected Slice process(Slice input, ProcessingContext context) {
 		// Makes no process on the original image.
-		return this.getInput();
+		return input;
 	}
 }
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The state of the image processing of one slice at a time. The processing
+ * stages keep no state of their own: the scratch buffers they need and the
+ * results besides their output image are kept in the context that is passed
+ * to {@link ImageProcessingClass#process(Slice, ProcessingContext)}.
+ * Thus a single stage instance may be run by many threads at once, each one
+ * with its own context.
+ * 
+ * A context is not thread-safe. It is meant to be reused for the next slices
+ * of the same thread, so the buffers of the stages are only allocated again
+ * when the slice size changes. The stages may split the work on a slice with
+ * the {@link TileScheduler} of the context, and classify the pixels with its
+ * {@link HounsfieldTable}.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ProcessingContext {
+
+	/* The state of each stage, created by the stage on its first run */
+	private final Map<ImageProcessingClass, Object> states = new IdentityHashMap<ImageProcessingClass, Object>();
+
+	/* Latency of the last stage run, in milliseconds */
+	private long latency;
+
+	/* Runs the bands of a slice, may be shared with other contexts */
+	private TileScheduler scheduler = TileScheduler.sequential();
+
+	/* Classifies the stored values, for the series being processed */
+	private HounsfieldTable hounsfieldTable = new HounsfieldTable(
+			HounsfieldTable.legacyIntercept);
+
+	/***
+	 * Returns the state that the stage keeps in this context, creating it
+	 * with {@link ImageProcessingClass#createState()} on the first call.
+	 * 
+	 * @param stage
+	 * @return the state of the stage, or null if the stage has none.
+	 */
+	public Object getState(ImageProcessingClass stage) {
+		Object state = states.get(stage);
+		if (state == null && !states.containsKey(stage)) {
+			state = stage.createState();
+			states.put(stage, state);
+		}
+		return state;
+	}
+
+	public TileScheduler getScheduler() {
+		return scheduler;
+	}
+
+	void setScheduler(TileScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public HounsfieldTable getHounsfieldTable() {
+		return hounsfieldTable;
+	}
+
+	void setHounsfieldTable(HounsfieldTable hounsfieldTable) {
+		this.hounsfieldTable = hounsfieldTable;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	void setLatency(long latency) {
+		this.latency = latency;
+	}
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+/**
+ * The per-pixel loops of the segmentation stages. Each kernel makes a single
+ * pass over the pixel arrays of the slices and masks, without any method call
+ * or allocation per pixel, and without branches on the pixel values: the
+ * pixels are selected by a lookup in a {@link HounsfieldTable}, so the loops
+ * do not pay for mispredictions on the noisy lung borders, and any
+ * calibration of the slice costs the same.
+ * 
+ * The lung mask is a packed {@link BitMask}, which the kernels fill and read a
+ * word of 64 pixels at a time. The candidates mask is an 8 bits binary mask,
+ * as the component labeler uses it: 255 (-1 as a byte) is selected, 0 is not.
+ * 
+ * The loops over plain arrays have no dependency between the pixels, so the
+ * JIT compiler can run them on the SIMD units of the processor. The rescale
+ * kernel has two paths: integer lanes, which are vectorized, for the usual
+ * integer slope and intercept, and a scalar floating point loop for the
+ * others. Setting the system property com.marcolotz.kernels.scalar to true
+ * always selects the scalar path.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public final class SegmentationKernels {
+
+	/* The stored values times these slopes still fit in an int */
+	private static final int maximumLaneSlope = Short.MAX_VALUE;
+	private static final int maximumLaneIntercept = 1 << 24;
+
+	private static final boolean lanesEnabled = !Boolean
+			.getBoolean("com.marcolotz.kernels.scalar");
+
+	private SegmentationKernels() {
+	}
+
+	/***
+	 * Selects the pixels whose entry of a {@link HounsfieldTable} has the bit
+	 * set.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice
+	 * @param table
+	 *            the bits of the table, for the calibration of the slice
+	 * @param bit
+	 *            the bit of the selected range
+	 * @param mask
+	 *            output mask, of the same size
+	 */
+	public static void select(short[] pixels, byte[] table, int bit,
+			BitMask mask) {
+		select(pixels, 0, table, bit, mask);
+	}
+
+	/***
+	 * Selects the pixels of a band of rows whose entry of a
+	 * {@link HounsfieldTable} has the bit set. The first row of the mask is
+	 * the given row of the slice.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice, as wide as the mask
+	 * @param firstRow
+	 *            row of the slice of the first row of the mask
+	 * @param table
+	 *            the bits of the table, for the calibration of the slice
+	 * @param bit
+	 *            the bit of the selected range
+	 * @param mask
+	 *            output mask, as tall as the band
+	 */
+	public static void select(short[] pixels, int firstRow, byte[] table,
+			int bit, BitMask mask) {
+		int width = mask.getWidth();
+		int wordsPerRow = mask.getWordsPerRow();
+		long[] words = mask.getWords();
+		int selected = 1 << bit;
+
+		for (int y = 0; y < mask.getHeight(); y++) {
+			int offset = (firstRow + y) * width;
+			for (int index = 0; index < wordsPerRow; index++) {
+				int x = index << 6;
+				int end = Math.min(x + 64, width);
+				long word = 0;
+				for (; x < end; x++) {
+					/*
+					 * The bit of the pixel lands on x + bit, modulo 64, which
+					 * is a different position for each pixel of the word
+					 */
+					word |= Long.rotateLeft(table[pixels[offset + x] & 0xFFFF]
+							& selected, x);
+				}
+				words[y * wordsPerRow + index] = Long.rotateRight(word, bit);
+			}
+		}
+	}
+
+	/***
+	 * Selects the pixels whose entry of a {@link HounsfieldTable} has the bit
+	 * set.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice
+	 * @param table
+	 *            the bits of the table, for the calibration of the slice
+	 * @param bit
+	 *            the bit of the selected range
+	 * @param mask
+	 *            output mask, of the same size
+	 */
+	public static void select(short[] pixels, byte[] table, int bit,
+			byte[] mask) {
+		select(pixels, table, bit, mask, 0, pixels.length);
+	}
+
+	/***
+	 * Selects the pixels from the index from (inclusive) to the index to
+	 * (exclusive) whose entry of a {@link HounsfieldTable} has the bit set.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice
+	 * @param table
+	 *            the bits of the table, for the calibration of the slice
+	 * @param bit
+	 *            the bit of the selected range
+	 * @param mask
+	 *            output mask, of the same size
+	 * @param from
+	 * @param to
+	 */
+	public static void select(short[] pixels, byte[] table, int bit,
+			byte[] mask, int from, int to) {
+		for (int i = from; i < to; i++) {
+			/* All ones when the bit is set */
+			mask[i] = (byte) -((table[pixels[i] & 0xFFFF] >> bit) & 1);
+		}
+	}
+
+	/***
+	 * Copies the selected pixels of a packed mask and sets the others to the
+	 * background value.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice
+	 * @param mask
+	 *            selection mask, of the same size
+	 * @param background
+	 *            value of the pixels that are not selected
+	 * @param output
+	 *            output stored values, of the same size. It may be the input
+	 *            array.
+	 */
+	public static void extract(short[] pixels, BitMask mask, int background,
+			short[] output) {
+		extract(pixels, mask, background, output, 0, mask.getHeight());
+	}
+
+	/***
+	 * Copies the selected pixels of the rows from firstRow (inclusive) to
+	 * endRow (exclusive), and sets the others to the background value.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice
+	 * @param mask
+	 *            selection mask, of the same size
+	 * @param background
+	 *            value of the pixels that are not selected
+	 * @param output
+	 *            output stored values, of the same size. It may be the input
+	 *            array.
+	 * @param firstRow
+	 * @param endRow
+	 */
+	public static void extract(short[] pixels, BitMask mask, int background,
+			short[] output, int firstRow, int endRow) {
+		int width = mask.getWidth();
+		int wordsPerRow = mask.getWordsPerRow();
+		long[] words = mask.getWords();
+
+		for (int y = firstRow; y < endRow; y++) {
+			int offset = y * width;
+			for (int index = 0; index < wordsPerRow; index++) {
+				long word = words[y * wordsPerRow + index];
+				int x = index << 6;
+				int end = Math.min(x + 64, width);
+				for (; x < end; x++) {
+					/* All ones when the bit of the pixel is set */
+					int selected = -(int) ((word >>> x) & 1);
+					output[offset + x] = (short) ((pixels[offset + x] & selected) | (background & ~selected));
+				}
+			}
+		}
+	}
+
+	/***
+	 * @param slope
+	 * @param intercept
+	 * @return true if {@link #rescale} runs the integer lanes for these
+	 *         parameters.
+	 */
+	public static boolean hasLaneRescale(double slope, double intercept) {
+		return lanesEnabled && slope == Math.rint(slope)
+				&& Math.abs(slope) <= maximumLaneSlope
+				&& intercept == Math.rint(intercept)
+				&& Math.abs(intercept) <= maximumLaneIntercept;
+	}
+
+	/***
+	 * Calibrates the pixels from the index from (inclusive) to the index to
+	 * (exclusive): intercept + slope * stored value, rounded and clamped to
+	 * the range of a short. For CT slices the output is in Hounsfield units.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice
+	 * @param slope
+	 * @param intercept
+	 * @param output
+	 *            calibrated values, of the same size. It may be the input
+	 *            array.
+	 * @param from
+	 * @param to
+	 */
+	public static void rescale(short[] pixels, double slope, double intercept,
+			short[] output, int from, int to) {
+		if (hasLaneRescale(slope, intercept)) {
+			rescaleLanes(pixels, (int) slope, (int) intercept, output, from,
+					to);
+		} else {
+			rescaleScalar(pixels, slope, intercept, output, from, to);
+		}
+	}
+
+	/***
+	 * The rescale in integer arithmetic, which the JIT compiler vectorizes.
+	 * The slope must be at most 32767 and the intercept
+	 * at most 2^24 in absolute value, so that no product overflows.
+	 * 
+	 * @see #rescale(short[], double, double, short[], int, int)
+	 */
+	public static void rescaleLanes(short[] pixels, int slope, int intercept,
+			short[] output, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int value = (pixels[i] & 0xFFFF) * slope + intercept;
+			output[i] = (short) Math.max(
+					Math.min(value, Short.MAX_VALUE), Short.MIN_VALUE);
+		}
+	}
+
+	/***
+	 * The rescale in floating point, for any slope and intercept.
+	 * 
+	 * @see #rescale(short[], double, double, short[], int, int)
+	 */
+	public static void rescaleScalar(short[] pixels, double slope,
+			double intercept, short[] output, int from, int to) {
+		for (int i = from; i < to; i++) {
+			long value = Math.round((pixels[i] & 0xFFFF) * slope + intercept);
+			output[i] = (short) Math.max(
+					Math.min(value, Short.MAX_VALUE), Short.MIN_VALUE);
+		}
+	}
+
+	/***
+	 * Adds the stored values from the index from (inclusive) to the index to
+	 * (exclusive) to a histogram. The bins are not cleared, so the bands of a
+	 * slice can be added one after the other.
+	 * 
+	 * A single array of bins is the fastest on CT slices: splitting the counts
+	 * in interleaved sub-histograms, to avoid the stalls on repeated values,
+	 * costs more in the final sum than it saves.
+	 * 
+	 * @param pixels
+	 *            stored values of a slice
+	 * @param from
+	 * @param to
+	 * @param bins
+	 *            65536 counters, one per stored value
+	 */
+	public static void histogram(short[] pixels, int from, int to, int[] bins) {
+		for (int i = from; i < to; i++) {
+			bins[pixels[i] & 0xFFFF]++;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+/**
+ * A single image as the processing stages see it: the 16 bits stored pixel
+ * values, in rows, with the size of the pixels and the rescale parameters of
+ * the slice. The stored values are unsigned, as ImageJ decodes them, and the
+ * calibrated value of a pixel (Hounsfield units for CT) is intercept + slope *
+ * value.
+ * 
+ * ImagePlus objects are only used at the edges of the pipeline: the decoded
+ * DICOM is adapted with {@link #fromImage(ImagePlus)} and a result can be
+ * shown with {@link #toImage(String)}. Both share the pixel array of 16 bits
+ * images instead of copying it.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class Slice {
+
+	private final int width;
+	private final int height;
+	private final short[] pixels;
+
+	/* Physical size of a pixel, 1 if unknown */
+	private double pixelWidth = 1;
+	private double pixelHeight = 1;
+
+	/* Calibrated value = intercept + slope * stored value */
+	private double rescaleSlope = 1;
+	private double rescaleIntercept = 0;
+
+	/***
+	 * Creates a slice with all the pixels set to 0.
+	 * 
+	 * @param width
+	 * @param height
+	 */
+	public Slice(int width, int height) {
+		this(width, height, new short[width * height]);
+	}
+
+	/***
+	 * Creates a slice over the given pixels. The array is not copied.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param pixels
+	 *            width x height stored values, in rows
+	 */
+	public Slice(int width, int height, short[] pixels) {
+		if (pixels.length != width * height) {
+			throw new IllegalArgumentException("Expected " + width * height
+					+ " pixels, found " + pixels.length);
+		}
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+	}
+
+	/***
+	 * Adapts an ImageJ image. The pixels of 16 bits images are shared, other
+	 * types are converted to 16 bits without scaling.
+	 * 
+	 * @param image
+	 * @return the slice of the current processor of the image
+	 */
+	public static Slice fromImage(ImagePlus image) {
+		ij.process.ImageProcessor processor = image.getProcessor();
+		if (!(processor instanceof ShortProcessor)) {
+			processor = processor.convertToShort(false);
+		}
+
+		Slice slice = new Slice(processor.getWidth(), processor.getHeight(),
+				(short[]) processor.getPixels());
+
+		Calibration calibration = image.getCalibration();
+		slice.pixelWidth = calibration.pixelWidth;
+		slice.pixelHeight = calibration.pixelHeight;
+
+		double[] coefficients = calibration.getCoefficients();
+		if (calibration.getFunction() == Calibration.STRAIGHT_LINE
+				&& coefficients != null && coefficients.length >= 2) {
+			slice.rescaleIntercept = coefficients[0];
+			slice.rescaleSlope = coefficients[1];
+		}
+
+		return slice;
+	}
+
+	/***
+	 * Adapts the slice to an ImageJ image, sharing its pixels.
+	 * 
+	 * @param title
+	 * @return a 16 bits image with the calibration of the slice
+	 */
+	public ImagePlus toImage(String title) {
+		ImagePlus image = new ImagePlus(title, new ShortProcessor(width,
+				height, pixels, null));
+
+		Calibration calibration = image.getCalibration();
+		calibration.pixelWidth = pixelWidth;
+		calibration.pixelHeight = pixelHeight;
+		if (rescaleSlope != 1 || rescaleIntercept != 0) {
+			calibration.setFunction(Calibration.STRAIGHT_LINE, new double[] {
+					rescaleIntercept, rescaleSlope }, "Gray Value");
+		}
+
+		return image;
+	}
+
+	/***
+	 * Returns a slice of the given size, reusing the previous one if it
+	 * already has that size. The content of a reused slice is kept.
+	 * 
+	 * @param previous
+	 *            may be null
+	 * @param width
+	 * @param height
+	 * @return a slice of width x height pixels
+	 */
+	public static Slice reuse(Slice previous, int width, int height) {
+		if (previous != null && previous.width == width
+				&& previous.height == height) {
+			return previous;
+		}
+		return new Slice(width, height);
+	}
+
+	/***
+	 * Copies the pixel size and the rescale parameters of another slice.
+	 * 
+	 * @param source
+	 */
+	public void setCalibration(Slice source) {
+		this.pixelWidth = source.pixelWidth;
+		this.pixelHeight = source.pixelHeight;
+		this.rescaleSlope = source.rescaleSlope;
+		this.rescaleIntercept = source.rescaleIntercept;
+	}
+
+	/***
+	 * @param index
+	 *            y * width + x
+	 * @return the stored value of the pixel, from 0 to 65535
+	 */
+	public int get(int index) {
+		return pixels[index] & 0xFFFF;
+	}
+
+	/***
+	 * @param index
+	 *            y * width + x
+	 * @param value
+	 *            the stored value, from 0 to 65535
+	 */
+	public void set(int index, int value) {
+		pixels[index] = (short) value;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/***
+	 * @return the stored values, in rows. Read them with & 0xFFFF.
+	 */
+	public short[] getPixels() {
+		return pixels;
+	}
+
+	public double getPixelWidth() {
+		return pixelWidth;
+	}
+
+	public void setPixelWidth(double pixelWidth) {
+		this.pixelWidth = pixelWidth;
+	}
+
+	public double getPixelHeight() {
+		return pixelHeight;
+	}
+
+	public void setPixelHeight(double pixelHeight) {
+		this.pixelHeight = pixelHeight;
+	}
+
+	public double getRescaleSlope() {
+		return rescaleSlope;
+	}
+
+	public void setRescaleSlope(double rescaleSlope) {
+		this.rescaleSlope = rescaleSlope;
+	}
+
+	public double getRescaleIntercept() {
+		return rescaleIntercept;
+	}
+
+	public void setRescaleIntercept(double rescaleIntercept) {
+		this.rescaleIntercept = rescaleIntercept;
+	}
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Splits a slice into bands of whole rows and runs a task on each band, on a
+ * ForkJoinPool. It lowers the latency of a single large slice, when there are
+ * not enough slices to keep the cores busy, as in an interactive run over a
+ * single study.
+ * 
+ * The bands have at least a minimum number of rows, so that the halo rows
+ * that a neighbourhood operation reads from the next bands stay a small part
+ * of the band. The band limits only depend on the slice height and on the
+ * parallelism, thus a stage may keep per band buffers between slices.
+ * 
+ * Without a pool, or for small slices, the whole slice is a single band run
+ * by the calling thread. A scheduler is thread-safe and may be shared by all
+ * the threads of a task. Its pool is created once per task, and must be shut
+ * down with {@link #shutdown()} when the task is done.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class TileScheduler {
+
+	/***
+	 * The work done on each band.
+	 */
+	public interface BandTask {
+		/***
+		 * Processes the rows from firstRow (inclusive) to endRow (exclusive).
+		 * It runs concurrently with the other bands of the slice.
+		 * 
+		 * @param band
+		 *            index of the band, from 0
+		 * @param firstRow
+		 * @param endRow
+		 */
+		void run(int band, int firstRow, int endRow);
+	}
+
+	private static final TileScheduler sequential = new TileScheduler(null, 1);
+
+	/* Null if the bands run on the calling thread */
+	private final ForkJoinPool pool;
+	private final int minimumRows;
+
+	/***
+	 * @param pool
+	 *            the pool that runs the bands, or null to run them on the
+	 *            calling thread
+	 * @param minimumRows
+	 *            minimum number of rows of a band
+	 */
+	public TileScheduler(ForkJoinPool pool, int minimumRows) {
+		this.pool = pool;
+		this.minimumRows = Math.max(minimumRows, 1);
+	}
+
+	/***
+	 * @return a scheduler that processes every slice as a single band.
+	 */
+	public static TileScheduler sequential() {
+		return sequential;
+	}
+
+	/***
+	 * Creates the scheduler defined by the configuration. The pool has
+	 * com.marcolotz.tiles.threads threads, and no pool is created if it is 1.
+	 * 
+	 * @param conf
+	 * @return the scheduler
+	 */
+	public static TileScheduler create(Configuration conf) {
+		int threads = conf.getInt("com.marcolotz.tiles.threads", 1);
+		int minimumRows = conf.getInt("com.marcolotz.tiles.minimumRows", 256);
+
+		if (threads <= 1) {
+			return sequential;
+		}
+		return new TileScheduler(new ForkJoinPool(threads), minimumRows);
+	}
+
+	/***
+	 * Stops the threads of the pool, if any. The scheduler must not be used
+	 * afterwards.
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	/***
+	 * @param height
+	 *            of the slice
+	 * @return the number of bands of a slice
+	 */
+	public int getBandCount(int height) {
+		if (pool == null) {
+			return 1;
+		}
+		return Math.max(Math.min(pool.getParallelism(), height / minimumRows),
+				1);
+	}
+
+	/***
+	 * @param band
+	 *            index of the band, up to the band count, which gives the
+	 *            height
+	 * @param height
+	 *            of the slice
+	 * @return the first row of the band
+	 */
+	public int getBandStart(int band, int height) {
+		return (int) ((long) band * height / getBandCount(height));
+	}
+
+	/***
+	 * Runs the task on every band of the slice, and returns when all of them
+	 * finished. An exception thrown by a band is thrown again here.
+	 * 
+	 * @param height
+	 *            of the slice
+	 * @param task
+	 */
+	public void run(int height, BandTask task) {
+		int bands = getBandCount(height);
+
+		if (bands == 1) {
+			task.run(0, 0, height);
+			return;
+		}
+		pool.invoke(new BandAction(task, height, 0, bands));
+	}
+
+	/***
+	 * Splits the bands in halves until a single one is left.
+	 */
+	private class BandAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final BandTask task;
+		private final int height;
+		private final int firstBand;
+		private final int endBand;
+
+		BandAction(BandTask task, int height, int firstBand, int endBand) {
+			this.task = task;
+			this.height = height;
+			this.firstBand = firstBand;
+			this.endBand = endBand;
+		}
+
+		@Override
+		protected void compute() {
+			if (endBand - firstBand == 1) {
+				task.run(firstBand, getBandStart(firstBand, height),
+						getBandStart(firstBand + 1, height));
+				return;
+			}
+
+			int middle = (firstBand + endBand) >>> 1;
+			invokeAll(new BandAction(task, height, firstBand, middle),
+					new BandAction(task, height, middle, endBand));
+		}
+	}
+}
@@ -19,301 +19,234 @@
  ******************************************************************************/
 package com.marcolotz.imageprocess;
 
-import ij.ImagePlus;
-import ij.blob.Blob;
-import ij.blob.ManyBlobs;
-import ij.process.ByteProcessor;
-
-import java.awt.Color;
-import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
-import java.util.Iterator;
-
-import mmorpho.Constants;
-import mmorpho.MorphoProcessor;
-import mmorpho.StructureElement;
+import org.apache.hadoop.conf.Configuration;
 
 /**
  * Threshold processing module. Extracts the lungs first using a mask based in
- * the gray value (HU scale) of the pixels. Later performs an opening
+ * the gray value (HU scale) of the pixels. Later performs a closing
  * (morphological operator) and then selects the desired connected components.
  * 
+ * The masks and the output image are kept in the {@link ProcessingContext} of
+ * the run, and only allocated again when the slice size changes, since a map
+ * task processes thousands of slices of a few sizes. The stage itself has no
+ * state.
+ * 
+ * Every step runs on the bands of rows of the {@link TileScheduler} of the
+ * context. The threshold and the closing of a band include the halo rows
+ * that the closing reads from the bands next to it.
+ * 
  * @author Marco Aurelio Lotz
  * 
  */
 public class TresholdLung extends ImageProcessingClass {
 
-	private BufferedImage binaryMask;
+	/***
+	 * The buffers of a run of the stage.
+	 */
+	private static class State {
+		/* Packed binary masks: thresholded and closed, and lungs only */
+		BitMask binaryMask;
+		BitMask lungMask;
 
-	// A 8 bit depth version of the DICOM file
-	private BufferedImage eightBitDICOM;
+		/* Each band of rows is thresholded and closed with its halo rows */
+		BitMask[] bandMasks = new BitMask[0];
+
+		/* The closing operators keep the buffers of the last band size */
+		BinaryMorphology[] morphologies = new BinaryMorphology[0];
+		final int closingRadius;
+
+		final BorderFill borderFill = new BorderFill();
+
+		/* The output, reused while the slices have the same size */
+		Slice lungSlice;
+
+		State(int closingRadius) {
+			this.closingRadius = closingRadius;
+		}
+	}
 
 	// For debug purposes:
 	//private ImageViewer imgDebug = new ImageViewer();
 
 	/**
 	 * Gray Threshold defined in the reference papers in order to extract lung
-	 * parenchyma and background. It's based in the Hounsfield scale.
+	 * parenchyma and background. It's based in the Hounsfield scale, and the
+	 * {@link HounsfieldTable} of the context applies the rescale of each
+	 * series to it.
 	 */
 	private static final int GrayThreshold = -375;
 
-	/***qq
-	 * Offset of the calibration device
+	/***
+	 * Selects the colour of the background on the output image, in Hounsfield
+	 * units. It is stored as 2000 in the series stored as HU + 1000.
 	 */
-	private static final int CalibrationOffset = 1000;
+	private static final int outputBackGroundColour = 1000;
 
 	/***
-	 * Selects the colour of the background on the output image
+	 * Radius of the disk used to close the mask, in pixels. The closing of the
+	 * packed mask handles 64 pixels per word operation, thus its cost grows
+	 * slowly with the radius.
 	 */
-	private static final int outputBackGroundColour = 2000;
+	private int circleRadius = 4;
 
-	// Conversion referenced at:
-	// http://imagej.1557.x6.nabble.com/Hounsfield-Unit-conversion-td3686965.html
+	@Override
+	protected Object createState() {
+		return new State(circleRadius);
+	}
 
-	private static final int GrayThresholdNormalized = GrayThreshold
-			+ CalibrationOffset;
+	@Override
+	public void setConfiguration(Configuration conf) {
+		super.setConfiguration(conf);
 
-	private static final int circleRadius = 4;
+		circleRadius = conf.getInt("com.marcolotz.tresholdLung.closingRadius",
+				4);
+	}
 
 	@Override
-	protected ImagePlus process(ImagePlus inputImage) {
-		
-		/* Generates an 8 bits version of the input image */
-		eightBitDICOM = inputImage.getBufferedImage();
+	protected Slice process(final Slice input, ProcessingContext context) {
+		final State state = (State) context.getState(this);
+		TileScheduler scheduler = context.getScheduler();
+
+		// Classifies the stored values with the calibration of the slice
+		HounsfieldTable table = context.getHounsfieldTable();
+		final int lungBit = table.rangeBit(Double.NEGATIVE_INFINITY,
+				GrayThreshold);
+		final byte[] tableBits = table.getBits(input);
 
 		/*
-		 * Generates a mask from the eightBitDicom .The 8 bits depth is used for
-		 * the mask since the morphological operator and the blob processor
-		 * require this exact bit depth. The content of the mask itself is not
-		 * used for the output image. Thus, the output image still has 16 bits
-		 * depth.
+		 * Allocates the masks, if the slice size changed. The masks are packed,
+		 * one bit per pixel. The content of the mask itself is not used for
+		 * the output image. Thus, the output image still has 16 bits depth.
 		 */
-		this.binaryMask = cloneBufferedImage(eightBitDICOM);
-
-		// Generates the gray threshold mask
-		GrayThresholdSegmentate(inputImage);
-
-		// Morphological closing on the Mask
-		closeMask(circleRadius);
+		allocateMasks(state, input.getWidth(), input.getHeight(),
+				scheduler.getBandCount(input.getHeight()));
+
+		// Thresholds and closes the bands of rows at the same time
+		scheduler.run(input.getHeight(), new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				segmentBand(input, tableBits, lungBit, state, band, firstRow,
+						endRow);
+			}
+		});
 
 		// Select the connected components that don't touch
 		// the margin from the mask and removes holes.
-		removeBackground();
+		removeBackground(state, scheduler);
 
 		// Extracts the Lungs using the mask
-		this.output = extractLungs16Bits(inputImage);
-
-		return this.output;
+		return extractLungs16Bits(input, state,
+				table.getStoredValue(outputBackGroundColour), scheduler);
 	}
 
-	/***
-	 * updates the value of the binaryMask (8 bits binary mask) attribute based
-	 * on the pixel intensity and the threshold used on the original image.
-	 * 
-	 * @param input
-	 */
-	private void GrayThresholdSegmentate(ImagePlus input) {
-		WritableRaster maskRaster = binaryMask.getRaster();
-
-		int[] mArray = new int[1];
-		int[] pixelValue = new int[1];
-
-		for (int ycoord = 0; ycoord < input.getHeight(); ycoord++) {
-			for (int xcoord = 0; xcoord < input.getWidth(); xcoord++) {
-
-				// Gets pixel value
-				pixelValue = input.getPixel(xcoord, ycoord);
-
-				// If higher than the threshold, set as black:
-				if (pixelValue[0] > GrayThresholdNormalized) {
-					mArray[0] = 0;
-					maskRaster.setPixel(xcoord, ycoord, mArray);
-				} else {
-					// Otherwise sets as white:
-					mArray[0] = 255;
-					maskRaster.setPixel(xcoord, ycoord, mArray);
-				}
+	private void allocateMasks(State state, int width, int height, int bands) {
+		state.binaryMask = BitMask.reuse(state.binaryMask, width, height);
+		state.lungMask = BitMask.reuse(state.lungMask, width, height);
+
+		if (state.morphologies.length != bands) {
+			state.bandMasks = new BitMask[bands];
+			state.morphologies = new BinaryMorphology[bands];
+			for (int band = 0; band < bands; band++) {
+				state.morphologies[band] = new BinaryMorphology(
+						state.closingRadius);
 			}
 		}
 	}
 
 	/***
-	 * Performs a morphological closing on the binaryMask.
-	 * 
-	 * @param circleRadius
-	 *            : Circle Radius in pixels.
+	 * Thresholds and closes a band of rows. The closing of a row reads the
+	 * rows up to twice the radius away, so those halo rows are thresholded
+	 * and closed with the band, and only the rows of the band itself are
+	 * copied to the binaryMask.
 	 */
-	private void closeMask(int circleRadius) {
-		/* A closing is a dilation operation followed by an erosion */
+	private void segmentBand(Slice input, byte[] tableBits, int lungBit,
+			State state, int band, int firstRow, int endRow) {
+		int halo = 2 * state.closingRadius;
+		int haloFirst = Math.max(firstRow - halo, 0);
+		int haloEnd = Math.min(endRow + halo, input.getHeight());
 
-		ByteProcessor bp = new ByteProcessor(this.binaryMask);
+		BitMask bandMask = BitMask.reuse(state.bandMasks[band],
+				input.getWidth(), haloEnd - haloFirst);
+		state.bandMasks[band] = bandMask;
 
-		StructureElement se = new StructureElement(Constants.CIRCLE, 0,
-				circleRadius, Constants.OFFSET0);
-		MorphoProcessor mp = new MorphoProcessor(se);
+		// Generates the gray threshold mask
+		GrayThresholdSegmentate(input, tableBits, lungBit, haloFirst,
+				bandMask);
 
-		mp.close(bp);
+		// Morphological closing on the Mask
+		closeMask(state.morphologies[band], bandMask);
 
-		binaryMask = bp.getBufferedImage();
+		state.binaryMask.copyRows(bandMask, firstRow - haloFirst, firstRow,
+				endRow - firstRow);
 	}
 
 	/***
-	 * Separates lungs from background using a connected components method. It
-	 * assumes that the components that are background touch the margins. Also,
-	 * it removes any holes that may be inside the components that do not touch
-	 * the margins. Updates the Object Binary Mask with only the lung values
-	 * (only components that do not touch the margin).
+	 * updates the value of a band of the binary mask (packed binary mask)
+	 * based on the pixel intensity and the threshold used on the original
+	 * image.
+	 * 
+	 * @param input
+	 * @param tableBits
+	 *            the Hounsfield table, for the calibration of the input
+	 * @param lungBit
+	 *            the bit of the table of the values at most the threshold
+	 * @param firstRow
+	 *            row of the input of the first row of the mask
+	 * @param binaryMask
 	 */
-
-	private void removeBackground() {
-
-		Blob blob;
-
-		/*
-		 * Defines the colour that the blob will be displayed when using the
-		 * draw method
-		 */
-
-		Blob.setDefaultColor(Color.WHITE);
-
-		// Generates a new processor with the dimensions of the binary mask??
-		ByteProcessor NewProcessor = new ByteProcessor(binaryMask.getWidth(),
-				binaryMask.getHeight());
-
-		ImagePlus ip = new ImagePlus("Closed Mask", this.binaryMask);
-		ManyBlobs mb = new ManyBlobs(ip);
-
-		// Define as background (not an object) the black areas (0);
-		mb.setBackground(0);
-		mb.findConnectedComponents();
-
-		System.out.println("Found " + mb.size() + " components!");
-
-		// Removes the blobs that touch the margin
-
-		int xcoord = 0;
-		int ycoord = 0;
-
-		// Looks for blobs that contain pixels in the margins:
-		for (xcoord = 0; xcoord < this.binaryMask.getWidth(); xcoord++) {
-
-			for (ycoord = 0; ycoord < this.binaryMask.getHeight(); ycoord++) {
-
-				// If the coordinate is a margin value:
-				if ((xcoord == 0) || (xcoord == this.binaryMask.getWidth())
-						|| (ycoord == 0)
-						|| (ycoord == this.binaryMask.getHeight())) {
-					blob = mb.getSpecificBlob(xcoord, ycoord);
-					// If there is actually a blob with that pixel, remove from
-					// the list.
-					if (blob != null) {
-						mb.remove(blob);
-					}
-				}
-			}
-		}
-
-		/*
-		 * Print only those blobs that don't touch the margin on a new mask.
-		 * Draw those blobs without holes.
-		 */
-
-		Iterator<Blob> blobIter = mb.listIterator(0);
-		while (blobIter.hasNext()) {
-			blobIter.next().draw(NewProcessor, 0);
-		}
-
-		// Updates the object binaryMask attribute.
-		binaryMask = NewProcessor.getBufferedImage();
+	private void GrayThresholdSegmentate(Slice input, byte[] tableBits,
+			int lungBit, int firstRow, BitMask binaryMask) {
+		// If higher than the threshold, set as black, otherwise white:
+		SegmentationKernels.select(input.getPixels(), firstRow, tableBits,
+				lungBit, binaryMask);
 	}
 
 	/***
-	 * Uses the current mask to extract only the lungs. The returned image has 8
-	 * bits depth.
+	 * Performs a morphological closing on a band of the binary mask, using a
+	 * circle of circleRadius pixels.
 	 */
-	@SuppressWarnings("unused")
-	private ImagePlus extractLungs8Bits() {
-		int xcoord = 0;
-		int ycoord = 0;
-
-		int[] maskPixelValue = new int[1];
-		int[] InputPixelValue = new int[1];
-
-		int[] tmpMask = new int[1];
-		int[] tmpInput = new int[1];
-
-		BufferedImage bufferedOutput = cloneBufferedImage(eightBitDICOM);
-
-		WritableRaster maskRaster = binaryMask.getRaster();
-		WritableRaster inputRaster = eightBitDICOM.getRaster();
-		WritableRaster outputRaster = bufferedOutput.getRaster();
-
-		for (ycoord = 0; ycoord < binaryMask.getHeight(); ycoord++) {
-			for (xcoord = 0; xcoord < binaryMask.getWidth(); xcoord++) {
-				tmpMask[0] = 0;
-				tmpInput[0] = 0;
-
-				maskPixelValue = maskRaster.getPixel(xcoord, ycoord, tmpMask);
-
-				// It is in 8 bits depth
-				if (maskPixelValue[0] == 255) {
-					InputPixelValue = inputRaster.getPixel(xcoord, ycoord,
-							tmpInput);
-				} else {
-					// Originally was 0, but 255 makes the visualization easier.
-					InputPixelValue[0] = outputBackGroundColour;
-				}
-
-				outputRaster.setPixel(xcoord, ycoord, InputPixelValue);
-			}
-		}
-
-		ImagePlus output = new ImagePlus("Extracted Lung", bufferedOutput);
+	private void closeMask(BinaryMorphology morphology, BitMask binaryMask) {
+		/* A closing is a dilation operation followed by an erosion */
+		morphology.close(binaryMask);
+	}
 
-		return output;
+	/***
+	 * Separates lungs from background using a connected components method. It
+	 * assumes that the components that are background touch the margins: they
+	 * are the ones with a run of pixels on any of the four borders of the
+	 * image.
+	 * Also, it removes any holes that may be inside the components that do not
+	 * touch the margins. Updates the lungMask with only the lung values (only
+	 * components that do not touch the margin).
+	 */
+	private void removeBackground(State state, TileScheduler scheduler) {
+		state.borderFill.removeBorderComponents(state.binaryMask,
+				state.lungMask, scheduler);
 	}
 
 	/***
 	 * Uses the current mask to extract only the lungs from the original image.
-	 * The returned image has 16 bits depth.
+	 * The returned slice has the calibration of the original one, and the
+	 * background is the stored value of the background colour.
 	 */
 
-	private ImagePlus extractLungs16Bits(ImagePlus inputImage) {
-
-		// Generates a new image with all the original image metadata.
-		ImagePlus BufferedOutput = duplicate(inputImage);
-
-		ij.process.ImageProcessor imgProcessor = BufferedOutput.getProcessor();
-
-		int xcoord = 0;
-		int ycoord = 0;
-
-		int[] maskPixelValue = new int[1];
-		int[] inputPixelValue = new int[1];
-
-		int[] tmpMask = new int[1];
-		int[] tmpInput = new int[1];
-
-		WritableRaster maskRaster = binaryMask.getRaster();
-
-		for (ycoord = 0; ycoord < binaryMask.getHeight(); ycoord++) {
-			for (xcoord = 0; xcoord < binaryMask.getWidth(); xcoord++) {
-				tmpMask[0] = 0;
-				tmpInput[0] = 0;
-
-				maskPixelValue = maskRaster.getPixel(xcoord, ycoord, tmpMask);
-
-				// Assuming the the bitDepth of the mask is 8.
-				if (maskPixelValue[0] == 255) {
-					inputPixelValue = inputImage.getPixel(xcoord, ycoord);
-				} else {
-					// Originally was 0, but 255 makes the visualization easier.
-					inputPixelValue[0] = outputBackGroundColour;
-				}
-				imgProcessor.set(xcoord, ycoord, inputPixelValue[0]);
+	private Slice extractLungs16Bits(final Slice input, final State state,
+			final int background, TileScheduler scheduler) {
+		state.lungSlice = Slice.reuse(state.lungSlice, input.getWidth(),
+				input.getHeight());
+		state.lungSlice.setCalibration(input);
+
+		// Originally the background was 0, but 1000 HU makes the visualization
+		// easier.
+		scheduler.run(input.getHeight(), new TileScheduler.BandTask() {
+			@Override
+			public void run(int band, int firstRow, int endRow) {
+				SegmentationKernels.extract(input.getPixels(), state.lungMask,
+						background, state.lungSlice.getPixels(),
+						firstRow, endRow);
 			}
-		}
+		});
 
-		return BufferedOutput;
+		return state.lungSlice;
 	}
 }
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.debug;
+
+import ij.process.ByteProcessor;
+
+import java.util.Arrays;
+
+import mmorpho.Constants;
+import mmorpho.MorphoProcessor;
+import mmorpho.StructureElement;
+
+import com.marcolotz.imageprocess.BinaryMorphology;
+import com.marcolotz.imageprocess.BitMask;
+import com.marcolotz.imageprocess.HounsfieldTable;
+import com.marcolotz.imageprocess.SegmentationKernels;
+import com.marcolotz.imageprocess.Slice;
+
+/**
+ * Measures the time per slice of the closing of the lung mask, for a few
+ * radii of the disk: with the MorphoProcessor of mmorpho, which the lung
+ * extractor first used, with the distance transforms of
+ * {@link BinaryMorphology} and with its word operations on a packed
+ * {@link BitMask}. It also checks that all of them give the same mask.
+ * 
+ * The mask is the lung threshold of the synthetic phantom of the
+ * {@link SegmentationBenchmark}.
+ * 
+ * Usage: ClosingBenchmark [size] [iterations]
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ClosingBenchmark {
+
+	private static final int[] radii = { 2, 4, 8, 16 };
+
+	/* Keeps the JIT from dropping the closings */
+	private static long sink;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		Slice slice = SegmentationBenchmark.createPhantom(size, size, 42);
+		BitMask packed = new BitMask(size, size);
+		HounsfieldTable table = new HounsfieldTable(
+				HounsfieldTable.legacyIntercept);
+		int lungBit = table.rangeBit(Double.NEGATIVE_INFINITY, -375);
+		SegmentationKernels.select(slice.getPixels(), table.getBits(slice),
+				lungBit, packed);
+		byte[] mask = new byte[size * size];
+		packed.toBytes(mask);
+
+		System.out.println("Slice of " + size + "x" + size + ", "
+				+ iterations + " iterations");
+
+		byte[] reference = new byte[mask.length];
+		byte[] closed = new byte[mask.length];
+		byte[] closedPacked = new byte[mask.length];
+
+		for (int radius : radii) {
+			/* The sliding element is slow, it gets fewer iterations */
+			int slowIterations = Math.max(iterations / (radius * radius), 1);
+
+			runMorpho(mask, size, radius, 1, reference);
+			double morpho = runMorpho(mask, size, radius, slowIterations,
+					reference);
+
+			runDistance(mask, size, radius, Math.max(iterations / 4, 1),
+					closed);
+			double distance = runDistance(mask, size, radius, iterations,
+					closed);
+
+			runPacked(packed, radius, Math.max(iterations / 4, 1),
+					closedPacked);
+			double words = runPacked(packed, radius, iterations, closedPacked);
+
+			System.out.println("Radius " + radius + ": mmorpho " + morpho
+					+ " ms/slice, distance transforms " + distance
+					+ " ms/slice, packed " + words + " ms/slice, same mask: "
+					+ (Arrays.equals(reference, closed) && Arrays.equals(
+							reference, closedPacked)));
+		}
+		System.out.println("Checksum: " + sink);
+	}
+
+	/***
+	 * Closes the mask with mmorpho.
+	 * 
+	 * @return the time per closing, in ms
+	 */
+	private static double runMorpho(byte[] mask, int size, int radius,
+			int iterations, byte[] pixels) {
+		MorphoProcessor processor = new MorphoProcessor(new StructureElement(
+				Constants.CIRCLE, 0, radius, Constants.OFFSET0));
+		ByteProcessor closed = new ByteProcessor(size, size, pixels, null);
+
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			System.arraycopy(mask, 0, pixels, 0, mask.length);
+			processor.close(closed);
+			sink += pixels[pixels.length / 2];
+		}
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+
+	/***
+	 * Closes the mask with the distance transforms.
+	 * 
+	 * @return the time per closing, in ms
+	 */
+	private static double runDistance(byte[] mask, int size, int radius,
+			int iterations, byte[] closed) {
+		BinaryMorphology morphology = new BinaryMorphology(radius);
+
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			System.arraycopy(mask, 0, closed, 0, mask.length);
+			morphology.close(closed, size, size);
+			sink += closed[closed.length / 2];
+		}
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+
+	/***
+	 * Closes the packed mask with the word operations.
+	 * 
+	 * @return the time per closing, in ms
+	 */
+	private static double runPacked(BitMask mask, int radius, int iterations,
+			byte[] output) {
+		BinaryMorphology morphology = new BinaryMorphology(radius);
+		BitMask closed = new BitMask(mask.getWidth(), mask.getHeight());
+
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			closed.copyFrom(mask);
+			morphology.close(closed);
+			sink += closed.count();
+		}
+		double time = (System.nanoTime() - start) / 1e6 / iterations;
+
+		closed.toBytes(output);
+		return time;
+	}
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.debug;
+
+import java.util.Arrays;
+
+import com.marcolotz.imageprocess.BitMask;
+import com.marcolotz.imageprocess.HounsfieldTable;
+import com.marcolotz.imageprocess.SegmentationKernels;
+import com.marcolotz.imageprocess.Slice;
+
+/**
+ * Compares the two paths of each pixel kernel of {@link SegmentationKernels}:
+ * a plain scalar loop, with a branch per pixel, and the kernel as the stages
+ * run it, which the JIT compiler can vectorize. The range selection kernel
+ * is the lookup in a {@link HounsfieldTable}. The outputs of both paths are
+ * checked to be equal before they are timed.
+ * 
+ * The rescale is run with the parameters of a CT slice, slope 1 and intercept
+ * -1000, through its integer lanes and through its floating point loop.
+ * 
+ * Usage: KernelBenchmark [size] [iterations]
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class KernelBenchmark {
+
+	private static final int low = 110 * 2235 / 255;
+	private static final int high = 120 * 2235 / 255;
+	private static final int background = 2000;
+	private static final int slope = 1;
+	private static final int intercept = -1000;
+
+	/* Keeps the outputs alive */
+	private static long sink;
+
+	/***
+	 * A kernel and its scalar version, run over the same slice.
+	 */
+	private static abstract class Kernel {
+		final String name;
+
+		Kernel(String name) {
+			this.name = name;
+		}
+
+		abstract void scalar();
+
+		abstract void vectorized();
+
+		/* Output of the last run, to compare the paths */
+		abstract Object output();
+	}
+
+	public static void main(String[] args) {
+		final int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		Slice slice = SegmentationBenchmark.createPhantom(size, size, 42);
+		final short[] pixels = slice.getPixels();
+		final int length = pixels.length;
+		final BitMask lungMask = new BitMask(size, size);
+		final byte[] mask = new byte[length];
+		final short[] output = new short[length];
+		final int[] bins = new int[65536];
+
+		/* The phantom has no rescale, it gets the intercept of -1000 */
+		HounsfieldTable table = new HounsfieldTable(
+				HounsfieldTable.legacyIntercept);
+		int lungBit = table.rangeBit(Double.NEGATIVE_INFINITY, -375);
+		final int candidatesBit = table.rangeBit(low
+				+ HounsfieldTable.legacyIntercept, high
+				+ HounsfieldTable.legacyIntercept);
+		final byte[] tableBits = table.getBits(slice);
+
+		SegmentationKernels.select(pixels, tableBits, lungBit, lungMask);
+
+		System.out.println("Slice of " + size + "x" + size + ", "
+				+ iterations + " iterations");
+		System.out.println("Lane rescale selected: "
+				+ SegmentationKernels.hasLaneRescale(slope, intercept));
+
+		Kernel[] kernels = { new Kernel("Range selection") {
+			void scalar() {
+				for (int i = 0; i < length; i++) {
+					int value = pixels[i] & 0xFFFF;
+					mask[i] = (byte) (value >= low && value <= high ? 255 : 0);
+				}
+			}
+
+			void vectorized() {
+				SegmentationKernels.select(pixels, tableBits, candidatesBit,
+						mask);
+			}
+
+			Object output() {
+				return mask.clone();
+			}
+		}, new Kernel("Mask application") {
+			void scalar() {
+				for (int i = 0; i < length; i++) {
+					output[i] = lungMask.get(i % size, i / size) ? pixels[i]
+							: (short) background;
+				}
+			}
+
+			void vectorized() {
+				SegmentationKernels.extract(pixels, lungMask, background,
+						output);
+			}
+
+			Object output() {
+				return output.clone();
+			}
+		}, new Kernel("HU rescale") {
+			void scalar() {
+				SegmentationKernels.rescaleScalar(pixels, slope, intercept,
+						output, 0, length);
+			}
+
+			void vectorized() {
+				SegmentationKernels.rescaleLanes(pixels, slope, intercept,
+						output, 0, length);
+			}
+
+			Object output() {
+				return output.clone();
+			}
+		}, new Kernel("Histogram") {
+			void scalar() {
+				Arrays.fill(bins, 0);
+				for (int i = 0; i < length; i++) {
+					int value = pixels[i] & 0xFFFF;
+					bins[value] = bins[value] + 1;
+				}
+			}
+
+			void vectorized() {
+				Arrays.fill(bins, 0);
+				SegmentationKernels.histogram(pixels, 0, length, bins);
+			}
+
+			Object output() {
+				return bins.clone();
+			}
+		} };
+
+		int warmup = Math.max(iterations / 4, 1);
+
+		for (Kernel kernel : kernels) {
+			kernel.scalar();
+			Object expected = kernel.output();
+			kernel.vectorized();
+			/* deepEquals compares the primitive arrays by content */
+			if (!Arrays.deepEquals(new Object[] { expected },
+					new Object[] { kernel.output() })) {
+				throw new IllegalStateException(kernel.name
+						+ ": the paths differ");
+			}
+
+			time(kernel, false, warmup);
+			double scalar = time(kernel, false, iterations);
+			time(kernel, true, warmup);
+			double vectorized = time(kernel, true, iterations);
+
+			System.out.println(kernel.name + " (ms/slice): scalar " + scalar
+					+ ", kernel " + vectorized + ", speedup " + scalar
+					/ vectorized);
+		}
+		System.out.println("Checksum: " + sink);
+	}
+
+	private static double time(Kernel kernel, boolean vectorized,
+			int iterations) {
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			if (vectorized) {
+				kernel.vectorized();
+			} else {
+				kernel.scalar();
+			}
+		}
+		double time = (System.nanoTime() - start) / 1e6 / iterations;
+		sink += kernel.output().hashCode();
+		return time;
+	}
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.debug;
+
+import ij.ImagePlus;
+import ij.plugin.Duplicator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.marcolotz.imageprocess.BitMask;
+import com.marcolotz.imageprocess.HounsfieldTable;
+import com.marcolotz.imageprocess.ImageProcessor;
+import com.marcolotz.imageprocess.SegmentationKernels;
+import com.marcolotz.imageprocess.Slice;
+
+/**
+ * Measures the time per slice of the pixel loops of the lung segmentation:
+ * the threshold of the lung extractor, the extraction of the lungs and the
+ * threshold of the nodule candidates detector. The loops are run as they were
+ * first written, through ImagePlus.getPixel and WritableRaster.setPixel, and
+ * as the fused kernels of {@link SegmentationKernels}. The whole pipeline is
+ * also timed, to put the loops in perspective.
+ * 
+ * The slice is a synthetic CT phantom: air, a body ellipse, two lungs and a
+ * few nodules, with noise on every tissue.
+ * 
+ * Usage: SegmentationBenchmark [size] [iterations]
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SegmentationBenchmark {
+
+	/* The thresholds of the TresholdLung and GrayNoduleCandidates stages */
+	private static final int lungThreshold = -375 + 1000;
+	private static final int candidatesLow = 110 * 2235 / 255;
+	private static final int candidatesHigh = 120 * 2235 / 255;
+	private static final int background = 2000;
+
+	/* Keeps the JIT from dropping the loops */
+	private static long sink;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		Slice slice = createPhantom(size, size, 42);
+		ImagePlus image = slice.toImage("Phantom");
+
+		System.out.println("Slice of " + size + "x" + size + ", "
+				+ iterations + " iterations");
+
+		/* Each mode runs a few times first, so the JIT compiles it */
+		int warmup = Math.max(iterations / 4, 1);
+
+		runOriginal(image, warmup);
+		double original = runOriginal(image, iterations);
+		System.out.println("Original loops (ms/slice): " + original);
+
+		runFused(slice, warmup);
+		double fused = runFused(slice, iterations);
+		System.out.println("Fused kernels (ms/slice): " + fused);
+		System.out.println("Speedup: " + original / fused);
+
+		double pipeline = runPipeline(slice, Math.max(iterations / 10, 1));
+		System.out.println("Whole pipeline (ms/slice): " + pipeline);
+		System.out.println("Checksum: " + sink);
+	}
+
+	/***
+	 * The loops as they were first written, with a BufferedImage mask and an
+	 * allocation per pixel read.
+	 */
+	private static double runOriginal(ImagePlus image, int iterations) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		BufferedImage binaryMask = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster maskRaster = binaryMask.getRaster();
+		int[] mArray = new int[1];
+
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < iterations; iteration++) {
+
+			/* Lung threshold */
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					mArray[0] = image.getPixel(x, y)[0] > lungThreshold ? 0
+							: 255;
+					maskRaster.setPixel(x, y, mArray);
+				}
+			}
+
+			/* Lung extraction, on a duplicate of the input */
+			ImagePlus output = new Duplicator().run(image);
+			ij.process.ImageProcessor outputProcessor = output.getProcessor();
+			int[] maskPixel = new int[1];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					maskPixel = maskRaster.getPixel(x, y, maskPixel);
+					outputProcessor.set(x, y,
+							maskPixel[0] == 255 ? image.getPixel(x, y)[0]
+									: background);
+				}
+			}
+
+			/* Candidates threshold */
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int value = outputProcessor.getPixel(x, y);
+					mArray[0] = value >= candidatesLow
+							&& value <= candidatesHigh ? 255 : 0;
+					maskRaster.setPixel(x, y, mArray);
+				}
+			}
+			sink += maskRaster.getSample(width / 2, height / 2, 0);
+		}
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+
+	/***
+	 * The same work with the kernels of the stages, over reused arrays. The
+	 * lung mask is packed, as in the lung extractor.
+	 */
+	private static double runFused(Slice slice, int iterations) {
+		short[] pixels = slice.getPixels();
+		BitMask lungMask = new BitMask(slice.getWidth(), slice.getHeight());
+		byte[] mask = new byte[pixels.length];
+		short[] output = new short[pixels.length];
+
+		/* The phantom has no rescale, it gets the intercept of -1000 */
+		HounsfieldTable table = new HounsfieldTable(
+				HounsfieldTable.legacyIntercept);
+		int lungBit = table.rangeBit(Double.NEGATIVE_INFINITY,
+				lungThreshold + HounsfieldTable.legacyIntercept);
+		int candidatesBit = table.rangeBit(candidatesLow
+				+ HounsfieldTable.legacyIntercept, candidatesHigh
+				+ HounsfieldTable.legacyIntercept);
+		byte[] tableBits = table.getBits(slice);
+
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			SegmentationKernels.select(pixels, tableBits, lungBit, lungMask);
+			SegmentationKernels.extract(pixels, lungMask, background, output);
+			SegmentationKernels.select(output, tableBits, candidatesBit,
+					mask);
+			sink += mask[mask.length / 2];
+		}
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+
+	/***
+	 * The whole pipeline, with the closing and the component labeling. The log
+	 * of the stages is not printed.
+	 */
+	private static double runPipeline(Slice slice, int iterations) {
+		ImageProcessor processor = new ImageProcessor(new Configuration(false));
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+
+		try {
+			processor.setInput(slice);
+			processor.run();
+
+			long start = System.nanoTime();
+			for (int iteration = 0; iteration < iterations; iteration++) {
+				processor.setInput(slice);
+				processor.run();
+			}
+			return (System.nanoTime() - start) / 1e6 / iterations;
+		} finally {
+			System.setOut(out);
+			processor.shutdown();
+		}
+	}
+
+	/***
+	 * Creates a CT-like slice, with stored values of HU + 1000.
+	 */
+	static Slice createPhantom(int width, int height, long seed) {
+		Random random = new Random(seed);
+		Slice slice = new Slice(width, height);
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double bodyX = (x - width / 2.0) / (width * 0.42);
+				double bodyY = (y - height / 2.0) / (height * 0.32);
+
+				/* Air */
+				int value = 24 + random.nextInt(20);
+
+				if (bodyX * bodyX + bodyY * bodyY < 1) {
+					/* Soft tissue, with the two lungs inside */
+					value = 1040 + random.nextInt(40);
+					for (int side = -1; side <= 1; side += 2) {
+						double lungX = (x - width / 2.0 - side * width * 0.18)
+								/ (width * 0.13);
+						double lungY = (y - height / 2.0) / (height * 0.22);
+						if (lungX * lungX + lungY * lungY < 1) {
+							value = 180 + random.nextInt(60);
+						}
+					}
+				}
+				slice.set(y * width + x, value);
+			}
+		}
+
+		/* Nodules of a few sizes inside the lungs */
+		int[][] nodules = { { 30, 45, 6 }, { 70, 55, 8 }, { 32, 60, 2 },
+				{ 68, 40, 5 } };
+		for (int[] nodule : nodules) {
+			int centerX = width * nodule[0] / 100;
+			int centerY = height * nodule[1] / 100;
+			int radius = nodule[2] * width / 256;
+			for (int y = -radius; y <= radius; y++) {
+				for (int x = -radius; x <= radius; x++) {
+					if (x * x + y * y <= radius * radius) {
+						slice.set((centerY + y) * width + centerX + x,
+								990 + random.nextInt(40));
+					}
+				}
+			}
+		}
+
+		return slice;
+	}
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A single slice of the series catalog: where the file is and how much work it
+ * represents. It is generated from the DICOM header only.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class CatalogSliceWritable implements Writable {
+
+	private String path;
+
+	/* File length in bytes */
+	private long length;
+
+	/* Estimated processing cost, in decoded pixel bytes */
+	private long cost;
+
+	private int rows;
+	private int columns;
+
+	private String imageOrientation;
+
+	/* Position of the slice in the series, 0 if unknown */
+	private int imageNumber;
+
+	public CatalogSliceWritable() {
+	}
+
+	public CatalogSliceWritable(String path, long length, long cost,
+			DicomHeader header) {
+		this.path = path;
+		this.length = length;
+		this.cost = cost;
+
+		rows = header.getInt(DICOMTags.Rows, 0);
+		columns = header.getInt(DICOMTags.Columns, 0);
+		imageOrientation = header.getTag(DICOMTags.ImageOrientation);
+		imageNumber = header.getInt(DICOMTags.ImageNumber, 0);
+	}
+
+	/***
+	 * @param other
+	 * @return a copy of the slice, since Hadoop reuses the reduce values.
+	 */
+	public CatalogSliceWritable(CatalogSliceWritable other) {
+		path = other.path;
+		length = other.length;
+		cost = other.cost;
+		rows = other.rows;
+		columns = other.columns;
+		imageOrientation = other.imageOrientation;
+		imageNumber = other.imageNumber;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getCost() {
+		return cost;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public String getImageOrientation() {
+		return imageOrientation;
+	}
+
+	public int getImageNumber() {
+		return imageNumber;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		SerializerConverter.writeString(path, out);
+		out.writeLong(length);
+		out.writeLong(cost);
+		out.writeInt(rows);
+		out.writeInt(columns);
+		SerializerConverter.writeString(imageOrientation, out);
+		out.writeInt(imageNumber);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		path = SerializerConverter.readString(in);
+		length = in.readLong();
+		cost = in.readLong();
+		rows = in.readInt();
+		columns = in.readInt();
+		imageOrientation = SerializerConverter.readString(in);
+		imageNumber = in.readInt();
+	}
+}
@@ -21,63 +21,89 @@
 package com.marcolotz.lung.mapreduce.MRComponents;
 
 /**
- * This class contains all the DICOM tags address used by this application
+ * This class contains all the DICOM tags address used by this application. The
+ * tags are encoded as (group << 16 | element), the keys of the
+ * {@link DicomHeader} tag map.
  * 
  * @author Marco Aurelio Lotz
  * 
  */
 public abstract class DICOMTags {
 
-	public static final String SOPClassUID = "0008,0016";
+	public static final int TransferSyntaxUID = 0x00020010;
+
+	public static final int SOPClassUID = 0x00080016;
 
 	// Unique identifier for the image.
-	public static final String SOPInstanceUID = "0008,0018";
+	public static final int SOPInstanceUID = 0x00080018;
 
-	public static final String StudyDate = "0008,0020";
-	public static final String SeriesDate = "0008,0021";
-	public static final String ImageDate = "0008,0023";
+	public static final int StudyDate = 0x00080020;
+	public static final int SeriesDate = 0x00080021;
+	public static final int ImageDate = 0x00080023;
 
-	public static final String StudyTime = "0008,0030";
-	public static final String SeriesTime = "0008,0031";
-	public static final String ImageTime = "0008,0033";
+	public static final int StudyTime = 0x00080030;
+	public static final int SeriesTime = 0x00080031;
+	public static final int ImageTime = 0x00080033;
 
-	public static final String Modality = "0008,0060";
+	public static final int Modality = 0x00080060;
 
-	public static final String Manufacturer = "0008,0070";
-	public static final String InstitutionName = "0008,0080";
-	public static final String InstitutionAddress = "0008,0081";
+	public static final int Manufacturer = 0x00080070;
+	public static final int InstitutionName = 0x00080080;
+	public static final int InstitutionAddress = 0x00080081;
 
-	public static final String StationName = "0008,1010";
-	public static final String StudyDescription = "0008,1030";
+	public static final int StationName = 0x00081010;
+	public static final int StudyDescription = 0x00081030;
 
-	public static final String PatientsName = "0010,0010";
-	public static final String PatientsID = "0010,0020";
+	public static final int PatientsName = 0x00100010;
+	public static final int PatientsID = 0x00100020;
 
-	public static final String BodyPartExamined = "0018,0015";
-	public static final String SliceThickness = "0018,0050";
-	public static final String KVP = "0018,0060";
-	public static final String SpaceBetweenSlices = "0018,0088";
+	public static final int BodyPartExamined = 0x00180015;
+	public static final int SliceThickness = 0x00180050;
+	public static final int KVP = 0x00180060;
+	public static final int SpaceBetweenSlices = 0x00180088;
 
-	public static final String AquisitionNumber = "0020,0012";
-	public static final String ImageNumber = "0020,0013";
+	public static final int AquisitionNumber = 0x00200012;
+	public static final int ImageNumber = 0x00200013;
 
 	/*
 	 * The position (three coordinates) of the upper left corner of the image,
 	 * relative to the patient???s coordinate system.
 	 */
-	public static final String ImagePosition = "0020,0032";
+	public static final int ImagePosition = 0x00200032;
 
 	/*
 	 * Row and column vectors (six coordinates total) describing the orientation
 	 * of the image.
 	 */
-	public static final String ImageOrientation = "0020,0037";
+	public static final int ImageOrientation = 0x00200037;
 
 	// Unique identifier for the series that the image belongs to.
 	// I.e. Files in different folder belong to different exams.
-	public static final String SeriesInstanceUID = "0020,000E";
+	public static final int SeriesInstanceUID = 0x0020000E;
+
+	public static final int SamplesPerPixel = 0x00280002;
+	public static final int NumberOfFrames = 0x00280008;
+	public static final int Rows = 0x00280010;
+	public static final int Columns = 0x00280011;
 
 	// The size of a pixel (in mm).
-	public static final String PixelSpacing = "0028,0030";
+	public static final int PixelSpacing = 0x00280030;
+
+	public static final int BitsAllocated = 0x00280100;
+
+	public static final int WindowCenter = 0x00281050;
+	public static final int WindowWidth = 0x00281051;
+	public static final int RescaleIntercept = 0x00281052;
+	public static final int RescaleSlope = 0x00281053;
+
+	/*
+	 * Enhanced multi-frame objects keep the attributes common to all the
+	 * frames, and the attributes of each frame, in these sequences.
+	 */
+	public static final int SharedFunctionalGroups = 0x52009229;
+	public static final int PerFrameFunctionalGroups = 0x52009230;
+
+	// The image itself. Header parsing stops here.
+	public static final int PixelData = 0x7FE00010;
 
 }
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tags of a DICOM header, in a compact map keyed by the numeric tag
+ * (group << 16 | element) of {@link DICOMTags}. The header can be read by the
+ * DicomHeaderParser, without decoding the pixel data, or from the info string
+ * of an image decoded by ImageJ. In both cases the info is parsed only once and
+ * all the lookups are binary searches on the sorted tags.
+ *
+ * The values are formatted as ImageJ formats them, thus {@link #getTag(int)}
+ * returns exactly what DicomTools.getTag returns for a decoded image.
+ *
+ * For enhanced multi-frame objects, the attributes found inside the shared
+ * and per-frame functional groups are kept in headers of their own, so that
+ * {@link #getFrameTag(int, int)} gives the value of a tag for each frame.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+public class DicomHeader {
+
+	/* Sorted tags and their values */
+	private int[] tags = new int[64];
+	private String[] values = new String[64];
+	private int size = 0;
+
+	/* Functional groups of multi-frame objects, null if there are none */
+	private DicomHeader sharedGroups;
+	private List<DicomHeader> frameGroups;
+
+	/* Offset and length of the Pixel Data value, -1 if not found */
+	private long pixelDataOffset = -1;
+	private long pixelDataLength = -1;
+
+	/***
+	 * Generates the header of an image decoded by ImageJ. It parses the image
+	 * info string a single time.
+	 *
+	 * @param image
+	 * @return the header of the image
+	 */
+	public static DicomHeader fromImage(ImagePlus image) {
+		String info = null;
+
+		/* Like DicomTools, stacks keep the header in the slice label */
+		if (image.getStackSize() > 1) {
+			String label = image.getStack().getSliceLabel(
+					image.getCurrentSlice());
+			if (label != null && label.indexOf('\n') > 0) {
+				info = label;
+			}
+		}
+
+		if (info == null) {
+			info = (String) image.getProperty("Info");
+		}
+
+		return fromInfo(info);
+	}
+
+	/***
+	 * Parses an ImageJ DICOM info string. Its lines have the format
+	 * "gggg,eeee  Description: value". The elements inside sequences are
+	 * marked with '>' and are not kept.
+	 *
+	 * @param info
+	 * @return the header
+	 */
+	public static DicomHeader fromInfo(String info) {
+		DicomHeader header = new DicomHeader();
+
+		if (info == null) {
+			return header;
+		}
+
+		int lineStart = 0;
+		int length = info.length();
+
+		while (lineStart < length) {
+			int lineEnd = info.indexOf('\n', lineStart);
+			if (lineEnd < 0) {
+				lineEnd = length;
+			}
+
+			int tag = parseTag(info, lineStart);
+
+			if (tag != -1 && lineStart + 11 < lineEnd
+					&& info.charAt(lineStart + 11) != '>') {
+				int colon = info.indexOf(':', lineStart + 9);
+				if (colon >= 0 && colon < lineEnd) {
+					header.putTag(tag, info.substring(colon + 1, lineEnd));
+				}
+			}
+
+			lineStart = lineEnd + 1;
+		}
+
+		return header;
+	}
+
+	/***
+	 * @return the tag written as "gggg,eeee" at the position, or -1 if there
+	 *         is no tag there.
+	 */
+	private static int parseTag(String info, int start) {
+		if (start + 9 > info.length() || info.charAt(start + 4) != ',') {
+			return -1;
+		}
+
+		int tag = 0;
+		for (int i = start; i < start + 9; i++) {
+			if (i == start + 4) {
+				continue;
+			}
+			int digit = Character.digit(info.charAt(i), 16);
+			if (digit < 0) {
+				return -1;
+			}
+			tag = (tag << 4) | digit;
+		}
+		return tag;
+	}
+
+	/***
+	 * Adds a tag to the header. Only the first occurrence of a tag is kept.
+	 * Headers are read in ascending tag order, so this is usually an append.
+	 *
+	 * @param tag
+	 *            (group << 16 | element)
+	 * @param value
+	 *            the value, as returned by DicomTools.getTag
+	 */
+	public void putTag(int tag, String value) {
+		int index;
+
+		if (size == 0 || compare(tags[size - 1], tag) < 0) {
+			index = size;
+		} else {
+			index = search(tag);
+			if (index >= 0) {
+				return;
+			}
+			index = -(index + 1);
+		}
+
+		if (size == tags.length) {
+			tags = Arrays.copyOf(tags, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+
+		System.arraycopy(tags, index, tags, index + 1, size - index);
+		System.arraycopy(values, index, values, index + 1, size - index);
+
+		tags[index] = tag;
+		values[index] = value;
+		size++;
+	}
+
+	/***
+	 * Returns the value of a tag, the same way that DicomTools.getTag does.
+	 *
+	 * @param tag
+	 *            one of the {@link DICOMTags}
+	 * @return the value of the tag or null if the tag is not in the header
+	 */
+	public String getTag(int tag) {
+		int index = search(tag);
+		return index >= 0 ? values[index] : null;
+	}
+
+	/***
+	 * @param tag
+	 * @param defaultValue
+	 * @return the value of the tag as an integer, or the default value if the
+	 *         tag is not present or is not a number.
+	 */
+	public int getInt(int tag, int defaultValue) {
+		String value = getTag(tag);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/***
+	 * @return the number of frames of the image, at least 1.
+	 */
+	public int getFrameCount() {
+		return Math.max(getInt(DICOMTags.NumberOfFrames, 1), 1);
+	}
+
+	/***
+	 * Returns the value of a tag for a single frame: from the per-frame
+	 * functional group of the frame, from the shared functional group or from
+	 * the header itself, in this order.
+	 *
+	 * @param frame
+	 *            index of the frame, from 0
+	 * @param tag
+	 * @return the value of the tag, or null if it is not present
+	 */
+	public String getFrameTag(int frame, int tag) {
+		String value = null;
+
+		if (frameGroups != null && frame < frameGroups.size()) {
+			value = frameGroups.get(frame).getTag(tag);
+		}
+		if (value == null && sharedGroups != null) {
+			value = sharedGroups.getTag(tag);
+		}
+		if (value == null) {
+			value = getTag(tag);
+		}
+		return value;
+	}
+
+	/***
+	 * @return the attributes of the shared functional groups. It is created
+	 *         on the first call.
+	 */
+	public DicomHeader getSharedGroups() {
+		if (sharedGroups == null) {
+			sharedGroups = new DicomHeader();
+		}
+		return sharedGroups;
+	}
+
+	/***
+	 * Adds the attributes of the per-frame functional group of the next frame.
+	 *
+	 * @param frameGroup
+	 */
+	public void addFrameGroup(DicomHeader frameGroup) {
+		if (frameGroups == null) {
+			frameGroups = new ArrayList<DicomHeader>();
+		}
+		frameGroups.add(frameGroup);
+	}
+
+	/***
+	 * @return the number of tags in the header
+	 */
+	public int size() {
+		return size;
+	}
+
+	/* Groups above 0x7FFF must still sort after the lower ones */
+	private static int compare(int tag1, int tag2) {
+		return Integer.compare(tag1 ^ Integer.MIN_VALUE,
+				tag2 ^ Integer.MIN_VALUE);
+	}
+
+	private int search(int tag) {
+		int low = 0;
+		int high = size - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compare(tags[middle], tag);
+
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	public long getPixelDataOffset() {
+		return pixelDataOffset;
+	}
+
+	public void setPixelDataOffset(long pixelDataOffset) {
+		this.pixelDataOffset = pixelDataOffset;
+	}
+
+	public long getPixelDataLength() {
+		return pixelDataLength;
+	}
+
+	public void setPixelDataLength(long pixelDataLength) {
+		this.pixelDataLength = pixelDataLength;
+	}
+}
@@ -0,0 +1,521 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * The manifest of the incremental mode: a MapFile with one
+ * {@link ManifestEntryWritable} per slice seen by the previous runs. The
+ * entries are keyed by SeriesInstanceUID, slice identity (SOPInstanceUID, or
+ * content digest if it has none) and path, so that the slices of a series are
+ * stored together and a slice can be looked up by its identity.
+ * 
+ * A run goes through the following steps:
+ * <ol>
+ * <li>While the MultipleFilesInputFormat lists the input, the files whose
+ * length and modification time did not change are left out, using the
+ * FileStatus of the listing itself. The plan of the run is written next to the
+ * manifest: the entries of the files changed or removed since, and the
+ * fingerprint of the files to read.</li>
+ * <li>The LungMapper reads the new and changed files. A slice whose series,
+ * identity and content digest are already in the manifest, such as a file that
+ * was only touched or copied, is not processed again: its stored results are
+ * used.</li>
+ * <li>The LungReducer only receives the series with new or changed slices.
+ * It merges them with the stored slices of the series that are still valid,
+ * and also reduces again the series that only lost slices. Each series is
+ * written to its own directory.</li>
+ * <li>Once the job succeeds, {@link #publish(Configuration, Path, Path)}
+ * replaces the output of these series, leaving the output of the other ones
+ * untouched, and merges the new entries into the manifest.</li>
+ * </ol>
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class IncrementalManifest {
+
+	/* Named output that the mappers write the new manifest entries to */
+	public static final String namedOutput = "manifest";
+
+	/* Start of the names of the series output directories */
+	private static final String seriesOutputPrefix = "series-";
+
+	/* Separator of the fields of the manifest keys */
+	private static final char keySeparator = '\t';
+
+	/* Files of the plan, in the plan directory */
+	static final String removedFile = "removed";
+	static final String listedFile = "listed";
+
+	/* Fingerprint and manifest keys of a file in the manifest */
+	private static class ManifestFile {
+		private final long length;
+		private final long modificationTime;
+		private final List<String> keys = new ArrayList<String>(1);
+
+		private ManifestFile(long length, long modificationTime) {
+			this.length = length;
+			this.modificationTime = modificationTime;
+		}
+	}
+
+	/* Files of the manifest, by path */
+	private final Map<String, ManifestFile> files = new HashMap<String, ManifestFile>();
+
+	/***
+	 * @param conf
+	 * @return true if the incremental mode is enabled.
+	 */
+	public static boolean isEnabled(Configuration conf) {
+		return conf.getBoolean("com.marcolotz.incremental.enabled", false);
+	}
+
+	/***
+	 * @param conf
+	 * @return the directory of the manifest.
+	 */
+	public static Path getManifestPath(Configuration conf) {
+		return new Path(conf.get("com.marcolotz.incremental.manifestPath",
+				"lungManifest"));
+	}
+
+	/***
+	 * @param conf
+	 * @return the directory of the plan of the current run.
+	 */
+	public static Path getPlanPath(Configuration conf) {
+		Path manifestPath = getManifestPath(conf);
+		return new Path(manifestPath.getParent(), manifestPath.getName()
+				+ ".plan");
+	}
+
+	/***
+	 * @param conf
+	 * @return true if a previous run wrote a manifest.
+	 * @throws IOException
+	 */
+	public static boolean exists(Configuration conf) throws IOException {
+		Path manifestPath = getManifestPath(conf);
+		return manifestPath.getFileSystem(conf).exists(manifestPath);
+	}
+
+	/***
+	 * @param seriesInstanceUID
+	 *            of the slice, empty if it was rejected
+	 * @param identity
+	 *            of the slice
+	 * @param path
+	 *            of the file
+	 * @return the key of a slice in the manifest.
+	 */
+	public static String getKey(String seriesInstanceUID, String identity,
+			String path) {
+		return getIdentityPrefix(seriesInstanceUID, identity)
+				+ toKey(new Path(path));
+	}
+
+	/***
+	 * @return the start of the keys of the series. The UID is trimmed, since
+	 *         the parsed tags keep the leading space of the ImageJ info.
+	 */
+	static String getSeriesPrefix(String seriesInstanceUID) {
+		return String.valueOf(seriesInstanceUID).trim() + keySeparator;
+	}
+
+	/***
+	 * @return the start of the keys of the slice, in any file.
+	 */
+	static String getIdentityPrefix(String seriesInstanceUID, String identity) {
+		return getSeriesPrefix(seriesInstanceUID) + identity + keySeparator;
+	}
+
+	/***
+	 * @param seriesInstanceUID
+	 * @return the name of the directory of the series output. It always
+	 *         starts with the same prefix, which tells the series directories
+	 *         from the other files of the job output.
+	 */
+	public static String getSeriesOutputName(String seriesInstanceUID) {
+		return seriesOutputPrefix
+				+ String.valueOf(seriesInstanceUID).trim()
+						.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/***
+	 * @param seriesInstanceUID
+	 * @return the base output path of the series, for the MultipleOutputs of
+	 *         the reducers.
+	 */
+	public static String getSeriesOutputPath(String seriesInstanceUID) {
+		return getSeriesOutputName(seriesInstanceUID) + "/part";
+	}
+
+	/***
+	 * Loads the fingerprints of the manifest files.
+	 * 
+	 * @param conf
+	 * @return the manifest, empty if there is no manifest yet, or null if the
+	 *         incremental mode is disabled.
+	 * @throws IOException
+	 */
+	public static IncrementalManifest load(Configuration conf)
+			throws IOException {
+		if (!isEnabled(conf)) {
+			return null;
+		}
+
+		IncrementalManifest manifest = new IncrementalManifest();
+		if (!exists(conf)) {
+			return manifest;
+		}
+
+		MapFile.Reader reader = null;
+		try {
+			reader = new MapFile.Reader(getManifestPath(conf), conf);
+
+			Text key = new Text();
+			ManifestEntryWritable entry = new ManifestEntryWritable();
+			while (reader.next(key, entry)) {
+				String path = toKey(new Path(entry.getPath()));
+
+				ManifestFile file = manifest.files.get(path);
+				if (file == null) {
+					file = new ManifestFile(entry.getLength(),
+							entry.getModificationTime());
+					manifest.files.put(path, file);
+				}
+				file.keys.add(key.toString());
+			}
+		} finally {
+			IOUtils.closeStream(reader);
+		}
+
+		return manifest;
+	}
+
+	/***
+	 * Plans the run from the listing of the input: the files whose length and
+	 * modification time did not change are left out, the entries of the other
+	 * files of the manifest are recorded as removed and the fingerprints of
+	 * the files to read are recorded for the mappers.
+	 * 
+	 * @param conf
+	 * @param listing
+	 *            the input files
+	 * @return the files to read.
+	 * @throws IOException
+	 */
+	public List<FileStatus> plan(Configuration conf, List<FileStatus> listing)
+			throws IOException {
+		List<FileStatus> toRead = new ArrayList<FileStatus>();
+		Set<String> unchanged = new HashSet<String>();
+
+		for (FileStatus status : listing) {
+			String path = toKey(status.getPath());
+
+			ManifestFile file = files.get(path);
+			if (file != null && file.length == status.getLen()
+					&& file.modificationTime == status.getModificationTime()) {
+				unchanged.add(path);
+			} else {
+				toRead.add(status);
+			}
+		}
+
+		List<String> removedKeys = new ArrayList<String>();
+		for (Map.Entry<String, ManifestFile> file : files.entrySet()) {
+			if (!unchanged.contains(file.getKey())) {
+				removedKeys.addAll(file.getValue().keys);
+			}
+		}
+
+		Path planPath = getPlanPath(conf);
+		FileSystem fs = planPath.getFileSystem(conf);
+		fs.delete(planPath, true);
+		fs.mkdirs(planPath);
+
+		writeRemoved(conf, new Path(planPath, removedFile), removedKeys);
+		writeListed(conf, new Path(planPath, listedFile), toRead);
+
+		return toRead;
+	}
+
+	/***
+	 * Copies the manifest entries of the changed and removed files.
+	 */
+	private static void writeRemoved(Configuration conf, Path removedPath,
+			List<String> removedKeys) throws IOException {
+		/* In the manifest order, so that its reader only moves forward */
+		Collections.sort(removedKeys, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return new Text(a).compareTo(new Text(b));
+			}
+		});
+
+		MapFile.Reader reader = null;
+		SequenceFile.Writer writer = null;
+		try {
+			writer = SequenceFile.createWriter(conf,
+					SequenceFile.Writer.file(removedPath),
+					SequenceFile.Writer.keyClass(Text.class),
+					SequenceFile.Writer.valueClass(ManifestEntryWritable.class));
+
+			if (!removedKeys.isEmpty()) {
+				reader = new MapFile.Reader(getManifestPath(conf), conf);
+			}
+
+			Text key = new Text();
+			ManifestEntryWritable entry = new ManifestEntryWritable();
+			for (String removedKey : removedKeys) {
+				key.set(removedKey);
+				if (reader.get(key, entry) != null) {
+					writer.append(key, entry);
+				}
+			}
+		} finally {
+			IOUtils.closeStream(reader);
+			IOUtils.closeStream(writer);
+		}
+	}
+
+	/***
+	 * Records the fingerprints of the files to read, as listed, keyed by path.
+	 */
+	private static void writeListed(Configuration conf, Path listedPath,
+			List<FileStatus> toRead) throws IOException {
+		List<FileStatus> sorted = new ArrayList<FileStatus>(toRead);
+		Collections.sort(sorted, new Comparator<FileStatus>() {
+			@Override
+			public int compare(FileStatus a, FileStatus b) {
+				return new Text(toKey(a.getPath())).compareTo(new Text(
+						toKey(b.getPath())));
+			}
+		});
+
+		MapFile.Writer writer = null;
+		try {
+			writer = new MapFile.Writer(conf, listedPath,
+					MapFile.Writer.keyClass(Text.class),
+					SequenceFile.Writer.valueClass(ManifestEntryWritable.class));
+
+			Text key = new Text();
+			for (FileStatus status : sorted) {
+				key.set(toKey(status.getPath()));
+				writer.append(key, new ManifestEntryWritable(status.getPath()
+						.toString(), status.getLen(), status
+						.getModificationTime()));
+			}
+		} finally {
+			IOUtils.closeStream(writer);
+		}
+	}
+
+	/***
+	 * Publishes the results of a successful job. The series reduced by the job
+	 * replace the ones in the output and the series left without slices are
+	 * deleted, then the new entries are merged into the manifest.
+	 * 
+	 * The output is replaced first: if the publishing fails in between, the
+	 * next run plans again from the old manifest and reduces the same series.
+	 * 
+	 * @param conf
+	 * @param jobOutputDir
+	 *            output directory of the job
+	 * @param outputDir
+	 *            output directory of the application
+	 * @throws IOException
+	 */
+	public static void publish(Configuration conf, Path jobOutputDir,
+			Path outputDir) throws IOException {
+		FileSystem fs = outputDir.getFileSystem(conf);
+		Path planPath = getPlanPath(conf);
+
+		/* Series reduced by the job */
+		Set<String> reducedSeries = new HashSet<String>();
+		fs.mkdirs(outputDir);
+		for (FileStatus series : fs.listStatus(jobOutputDir)) {
+			String name = series.getPath().getName();
+			if (!series.isDirectory() || !name.startsWith(seriesOutputPrefix)) {
+				continue;
+			}
+
+			Path target = new Path(outputDir, name);
+			fs.delete(target, true);
+			if (!fs.rename(series.getPath(), target)) {
+				throw new IOException("Failed to move " + series.getPath()
+						+ " to " + target);
+			}
+			reducedSeries.add(name);
+		}
+
+		/* Removed entries: series that lost slices and keys to drop */
+		Set<String> removedKeys = new HashSet<String>();
+		SequenceFile.Reader removed = null;
+		try {
+			removed = new SequenceFile.Reader(conf,
+					SequenceFile.Reader.file(new Path(planPath, removedFile)));
+
+			Text key = new Text();
+			ManifestEntryWritable entry = new ManifestEntryWritable();
+			while (removed.next(key, entry)) {
+				removedKeys.add(key.toString());
+
+				String name = getSeriesOutputName(entry
+						.getSeriesInstanceUID());
+				if (entry.isProcessed() && !reducedSeries.contains(name)) {
+					fs.delete(new Path(outputDir, name), true);
+				}
+			}
+		} finally {
+			IOUtils.closeStream(removed);
+		}
+
+		mergeManifest(conf, jobOutputDir, removedKeys);
+
+		fs.delete(planPath, true);
+		fs.delete(jobOutputDir, true);
+	}
+
+	/***
+	 * Writes the new manifest: the entries of the old one that are not
+	 * removed, merged with the new entries written by the mappers, and
+	 * replaces the old one with it.
+	 */
+	private static void mergeManifest(Configuration conf, Path jobOutputDir,
+			Set<String> removedKeys) throws IOException {
+		Path manifestPath = getManifestPath(conf);
+		FileSystem fs = manifestPath.getFileSystem(conf);
+
+		Path temporaryPath = new Path(manifestPath.getParent(),
+				manifestPath.getName() + ".tmp");
+		fs.delete(temporaryPath, true);
+
+		/* The new entries are few next to the manifest, they are sorted apart */
+		Path sortedPath = new Path(jobOutputDir, "_" + namedOutput + ".sorted");
+		FileStatus[] parts = fs.globStatus(new Path(jobOutputDir, namedOutput
+				+ "-*"));
+		boolean newEntries = parts != null && parts.length > 0;
+		if (newEntries) {
+			Path[] partPaths = new Path[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				partPaths[i] = parts[i].getPath();
+			}
+			new SequenceFile.Sorter(fs, Text.class,
+					ManifestEntryWritable.class, conf).sort(partPaths,
+					sortedPath, false);
+		}
+
+		MapFile.Reader oldEntries = null;
+		SequenceFile.Reader sortedEntries = null;
+		MapFile.Writer writer = null;
+		try {
+			writer = new MapFile.Writer(conf, temporaryPath,
+					MapFile.Writer.keyClass(Text.class),
+					SequenceFile.Writer.valueClass(ManifestEntryWritable.class));
+
+			if (exists(conf)) {
+				oldEntries = new MapFile.Reader(manifestPath, conf);
+			}
+			if (newEntries) {
+				sortedEntries = new SequenceFile.Reader(conf,
+						SequenceFile.Reader.file(sortedPath));
+			}
+
+			Text oldKey = new Text();
+			ManifestEntryWritable oldEntry = new ManifestEntryWritable();
+			boolean hasOld = nextKept(oldEntries, oldKey, oldEntry,
+					removedKeys);
+
+			Text newKey = new Text();
+			ManifestEntryWritable newEntry = new ManifestEntryWritable();
+			boolean hasNew = sortedEntries != null
+					&& sortedEntries.next(newKey, newEntry);
+
+			while (hasOld || hasNew) {
+				if (hasOld && (!hasNew || oldKey.compareTo(newKey) <= 0)) {
+					writer.append(oldKey, oldEntry);
+					hasOld = nextKept(oldEntries, oldKey, oldEntry,
+							removedKeys);
+				} else {
+					writer.append(newKey, newEntry);
+					hasNew = sortedEntries.next(newKey, newEntry);
+				}
+			}
+		} finally {
+			IOUtils.closeStream(oldEntries);
+			IOUtils.closeStream(sortedEntries);
+			IOUtils.closeStream(writer);
+		}
+
+		fs.delete(manifestPath, true);
+		if (!fs.rename(temporaryPath, manifestPath)) {
+			throw new IOException("Failed to move the new manifest to "
+					+ manifestPath);
+		}
+	}
+
+	/***
+	 * Reads the next entry of the old manifest that is not removed.
+	 * 
+	 * @return false at the end of the manifest, or if there is none.
+	 */
+	private static boolean nextKept(MapFile.Reader reader, Text key,
+			ManifestEntryWritable entry, Set<String> removedKeys)
+			throws IOException {
+		if (reader == null) {
+			return false;
+		}
+		while (reader.next(key, entry)) {
+			if (!removedKeys.contains(key.toString())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/***
+	 * The listing may or may not qualify the paths with the file system
+	 * scheme, thus only the path itself is compared.
+	 */
+	static String toKey(Path path) {
+		return path.toUri().getPath();
+	}
+}
@@ -28,7 +28,6 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 
 import ij.plugin.DICOM;
-import ij.util.DicomTools;
 
 /**
  * The key structure used by mapper and reducers. It is of paramount importance
@@ -85,40 +84,46 @@ public class KeyStructureWritable implements
 	};
 
 	public KeyStructureWritable(DICOM image) {
-		generateMetadata(image);
+		generateMetadata(DicomHeader.fromImage(image));
 	}
 
-	private void generateMetadata(DICOM image) {
-		seriesInstanceUID = DicomTools.getTag(image,
-				DICOMTags.SeriesInstanceUID);
+	/***
+	 * Generates the key from a header read without decoding the pixel data.
+	 * 
+	 * @param header
+	 */
+	public KeyStructureWritable(DicomHeader header) {
+		generateMetadata(header);
+	}
+
+	private void generateMetadata(DicomHeader header) {
+		seriesInstanceUID = header.getTag(DICOMTags.SeriesInstanceUID);
 
-		studyDate = DicomTools.getTag(image, DICOMTags.StudyDate);
-		seriesDate = DicomTools.getTag(image, DICOMTags.SeriesDate);
+		studyDate = header.getTag(DICOMTags.StudyDate);
+		seriesDate = header.getTag(DICOMTags.SeriesDate);
 
-		studyTime = DicomTools.getTag(image, DICOMTags.StudyTime);
-		seriesTime = DicomTools.getTag(image, DICOMTags.SeriesTime);
+		studyTime = header.getTag(DICOMTags.StudyTime);
+		seriesTime = header.getTag(DICOMTags.SeriesTime);
 
-		modality = DicomTools.getTag(image, DICOMTags.Modality);
+		modality = header.getTag(DICOMTags.Modality);
 
-		manufacturer = DicomTools.getTag(image, DICOMTags.Manufacturer);
+		manufacturer = header.getTag(DICOMTags.Manufacturer);
 
-		institutionName = DicomTools.getTag(image, DICOMTags.InstitutionName);
-		institutionAddress = DicomTools.getTag(image,
-				DICOMTags.InstitutionAddress);
+		institutionName = header.getTag(DICOMTags.InstitutionName);
+		institutionAddress = header.getTag(DICOMTags.InstitutionAddress);
 
-		stationName = DicomTools.getTag(image, DICOMTags.StationName);
-		studyDescription = DicomTools.getTag(image, DICOMTags.StudyDescription);
+		stationName = header.getTag(DICOMTags.StationName);
+		studyDescription = header.getTag(DICOMTags.StudyDescription);
 
-		patientsName = DicomTools.getTag(image, DICOMTags.PatientsName);
-		patientsID = DicomTools.getTag(image, DICOMTags.PatientsID);
+		patientsName = header.getTag(DICOMTags.PatientsName);
+		patientsID = header.getTag(DICOMTags.PatientsID);
 
-		bodyPartExamined = DicomTools.getTag(image, DICOMTags.BodyPartExamined);
-		sliceThickness = DicomTools.getTag(image, DICOMTags.SliceThickness);
-		kVP = DicomTools.getTag(image, DICOMTags.KVP);
-		spaceBetweenSlices = DicomTools.getTag(image,
-				DICOMTags.SpaceBetweenSlices);
+		bodyPartExamined = header.getTag(DICOMTags.BodyPartExamined);
+		sliceThickness = header.getTag(DICOMTags.SliceThickness);
+		kVP = header.getTag(DICOMTags.KVP);
+		spaceBetweenSlices = header.getTag(DICOMTags.SpaceBetweenSlices);
 
-		pixelSpacing = DicomTools.getTag(image, DICOMTags.PixelSpacing);
+		pixelSpacing = header.getTag(DICOMTags.PixelSpacing);
 	}
 
 	public String getSeriesInstanceUID() {
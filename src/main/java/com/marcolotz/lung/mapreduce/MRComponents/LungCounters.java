@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+/**
+ * Hadoop counters reported by the HadoopLung jobs.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public enum LungCounters {
+
+	/* Slices that went through the image processing */
+	SLICES_PROCESSED,
+
+	/* Slices rejected by the header filters, before decoding the pixels */
+	REJECTED_MODALITY,
+	REJECTED_BODY_PART,
+	REJECTED_ORIENTATION,
+	REJECTED_SLICE_THICKNESS,
+	REJECTED_MANUFACTURER,
+
+	/* Slices whose image processing failed */
+	REJECTED_PROCESSING,
+
+	/*
+	 * Incremental mode: slices read again with a content already in the
+	 * manifest, stored slices merged into the series reduced again and stored
+	 * slices of the changed or removed files
+	 */
+	SLICES_UNCHANGED,
+	SLICES_REPLAYED,
+	MANIFEST_REMOVED,
+
+	/* Duplicate slices: same SOPInstanceUID, identical or changed content */
+	DUPLICATE_CONTENT,
+	DUPLICATE_INSTANCE,
+
+	/* Duplicates read by different map tasks, dropped by the reducer */
+	DUPLICATE_MERGED
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+import com.marcolotz.lung.mapreduce.MapperComponents.DuplicateFilter;
+import com.marcolotz.lung.mapreduce.MapperComponents.ImageMetadata;
+
+/**
+ * A slice already seen by the incremental mode. It keeps the fingerprint of the
+ * file (length and modification time, as listed), the SHA-1 digest of its
+ * content and, if the slice was processed, the map output generated for it, so
+ * it can be merged into its series without processing the image again.
+ * 
+ * The entries of the plan of a run only hold the fingerprint of a file to
+ * read.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ManifestEntryWritable implements Writable {
+
+	private String path;
+	private String sopInstanceUID;
+
+	private long length;
+	private long modificationTime;
+
+	/* SHA-1 of the whole file content, in hexadecimal */
+	private String contentDigest;
+
+	/* False if the slice was rejected by the filters */
+	private boolean processed;
+
+	private KeyStructureWritable keyStructure = new KeyStructureWritable();
+	private ImageMetadata imageMetadata = new ImageMetadata();
+
+	public ManifestEntryWritable() {
+	}
+
+	/***
+	 * Fingerprint of a file listed to be read.
+	 */
+	public ManifestEntryWritable(String path, long length,
+			long modificationTime) {
+		this.path = path;
+		this.length = length;
+		this.modificationTime = modificationTime;
+		this.processed = false;
+	}
+
+	/***
+	 * Entry of a processed slice.
+	 */
+	public ManifestEntryWritable(String path, long length,
+			long modificationTime, String contentDigest,
+			KeyStructureWritable keyStructure, ImageMetadata imageMetadata) {
+		this.path = path;
+		this.length = length;
+		this.modificationTime = modificationTime;
+		this.contentDigest = contentDigest;
+		this.processed = true;
+		this.keyStructure = keyStructure;
+		this.imageMetadata = imageMetadata;
+		this.sopInstanceUID = imageMetadata.getSOPInstanceUID();
+	}
+
+	/***
+	 * Entry of a slice rejected by the filters. It is recorded so that it is
+	 * not read again while it does not change.
+	 */
+	public ManifestEntryWritable(String path, long length,
+			long modificationTime, String contentDigest, String sopInstanceUID) {
+		this.path = path;
+		this.length = length;
+		this.modificationTime = modificationTime;
+		this.contentDigest = contentDigest;
+		this.processed = false;
+		this.sopInstanceUID = sopInstanceUID;
+	}
+
+	/***
+	 * @return the key of the entry in the manifest.
+	 */
+	public String getKey() {
+		return IncrementalManifest.getKey(getSeriesInstanceUID(),
+				DuplicateFilter.getIdentity(sopInstanceUID, contentDigest),
+				path);
+	}
+
+	/***
+	 * @return the SeriesInstanceUID of a processed slice, or an empty string
+	 *         if the slice was rejected.
+	 */
+	public String getSeriesInstanceUID() {
+		return processed ? keyStructure.getSeriesInstanceUID() : "";
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getSOPInstanceUID() {
+		return sopInstanceUID;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getModificationTime() {
+		return modificationTime;
+	}
+
+	public String getContentDigest() {
+		return contentDigest;
+	}
+
+	public boolean isProcessed() {
+		return processed;
+	}
+
+	public KeyStructureWritable getKeyStructure() {
+		return keyStructure;
+	}
+
+	public ImageMetadata getImageMetadata() {
+		return imageMetadata;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		SerializerConverter.writeString(path, out);
+		SerializerConverter.writeString(sopInstanceUID, out);
+
+		out.writeLong(length);
+		out.writeLong(modificationTime);
+		SerializerConverter.writeString(contentDigest, out);
+
+		out.writeBoolean(processed);
+		if (processed) {
+			keyStructure.write(out);
+			imageMetadata.write(out);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		path = SerializerConverter.readString(in);
+		sopInstanceUID = SerializerConverter.readString(in);
+
+		length = in.readLong();
+		modificationTime = in.readLong();
+		contentDigest = SerializerConverter.readString(in);
+
+		processed = in.readBoolean();
+		if (processed) {
+			keyStructure.readFields(in);
+			imageMetadata.readFields(in);
+		}
+	}
+}
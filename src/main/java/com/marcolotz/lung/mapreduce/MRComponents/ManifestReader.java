@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Reads the manifest of the last run and the plan of the current one, in the
+ * tasks of the incremental mode. The files are only opened when they are
+ * first needed. It may be shared by the threads of a task.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ManifestReader implements Closeable {
+
+	private final Configuration conf;
+
+	/* Manifest of the last run, null if there is none */
+	private MapFile.Reader manifest;
+	private boolean manifestOpened;
+
+	/* Fingerprints of the files to read */
+	private MapFile.Reader listed;
+
+	/* Keys of the removed entries, and series that lost slices */
+	private Set<String> removedKeys;
+	private Map<String, KeyStructureWritable> removedSeries;
+
+	public ManifestReader(Configuration conf) {
+		this.conf = conf;
+	}
+
+	/***
+	 * @param inputFile
+	 * @return the fingerprint of the file when it was listed, or null if it
+	 *         was not listed to be read.
+	 * @throws IOException
+	 */
+	public synchronized ManifestEntryWritable getListedFile(String inputFile)
+			throws IOException {
+		if (listed == null) {
+			listed = new MapFile.Reader(new Path(
+					IncrementalManifest.getPlanPath(conf),
+					IncrementalManifest.listedFile), conf);
+		}
+
+		ManifestEntryWritable entry = new ManifestEntryWritable();
+		if (listed.get(new Text(IncrementalManifest.toKey(new Path(inputFile))),
+				entry) == null) {
+			return null;
+		}
+		return entry;
+	}
+
+	/***
+	 * Looks for a processed slice of the series with the same identity and
+	 * content, read from any file.
+	 * 
+	 * @param seriesInstanceUID
+	 * @param identity
+	 * @param contentDigest
+	 * @return the stored entry of the slice, or null if there is none.
+	 * @throws IOException
+	 */
+	public synchronized ManifestEntryWritable findContent(
+			String seriesInstanceUID, String identity, String contentDigest)
+			throws IOException {
+		if (!openManifest()) {
+			return null;
+		}
+
+		String prefix = IncrementalManifest.getIdentityPrefix(
+				seriesInstanceUID, identity);
+
+		ManifestEntryWritable entry = new ManifestEntryWritable();
+		Text key = closest(prefix, entry);
+		if (key == null) {
+			return null;
+		}
+
+		while (key.toString().startsWith(prefix)) {
+			if (entry.isProcessed()
+					&& entry.getContentDigest().equals(contentDigest)) {
+				return entry;
+			}
+			if (!manifest.next(key, entry)) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	/***
+	 * @param seriesInstanceUID
+	 * @return the stored entries of the processed slices of the series.
+	 * @throws IOException
+	 */
+	public synchronized List<ManifestEntryWritable> getSeries(
+			String seriesInstanceUID) throws IOException {
+		List<ManifestEntryWritable> entries = new ArrayList<ManifestEntryWritable>();
+		if (!openManifest()) {
+			return entries;
+		}
+
+		String prefix = IncrementalManifest.getSeriesPrefix(seriesInstanceUID);
+
+		ManifestEntryWritable entry = new ManifestEntryWritable();
+		Text key = closest(prefix, entry);
+		if (key == null) {
+			return entries;
+		}
+
+		while (key.toString().startsWith(prefix)) {
+			if (entry.isProcessed()) {
+				entries.add(entry);
+			}
+
+			entry = new ManifestEntryWritable();
+			if (!manifest.next(key, entry)) {
+				break;
+			}
+		}
+		return entries;
+	}
+
+	/***
+	 * @param entry
+	 *            stored entry
+	 * @return true if the file of the entry changed or was removed since the
+	 *         last run.
+	 * @throws IOException
+	 */
+	public synchronized boolean isRemoved(ManifestEntryWritable entry)
+			throws IOException {
+		readRemoved();
+		return removedKeys.contains(entry.getKey());
+	}
+
+	/***
+	 * @return the series that lost slices since the last run.
+	 * @throws IOException
+	 */
+	public synchronized Collection<KeyStructureWritable> getRemovedSeries()
+			throws IOException {
+		readRemoved();
+		return removedSeries.values();
+	}
+
+	private boolean openManifest() throws IOException {
+		if (!manifestOpened) {
+			manifestOpened = true;
+			if (IncrementalManifest.exists(conf)) {
+				manifest = new MapFile.Reader(
+						IncrementalManifest.getManifestPath(conf), conf);
+			}
+		}
+		return manifest != null;
+	}
+
+	/***
+	 * Moves to the first entry of the manifest whose key starts with the
+	 * prefix, or comes after it, so that the next entries can be read.
+	 * 
+	 * @return the key of the entry, or null at the end of the manifest.
+	 */
+	private Text closest(String prefix, ManifestEntryWritable entry)
+			throws IOException {
+		Text found = (Text) manifest.getClosest(new Text(prefix), entry);
+		return found == null ? null : new Text(found);
+	}
+
+	private void readRemoved() throws IOException {
+		if (removedKeys != null) {
+			return;
+		}
+		removedKeys = new HashSet<String>();
+		removedSeries = new HashMap<String, KeyStructureWritable>();
+
+		SequenceFile.Reader reader = null;
+		try {
+			reader = new SequenceFile.Reader(conf,
+					SequenceFile.Reader.file(new Path(
+							IncrementalManifest.getPlanPath(conf),
+							IncrementalManifest.removedFile)));
+
+			Text key = new Text();
+			ManifestEntryWritable entry = new ManifestEntryWritable();
+			while (reader.next(key, entry)) {
+				removedKeys.add(key.toString());
+				if (entry.isProcessed()) {
+					removedSeries.put(entry.getSeriesInstanceUID(),
+							entry.getKeyStructure());
+					entry = new ManifestEntryWritable();
+				}
+			}
+		} finally {
+			IOUtils.closeStream(reader);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		IOUtils.closeStream(manifest);
+		IOUtils.closeStream(listed);
+	}
+}
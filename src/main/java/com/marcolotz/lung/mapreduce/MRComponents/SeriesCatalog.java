@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * The series catalog written by the CatalogDriver, loaded in memory. It lets
+ * the processing job plan its splits, filter the series and size its reducers
+ * without parsing the DICOM headers again.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SeriesCatalog {
+
+	/* Written by the FileOutputCommitter when the catalog job succeeds */
+	private static final String successMarker = "_SUCCESS";
+
+	private final Map<String, SeriesCatalogEntryWritable> series = new LinkedHashMap<String, SeriesCatalogEntryWritable>();
+
+	/* Slices and their series, by the path component of their URI */
+	private final Map<String, CatalogSliceWritable> slices = new HashMap<String, CatalogSliceWritable>();
+	private final Map<String, SeriesCatalogEntryWritable> sliceSeries = new HashMap<String, SeriesCatalogEntryWritable>();
+
+	/***
+	 * @param conf
+	 * @return true if the processing job should use the catalog.
+	 */
+	public static boolean isEnabled(Configuration conf) {
+		return conf.getBoolean("com.marcolotz.catalog.enabled", false);
+	}
+
+	/***
+	 * @param conf
+	 * @return the directory of the catalog.
+	 */
+	public static Path getCatalogPath(Configuration conf) {
+		return new Path(conf.get("com.marcolotz.catalog.path", "lungCatalog"));
+	}
+
+	/***
+	 * Loads the catalog if it is enabled and was written.
+	 * 
+	 * @param conf
+	 * @return the catalog, or null if there is no catalog to use.
+	 * @throws IOException
+	 */
+	public static SeriesCatalog load(Configuration conf) throws IOException {
+		if (!isEnabled(conf)) {
+			return null;
+		}
+
+		Path catalogPath = getCatalogPath(conf);
+		FileSystem fs = catalogPath.getFileSystem(conf);
+
+		if (!fs.exists(new Path(catalogPath, successMarker))) {
+			return null;
+		}
+
+		SeriesCatalog catalog = new SeriesCatalog();
+
+		for (FileStatus part : fs.listStatus(catalogPath)) {
+			String name = part.getPath().getName();
+			if (part.isDirectory() || name.startsWith("_")
+					|| name.startsWith(".")) {
+				continue;
+			}
+
+			SequenceFile.Reader reader = null;
+			try {
+				reader = new SequenceFile.Reader(conf,
+						SequenceFile.Reader.file(part.getPath()));
+
+				Text seriesUID = new Text();
+				SeriesCatalogEntryWritable entry = new SeriesCatalogEntryWritable();
+				while (reader.next(seriesUID, entry)) {
+					catalog.add(entry);
+					entry = new SeriesCatalogEntryWritable();
+				}
+			} finally {
+				IOUtils.closeStream(reader);
+			}
+		}
+
+		return catalog;
+	}
+
+	/***
+	 * Checks that the catalog describes exactly the given input files: the same
+	 * paths, with the same lengths, none of them modified after the catalog
+	 * was written.
+	 * 
+	 * @param conf
+	 * @param inputFiles
+	 * @return true if the catalog can be reused.
+	 * @throws IOException
+	 */
+	public boolean isUpToDate(Configuration conf, List<FileStatus> inputFiles)
+			throws IOException {
+		Path catalogPath = getCatalogPath(conf);
+		FileSystem fs = catalogPath.getFileSystem(conf);
+
+		long catalogTime = fs.getFileStatus(new Path(catalogPath, successMarker))
+				.getModificationTime();
+
+		if (inputFiles.size() != slices.size()) {
+			return false;
+		}
+
+		for (FileStatus file : inputFiles) {
+			CatalogSliceWritable slice = getSlice(file.getPath());
+
+			if (slice == null || slice.getLength() != file.getLen()
+					|| file.getModificationTime() > catalogTime) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(SeriesCatalogEntryWritable entry) {
+		series.put(entry.getSeriesInstanceUID(), entry);
+
+		for (CatalogSliceWritable slice : entry.getSlices()) {
+			String key = toKey(new Path(slice.getPath()));
+			slices.put(key, slice);
+			sliceSeries.put(key, entry);
+		}
+	}
+
+	/***
+	 * The listing may or may not qualify the paths with the file system
+	 * scheme, thus only the path itself is compared.
+	 */
+	private static String toKey(Path path) {
+		return path.toUri().getPath();
+	}
+
+	public Collection<SeriesCatalogEntryWritable> getSeries() {
+		return series.values();
+	}
+
+	/***
+	 * @param path
+	 * @return the catalog slice of the file, or null if it is not cataloged.
+	 */
+	public CatalogSliceWritable getSlice(Path path) {
+		return slices.get(toKey(path));
+	}
+
+	/***
+	 * @param path
+	 * @return the series of the file, or null if it is not cataloged.
+	 */
+	public SeriesCatalogEntryWritable getSeriesOf(Path path) {
+		return sliceSeries.get(toKey(path));
+	}
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A series of the catalog written by the CatalogDriver: the series key fields,
+ * its dimensions and all of its slices.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SeriesCatalogEntryWritable implements Writable {
+
+	private KeyStructureWritable keyStructure = new KeyStructureWritable();
+
+	private List<CatalogSliceWritable> slices = new ArrayList<CatalogSliceWritable>();
+
+	private long totalBytes;
+	private long totalCost;
+
+	public SeriesCatalogEntryWritable() {
+	}
+
+	public SeriesCatalogEntryWritable(KeyStructureWritable keyStructure) {
+		this.keyStructure = keyStructure;
+	}
+
+	public void addSlice(CatalogSliceWritable slice) {
+		slices.add(slice);
+		totalBytes += slice.getLength();
+		totalCost += slice.getCost();
+	}
+
+	public KeyStructureWritable getKeyStructure() {
+		return keyStructure;
+	}
+
+	public String getSeriesInstanceUID() {
+		return keyStructure.getSeriesInstanceUID();
+	}
+
+	public List<CatalogSliceWritable> getSlices() {
+		return slices;
+	}
+
+	public int getSliceCount() {
+		return slices.size();
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public long getTotalCost() {
+		return totalCost;
+	}
+
+	/***
+	 * @return the rows of the series slices, 0 if unknown
+	 */
+	public int getRows() {
+		return slices.isEmpty() ? 0 : slices.get(0).getRows();
+	}
+
+	/***
+	 * @return the columns of the series slices, 0 if unknown
+	 */
+	public int getColumns() {
+		return slices.isEmpty() ? 0 : slices.get(0).getColumns();
+	}
+
+	/***
+	 * @return the orientation of the first slice. The slices of a series share
+	 *         the same plane.
+	 */
+	public String getImageOrientation() {
+		return slices.isEmpty() ? null : slices.get(0).getImageOrientation();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		keyStructure.write(out);
+
+		out.writeInt(slices.size());
+		for (CatalogSliceWritable slice : slices) {
+			slice.write(out);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		keyStructure = new KeyStructureWritable();
+		keyStructure.readFields(in);
+
+		int sliceCount = in.readInt();
+
+		slices = new ArrayList<CatalogSliceWritable>(sliceCount);
+		totalBytes = 0;
+		totalCost = 0;
+
+		for (int i = 0; i < sliceCount; i++) {
+			CatalogSliceWritable slice = new CatalogSliceWritable();
+			slice.readFields(in);
+			addSlice(slice);
+		}
+	}
+}
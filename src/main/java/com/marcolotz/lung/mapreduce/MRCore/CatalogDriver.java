@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRCore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import com.marcolotz.lung.mapreduce.MRComponents.CatalogSliceWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalog;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalogEntryWritable;
+import com.marcolotz.lung.mapreduce.io.inputFormat.HeaderOnlyInputFormat;
+import com.marcolotz.mapreduce.hadooplung.reducer.CatalogReducer;
+
+/**
+ * Pre-scan job that reads only the DICOM headers of the input and writes the
+ * series catalog: one entry per SeriesInstanceUID with its key fields,
+ * dimensions, slice count, total bytes and the paths of its slices.
+ * 
+ * The catalog is written to com.marcolotz.catalog.path and is reused by later
+ * runs while it still describes the input files. It can be run on its own or
+ * from the LungDriver, when com.marcolotz.catalog.enabled is set.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class CatalogDriver extends Configured implements Tool {
+
+	static {
+		Configuration.addDefaultResource("./lungConfiguration.xml");
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		Configuration conf = getConf();
+
+		if (args.length != 0) {
+			System.err.println(CatalogDriver.class.getSimpleName()
+					+ " takes no arguments. The input is read from mapred.input.dir and the catalog is written to com.marcolotz.catalog.path");
+			return 1;
+		}
+
+		return ensureCatalog(conf) ? 0 : 1;
+	}
+
+	/***
+	 * Makes sure that there is an up to date catalog of the job input. The
+	 * existing catalog is reused unless it is stale or
+	 * com.marcolotz.catalog.rebuild is set.
+	 * 
+	 * @param conf
+	 * @return true if the catalog is ready.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ClassNotFoundException
+	 */
+	public static boolean ensureCatalog(Configuration conf) throws IOException,
+			InterruptedException, ClassNotFoundException {
+		Path catalogPath = SeriesCatalog.getCatalogPath(conf);
+
+		System.out.print("Checking the series catalog at " + catalogPath
+				+ ": ");
+
+		if (!conf.getBoolean("com.marcolotz.catalog.rebuild", false)) {
+			/* Loaded regardless of com.marcolotz.catalog.enabled */
+			Configuration loadConf = new Configuration(conf);
+			loadConf.setBoolean("com.marcolotz.catalog.enabled", true);
+
+			SeriesCatalog catalog = SeriesCatalog.load(loadConf);
+
+			if (catalog != null
+					&& catalog.isUpToDate(loadConf, listInputFiles(conf))) {
+				System.out.println("[REUSED]\n");
+				return true;
+			}
+		}
+
+		System.out.println("[REBUILDING]\n");
+
+		return buildCatalog(conf, catalogPath);
+	}
+
+	/***
+	 * Runs the catalog job. It writes to a temporary directory that replaces
+	 * the old catalog only once the job succeeds.
+	 */
+	private static boolean buildCatalog(Configuration conf, Path catalogPath)
+			throws IOException, InterruptedException, ClassNotFoundException {
+		FileSystem fs = catalogPath.getFileSystem(conf);
+		Path temporaryPath = new Path(catalogPath.getParent(),
+				catalogPath.getName() + ".tmp");
+
+		fs.delete(temporaryPath, true);
+
+		Job job = Job.getInstance(conf);
+		job.setJobName("lungCatalog");
+		job.setJarByClass(CatalogDriver.class);
+
+		job.setInputFormatClass(HeaderOnlyInputFormat.class);
+		FileInputFormat.setInputPaths(job, conf.get("mapred.input.dir"));
+
+		/* The header-only reader already produces the series key */
+		job.setMapperClass(Mapper.class);
+		job.setMapOutputKeyClass(KeyStructureWritable.class);
+		job.setMapOutputValueClass(CatalogSliceWritable.class);
+
+		job.setReducerClass(CatalogReducer.class);
+		job.setNumReduceTasks(conf.getInt("com.marcolotz.catalog.reducers", 1));
+
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(SeriesCatalogEntryWritable.class);
+		FileOutputFormat.setOutputPath(job, temporaryPath);
+
+		if (!job.waitForCompletion(true)) {
+			System.err.println("Failed to build the series catalog");
+			return false;
+		}
+
+		fs.delete(catalogPath, true);
+		if (!fs.rename(temporaryPath, catalogPath)) {
+			System.err.println("Failed to move the series catalog to "
+					+ catalogPath);
+			return false;
+		}
+
+		return true;
+	}
+
+	/***
+	 * @param conf
+	 * @return the input files of the job, with fully qualified paths.
+	 * @throws IOException
+	 */
+	private static List<FileStatus> listInputFiles(Configuration conf)
+			throws IOException {
+		boolean recursive = conf.getBoolean(FileInputFormat.INPUT_DIR_RECURSIVE,
+				false);
+
+		List<FileStatus> files = new ArrayList<FileStatus>();
+
+		for (String inputDir : conf.getTrimmedStrings("mapred.input.dir")) {
+			Path inputPath = new Path(inputDir);
+			FileSystem fs = inputPath.getFileSystem(conf);
+
+			RemoteIterator<LocatedFileStatus> iterator = fs.listFiles(
+					inputPath, recursive);
+			while (iterator.hasNext()) {
+				LocatedFileStatus status = iterator.next();
+				String name = status.getPath().getName();
+
+				/* Same hidden files rule of the FileInputFormat */
+				if (!name.startsWith("_") && !name.startsWith(".")) {
+					files.add(status);
+				}
+			}
+		}
+		return files;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(new CatalogDriver(), args);
+		System.exit(exitCode);
+	}
+}
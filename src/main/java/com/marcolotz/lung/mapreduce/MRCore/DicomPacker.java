@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRCore;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+import com.marcolotz.lung.mapreduce.io.inputFormat.DicomFileInput;
+import com.marcolotz.lung.mapreduce.io.inputFormat.DicomHeaderParser;
+import com.marcolotz.lung.mapreduce.io.inputFormat.PayloadBuffer;
+
+/**
+ * Ingest tool that packs a directory tree of raw DICOM files into a few large
+ * SequenceFile containers. Each record is keyed by the SOPInstanceUID of the
+ * image and holds the untouched bytes of the original file, so the
+ * {@link com.marcolotz.lung.mapreduce.io.inputFormat.PackedDicomInputFormat}
+ * can hand the mapper exactly the same payload that the small files would.
+ * Compressed input files, like ".dcm.gz", are packed decompressed.
+ *
+ * Containers are written with the configured HDFS block size and are rolled
+ * once they reach the configured container size, which should be a multiple
+ * of the block size.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+public class DicomPacker extends Configured implements Tool {
+
+	static {
+		Configuration.addDefaultResource("./lungConfiguration.xml");
+	}
+
+	/* 128 MB, default block size Cloudera YARN. */
+	private static final long defaultBlockSize = 134217728L;
+
+	/* Eight blocks per container */
+	private static final long defaultContainerSize = 8 * defaultBlockSize;
+
+	private Path outputDir;
+
+	private final DicomHeaderParser headerParser = new DicomHeaderParser();
+
+	/* Content of the file being packed, reused for every file */
+	private final BytesWritable contents = new BytesWritable();
+
+	private SequenceFile.Writer writer;
+	private int containerIndex;
+
+	private long blockSize;
+	private long containerSize;
+
+	@Override
+	public int run(String[] args) throws Exception {
+		if (args.length != 2) {
+			printUsage();
+			return 1;
+		}
+
+		Configuration conf = getConf();
+
+		blockSize = conf.getLong("com.marcolotz.packer.blockSize",
+				defaultBlockSize);
+		containerSize = conf.getLong("com.marcolotz.packer.containerSize",
+				defaultContainerSize);
+
+		Path inputDir = new Path(args[0]);
+		outputDir = new Path(args[1]);
+
+		FileSystem inputFs = inputDir.getFileSystem(conf);
+
+		System.out.println("Packing " + inputDir + " into " + outputDir);
+		System.out.println("Container size: " + containerSize
+				+ " bytes, block size: " + blockSize + " bytes");
+
+		containerIndex = 0;
+		long packedFiles = 0;
+
+		try {
+			RemoteIterator<LocatedFileStatus> files = inputFs.listFiles(
+					inputDir, true);
+
+			while (files.hasNext()) {
+				LocatedFileStatus status = files.next();
+
+				if (status.getLen() > (long) Integer.MAX_VALUE) {
+					System.err.println("Skipping " + status.getPath()
+							+ ": file is longer than Integer.MAX_VALUE.");
+					continue;
+				}
+
+				DicomFileInput.read(status.getPath(), status.getLen(),
+						getConf(), contents);
+
+				Text key = new Text(getRecordKey(status.getPath(), contents));
+				getWriter().append(key, contents);
+				packedFiles++;
+			}
+		} finally {
+			IOUtils.closeStream(writer);
+		}
+
+		System.out.println("Packed " + packedFiles + " files into "
+				+ containerIndex + " containers [DONE]");
+		return 0;
+	}
+
+	/***
+	 * Returns the writer of the current container. A new container is opened
+	 * when there is none yet or the current one reached the container size.
+	 *
+	 * @return the writer to append the next record to
+	 * @throws IOException
+	 */
+	private SequenceFile.Writer getWriter() throws IOException {
+		if (writer != null && writer.getLength() < containerSize) {
+			return writer;
+		}
+
+		IOUtils.closeStream(writer);
+
+		Path container = new Path(outputDir, String.format("dicom-%05d.seq",
+				containerIndex++));
+
+		writer = SequenceFile.createWriter(getConf(),
+				SequenceFile.Writer.file(container),
+				SequenceFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(BytesWritable.class),
+				SequenceFile.Writer.blockSize(blockSize),
+				SequenceFile.Writer.compression(CompressionType.NONE));
+
+		return writer;
+	}
+
+	/***
+	 * The container key is the SOPInstanceUID of the image, read from the
+	 * header only. Files that are not readable as DICOM keep their path as
+	 * key, so nothing is silently lost.
+	 *
+	 * @param path
+	 * @param contents
+	 * @return the record key
+	 * @throws IOException
+	 */
+	private String getRecordKey(Path path, BytesWritable contents)
+			throws IOException {
+		DicomHeader header = headerParser.parse(PayloadBuffer
+				.asStream(contents));
+
+		String sopInstanceUID = header.getTag(DICOMTags.SOPInstanceUID);
+
+		if (sopInstanceUID == null) {
+			return path.toString();
+		}
+		return sopInstanceUID.trim();
+	}
+
+	private void printUsage() {
+		System.err.println(DicomPacker.class.getSimpleName()
+				+ " [DICOM input directory] [container output directory]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(new DicomPacker(), args);
+		System.exit(exitCode);
+	}
+}
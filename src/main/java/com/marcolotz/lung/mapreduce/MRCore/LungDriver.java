@@ -26,10 +26,26 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
+import com.marcolotz.lung.mapreduce.MRComponents.IncrementalManifest;
+import com.marcolotz.lung.mapreduce.MRComponents.ManifestEntryWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalog;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalogEntryWritable;
+import com.marcolotz.lung.mapreduce.MapperComponents.SliceFilter;
+import com.marcolotz.lung.mapreduce.io.inputFormat.MultipleFilesInputFormat;
+import com.marcolotz.lung.mapreduce.io.inputFormat.SeriesBundleInputFormat;
+import com.marcolotz.lung.mapreduce.io.outputFormat.SeriesDataWritable;
+import com.marcolotz.lung.mapreduce.mapper.SeriesMapper;
+
 /**
  * Main Launcher for the Hadoop Application. The XML file with the
  * configurations is added here.
@@ -85,8 +101,13 @@ public class LungDriver extends Configured implements Tool {
 								"com.marcolotz.imageprocess.grayNoduleCandidates.topThreshold",
 								120));
 
-		System.out.print("Cleaning output path: ");
-		cleanOutputPath(conf, outputPath);
+		SeriesCatalog catalog = null;
+		if (SeriesCatalog.isEnabled(conf)) {
+			if (!CatalogDriver.ensureCatalog(conf)) {
+				return 1;
+			}
+			catalog = SeriesCatalog.load(conf);
+		}
 
 		System.out.print("Configuring the job " + jobName + ": ");
 
@@ -100,11 +121,116 @@ public class LungDriver extends Configured implements Tool {
 		 */
 		job.setJarByClass(this.getClass());
 
+		if (catalog != null) {
+			setReducersFromCatalog(job, catalog);
+		}
+
+		boolean incremental = false;
+		if (SeriesBundleInputFormat.class.isAssignableFrom(job
+				.getInputFormatClass())) {
+			configureSeriesBundles(job);
+		} else if (IncrementalManifest.isEnabled(conf)) {
+			if (!configureIncremental(job, outputPath)) {
+				return 1;
+			}
+			incremental = true;
+		}
+
 		System.out.println("[DONE]\n");
 
+		if (incremental) {
+			System.out.print("Cleaning the temporary output path: ");
+			cleanOutputPath(conf, getJobOutputPath(outputPath).toString());
+		}
+		if (incremental && IncrementalManifest.exists(conf)) {
+			System.out.println("Keeping the output of the other series at "
+					+ outputPath + "\n");
+		} else {
+			System.out.print("Cleaning output path: ");
+			cleanOutputPath(conf, outputPath);
+		}
+
 		// Submits the job to the cluster
 		System.out.println("Distributing the job:");
-		return job.waitForCompletion(true) ? 0 : 1;
+		if (!job.waitForCompletion(true)) {
+			return 1;
+		}
+
+		if (incremental) {
+			System.out.print("Publishing the series and the new manifest: ");
+			IncrementalManifest.publish(conf, getJobOutputPath(outputPath),
+					new Path(outputPath));
+			System.out.println("[DONE]\n");
+		}
+		return 0;
+	}
+
+	/***
+	 * When whole series are read by the SeriesBundleInputFormat, the
+	 * SeriesMapper writes the series results itself and the job runs map-only.
+	 * 
+	 * @param job
+	 */
+	private void configureSeriesBundles(Job job) {
+		System.out.println("Series bundle mode: map-only job\n");
+
+		job.setMapperClass(SeriesMapper.class);
+		job.setNumReduceTasks(0);
+		job.setMapOutputKeyClass(SeriesDataWritable.class);
+		job.setMapOutputValueClass(NullWritable.class);
+		job.setOutputKeyClass(SeriesDataWritable.class);
+		job.setOutputValueClass(NullWritable.class);
+	}
+
+	/***
+	 * In the incremental mode, the MultipleFilesInputFormat only lists the new
+	 * and changed files and the reducers only write the series that changed,
+	 * each one to its own directory. The job writes them to a temporary
+	 * directory, from where they replace the output of the same series once
+	 * the job succeeds, while the output of the other series is kept.
+	 * 
+	 * @param job
+	 * @param outputPath
+	 * @return false if the input format cannot be used in the incremental
+	 *         mode.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private boolean configureIncremental(Job job, String outputPath)
+			throws IOException, ClassNotFoundException {
+		Configuration conf = job.getConfiguration();
+
+		if (!MultipleFilesInputFormat.class.isAssignableFrom(job
+				.getInputFormatClass())) {
+			System.err
+					.println("The incremental mode needs the MultipleFilesInputFormat");
+			return false;
+		}
+
+		if (IncrementalManifest.exists(conf)) {
+			System.out.println("Planning the run from the manifest at "
+					+ IncrementalManifest.getManifestPath(conf));
+		} else {
+			System.out.println("No manifest found, processing all the slices");
+		}
+
+		FileOutputFormat.setOutputPath(job, getJobOutputPath(outputPath));
+
+		/* The reducers only write through the series directories */
+		LazyOutputFormat.setOutputFormatClass(job, job.getOutputFormatClass());
+
+		MultipleOutputs.addNamedOutput(job, IncrementalManifest.namedOutput,
+				SequenceFileOutputFormat.class, Text.class,
+				ManifestEntryWritable.class);
+		return true;
+	}
+
+	/***
+	 * @param outputPath
+	 * @return the temporary output directory of an incremental job.
+	 */
+	private static Path getJobOutputPath(String outputPath) {
+		return new Path(outputPath + ".incremental");
 	}
 
 	/***
@@ -146,6 +272,31 @@ public class LungDriver extends Configured implements Tool {
 
 	}
 
+	/***
+	 * Each reducer handles whole series, so there is no point in having more
+	 * reducers than series to process.
+	 * 
+	 * @param job
+	 * @param catalog
+	 */
+	private void setReducersFromCatalog(Job job, SeriesCatalog catalog) {
+		SliceFilter filter = new SliceFilter(job.getConfiguration());
+
+		int seriesCount = 0;
+		for (SeriesCatalogEntryWritable series : catalog.getSeries()) {
+			if (filter.check(series) == null) {
+				seriesCount++;
+			}
+		}
+
+		int reducers = Math.max(1,
+				Math.min(job.getNumReduceTasks(), seriesCount));
+		job.setNumReduceTasks(reducers);
+
+		System.out.println("Series to process: " + seriesCount
+				+ ", reducers: " + reducers + "\n");
+	}
+
 	private void cleanOutputPath(Configuration conf, String outputPath) {
 		try {
 			FileSystem fs = FileSystem.get(conf);
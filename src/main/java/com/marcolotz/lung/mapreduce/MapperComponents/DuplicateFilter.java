@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MapperComponents;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+import com.marcolotz.lung.mapreduce.MRComponents.LungCounters;
+
+/**
+ * Drops the duplicate slices of an archive, such as re-sends and PACS
+ * re-exports, before their pixel data is decoded. A slice is a duplicate if a
+ * slice with the same SOPInstanceUID was already seen by the task. Slices
+ * without a SOPInstanceUID are compared by their content digest only.
+ * 
+ * The content digest is the SHA-1 of the whole file, so two different slices
+ * are never taken as copies of each other, as it could happen with a 32 bits
+ * checksum. It is also kept in the ImageMetadata, so that the LungReducer can
+ * drop the duplicates that were read by different map tasks. Since it is only
+ * the identity of the slices without a SOPInstanceUID, the others are
+ * compared by a CRC32 of the file, which only tells an identical copy from a
+ * re-export with changes in the counters.
+ * 
+ * A single filter is shared by all the threads of a multithreaded map task.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class DuplicateFilter {
+
+	private final boolean enabled;
+
+	/* Checksum of the slices seen, by SOPInstanceUID */
+	private final Map<String, Long> seenInstances = new HashMap<String, Long>();
+
+	/* Content digest of the slices seen without a SOPInstanceUID */
+	private final Set<String> seenContents = new HashSet<String>();
+
+	public DuplicateFilter(Configuration conf) {
+		enabled = isEnabled(conf);
+	}
+
+	/***
+	 * @param conf
+	 * @return true if the duplicate slices should be dropped.
+	 */
+	public static boolean isEnabled(Configuration conf) {
+		return conf.getBoolean("com.marcolotz.dedup.enabled", false);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/***
+	 * @param header
+	 * @return true if the slice has no SOPInstanceUID, so that its content
+	 *         digest is its identity.
+	 */
+	public static boolean isIdentifiedByContent(DicomHeader header) {
+		String sopInstanceUID = header.getTag(DICOMTags.SOPInstanceUID);
+		return sopInstanceUID == null || sopInstanceUID.trim().isEmpty();
+	}
+
+	/***
+	 * @return a new digest of the kind used for the slice contents. Digests
+	 *         are not thread-safe, each thread needs its own.
+	 */
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			/* Every Java platform is required to have SHA-1 */
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/***
+	 * @param digest
+	 *            created by {@link #createDigest()}
+	 * @param content
+	 * @param length
+	 *            of the content
+	 * @return the content digest of the file, in hexadecimal
+	 */
+	public static String getContentDigest(MessageDigest digest,
+			byte[] content, int length) {
+		digest.reset();
+		digest.update(content, 0, length);
+
+		StringBuilder hex = new StringBuilder(digest.getDigestLength() * 2);
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/***
+	 * @param content
+	 * @param length
+	 *            of the content
+	 * @return the checksum of the file, used to compare the slices with the
+	 *         same SOPInstanceUID.
+	 */
+	public static long getChecksum(byte[] content, int length) {
+		CRC32 checksum = new CRC32();
+		checksum.update(content, 0, length);
+		return checksum.getValue();
+	}
+
+	/***
+	 * @param sopInstanceUID
+	 * @param contentDigest
+	 * @return the identity of a slice: its SOPInstanceUID, or its content
+	 *         digest if it has none.
+	 */
+	public static String getIdentity(String sopInstanceUID,
+			String contentDigest) {
+		if (sopInstanceUID == null || sopInstanceUID.trim().isEmpty()
+				|| sopInstanceUID.equals("null")) {
+			return contentDigest;
+		}
+		return sopInstanceUID.trim();
+	}
+
+	/***
+	 * Checks if the slice is a duplicate of one seen before, and records it
+	 * otherwise.
+	 * 
+	 * @param header
+	 * @param contentDigest
+	 *            of the slice, needed if it has no SOPInstanceUID
+	 * @param checksum
+	 *            of the slice, used if it has a SOPInstanceUID
+	 * @return null if the slice was not seen before, or the counter of the
+	 *         kind of duplicate.
+	 */
+	public synchronized LungCounters check(DicomHeader header,
+			String contentDigest, long checksum) {
+		if (isIdentifiedByContent(header)) {
+			return seenContents.add(contentDigest) ? null
+					: LungCounters.DUPLICATE_CONTENT;
+		}
+
+		String sopInstanceUID = header.getTag(DICOMTags.SOPInstanceUID).trim();
+		Long seenChecksum = seenInstances.get(sopInstanceUID);
+		if (seenChecksum == null) {
+			seenInstances.put(sopInstanceUID, checksum);
+			return null;
+		}
+
+		/* Same instance: an identical copy, or a re-export with changes */
+		return seenChecksum.longValue() == checksum ? LungCounters.DUPLICATE_CONTENT
+				: LungCounters.DUPLICATE_INSTANCE;
+	}
+}
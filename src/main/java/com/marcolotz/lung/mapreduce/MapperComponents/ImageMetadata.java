@@ -20,8 +20,6 @@
 
 package com.marcolotz.lung.mapreduce.MapperComponents;
 
-import ij.blob.Blob;
-
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
@@ -30,11 +28,12 @@ import java.util.Iterator;
 
 import org.apache.hadoop.io.Writable;
 
+import com.marcolotz.imageprocess.ConnectedComponent;
 import com.marcolotz.lung.mapreduce.MRComponents.SerializerConverter;
 
 /**
- * After the mapping process, there is no need to keep the Blob itself in image
- * processed object, just a few of its attributes. This class is used in the
+ * After the mapping process, there is no need to keep the component itself in
+ * the processed object, just a few of its attributes. This class is used in the
  * Reduce phase has a simple representation of the processed image.
  * 
  * @author Marco Aurelio Lotz
@@ -65,6 +64,12 @@ public class ImageMetadata implements Writable, Comparable<ImageMetadata> {
 	 */
 	private String imageOrientation;
 
+	/*
+	 * SHA-1 of the DICOM file, in hexadecimal, used to find the duplicate
+	 * slices. Null if the duplicates are not dropped.
+	 */
+	private String contentDigest;
+
 	ArrayList<MetaNodesCandidates> CandidatesList = new ArrayList<MetaNodesCandidates>();
 
 	// * ========================================================== */
@@ -84,6 +89,8 @@ public class ImageMetadata implements Writable, Comparable<ImageMetadata> {
 		this.imagePosition = source.getImagePosition();
 		this.imageOrientation = source.getImageOrientation();
 
+		this.contentDigest = source.getContentDigest();
+
 		CandidatesList = new ArrayList<MetaNodesCandidates>(source
 				.getBlobMetaList().size());
 
@@ -110,9 +117,10 @@ public class ImageMetadata implements Writable, Comparable<ImageMetadata> {
 	}
 
 	private void getBlobMetaInfo(ImageStructure mappedValue) {
-		ArrayList<Blob> blobList = mappedValue.getNodeCandidatesList();
+		ArrayList<ConnectedComponent> blobList = mappedValue
+				.getNodeCandidatesList();
 
-		Iterator<Blob> iterator = blobList.iterator();
+		Iterator<ConnectedComponent> iterator = blobList.iterator();
 
 		while (iterator.hasNext()) {
 			MetaNodesCandidates metab = new MetaNodesCandidates(iterator.next());
@@ -170,6 +178,21 @@ public class ImageMetadata implements Writable, Comparable<ImageMetadata> {
 		return imageOrientation;
 	}
 
+	/**
+	 * @return the contentDigest
+	 */
+	public String getContentDigest() {
+		return contentDigest;
+	}
+
+	/**
+	 * @param contentDigest
+	 *            the contentDigest to set
+	 */
+	public void setContentDigest(String contentDigest) {
+		this.contentDigest = contentDigest;
+	}
+
 	/**
 	 * @return the blobMetaList
 	 */
@@ -192,6 +215,8 @@ public class ImageMetadata implements Writable, Comparable<ImageMetadata> {
 
 		SerializerConverter.writeString(imageOrientation, out);
 
+		SerializerConverter.writeString(contentDigest, out);
+
 		/* Serializes the array list */
 		// Writes the size of the list
 		SerializerConverter.writeInt(CandidatesList.size(), out);
@@ -216,6 +241,8 @@ public class ImageMetadata implements Writable, Comparable<ImageMetadata> {
 
 		imageOrientation = SerializerConverter.readString(in);
 
+		contentDigest = SerializerConverter.readString(in);
+
 		/* de Serializes the array list */
 		// reads the size of the list:
 		int listSize = SerializerConverter.readInt(in);
@@ -20,13 +20,13 @@
 
 package com.marcolotz.lung.mapreduce.MapperComponents;
 
-import ij.blob.Blob;
 import ij.plugin.DICOM;
-import ij.util.DicomTools;
 
 import java.util.ArrayList;
 
+import com.marcolotz.imageprocess.ConnectedComponent;
 import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
 
 /**
  * The object contains a list of the nodes candidates for a single image. It
@@ -65,10 +65,20 @@ public class ImageStructure {
 
 	// * ========================================================== */
 
-	private ArrayList<Blob> nodeCandidatesList;
+	private ArrayList<ConnectedComponent> nodeCandidatesList;
 
 	public ImageStructure(DICOM image) {
-		generateMetadata(image);
+		generateMetadata(DicomHeader.fromImage(image));
+	}
+
+	/***
+	 * Generates the image structure from a header read without decoding the
+	 * pixel data.
+	 * 
+	 * @param header
+	 */
+	public ImageStructure(DicomHeader header) {
+		generateMetadata(header);
 	}
 
 	/***
@@ -76,11 +86,11 @@ public class ImageStructure {
 	 * 
 	 * @param candidates
 	 */
-	public void setNodeCandidatesList(ArrayList<Blob> candidates) {
+	public void setNodeCandidatesList(ArrayList<ConnectedComponent> candidates) {
 		this.nodeCandidatesList = candidates;
 	}
 
-	public ArrayList<Blob> getNodeCandidatesList() {
+	public ArrayList<ConnectedComponent> getNodeCandidatesList() {
 		return this.nodeCandidatesList;
 	}
 
@@ -137,19 +147,18 @@ public class ImageStructure {
 	 * Generates all the meta data part of the Value. Keep in mind that it also
 	 * need to get the nodes candidates from the processing part.
 	 * 
-	 * @param DICOM
-	 *            image
+	 * @param header
 	 */
-	private void generateMetadata(DICOM image) {
-		SOPInstanceUID = DicomTools.getTag(image, DICOMTags.SOPInstanceUID);
+	private void generateMetadata(DicomHeader header) {
+		SOPInstanceUID = header.getTag(DICOMTags.SOPInstanceUID);
 
-		imageDate = DicomTools.getTag(image, DICOMTags.ImageDate);
-		imageTime = DicomTools.getTag(image, DICOMTags.ImageTime);
+		imageDate = header.getTag(DICOMTags.ImageDate);
+		imageTime = header.getTag(DICOMTags.ImageTime);
 
-		aquisitionNumber = DicomTools.getTag(image, DICOMTags.AquisitionNumber);
+		aquisitionNumber = header.getTag(DICOMTags.AquisitionNumber);
 
-		imageNumber = DicomTools.getTag(image, DICOMTags.ImageNumber);
-		imagePosition = DicomTools.getTag(image, DICOMTags.ImagePosition);
-		imageOrientation = DicomTools.getTag(image, DICOMTags.ImageOrientation);
+		imageNumber = header.getTag(DICOMTags.ImageNumber);
+		imagePosition = header.getTag(DICOMTags.ImagePosition);
+		imageOrientation = header.getTag(DICOMTags.ImageOrientation);
 	}
 }
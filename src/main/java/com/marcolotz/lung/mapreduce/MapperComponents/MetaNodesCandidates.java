@@ -20,19 +20,17 @@
 
 package com.marcolotz.lung.mapreduce.MapperComponents;
 
-import java.awt.Polygon;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
 import org.apache.hadoop.io.Writable;
 
+import com.marcolotz.imageprocess.ConnectedComponent;
 import com.marcolotz.lung.mapreduce.MRComponents.SerializerConverter;
 
-import ij.blob.Blob;
-
 /**
- * This class holds the important metadata from the blob generated in the Map
+ * This class holds the important metadata from the component found in the Map
  * phase, in order to make the JSON serialization possible.
  * 
  * @author Marco Aurelio Lotz
@@ -65,22 +63,17 @@ public class MetaNodesCandidates implements Writable, Cloneable {
 	public MetaNodesCandidates() {
 	}
 
-	public MetaNodesCandidates(Blob blob) {
-		this.circularity = blob.getCircularity();
-		this.enclosedArea = blob.getEnclosedArea();
-		this.perimeter = blob.getPerimeter();
-
-		Polygon pol = blob.getOuterContour();
-
-		/* A pixel of width is considered 0 by the algorithm */
-		this.width = pol.getBounds().width;
-		this.height = pol.getBounds().height;
+	public MetaNodesCandidates(ConnectedComponent component) {
+		this.circularity = component.getCircularity();
+		this.enclosedArea = component.getEnclosedArea();
+		this.perimeter = component.getPerimeter();
 
-		this.width++;
-		this.height++;
+		/* The bounding box counts the pixels, a single pixel has width 1 */
+		this.width = component.getWidth();
+		this.height = component.getHeight();
 
-		this.xCoord = pol.getBounds().x;
-		this.yCoord = pol.getBounds().y;
+		this.xCoord = component.getX();
+		this.yCoord = component.getY();
 	}
 
 	/***
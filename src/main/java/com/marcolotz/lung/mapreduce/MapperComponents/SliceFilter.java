@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MapperComponents;
+
+import java.util.Locale;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.LungCounters;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalogEntryWritable;
+
+/**
+ * Selects the slices that should be processed, using only the DICOM header.
+ * Since it is evaluated before the pixel data is decoded, scouts, localizers,
+ * other modalities and reconstructions in other planes cost only the header
+ * parsing.
+ * 
+ * Each filter is disabled when its property is empty. A slice that does not
+ * have the tag of an enabled filter is accepted, since there is no evidence
+ * that it is not a target slice.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SliceFilter {
+
+	/* Accepted values, in upper case. Null accepts anything */
+	private final String[] modalities;
+	private final String[] bodyParts;
+	private final String[] manufacturers;
+
+	/* Index of the patient axis normal to the accepted plane, -1 for any */
+	private final int orientationAxis;
+	private final double orientationTolerance;
+
+	/* Slice thickness range in mm, 0 for no limit */
+	private final double minSliceThickness;
+	private final double maxSliceThickness;
+
+	public SliceFilter(Configuration conf) {
+		modalities = readList(conf, "com.marcolotz.filter.modality");
+		bodyParts = readList(conf, "com.marcolotz.filter.bodyPart");
+		manufacturers = readList(conf, "com.marcolotz.filter.manufacturer");
+
+		String orientation = conf.getTrimmed("com.marcolotz.filter.orientation",
+				"").toLowerCase(Locale.ROOT);
+
+		if (orientation.isEmpty() || orientation.equals("any")) {
+			orientationAxis = -1;
+		} else if (orientation.equals("sagittal")) {
+			orientationAxis = 0;
+		} else if (orientation.equals("coronal")) {
+			orientationAxis = 1;
+		} else if (orientation.equals("axial")) {
+			orientationAxis = 2;
+		} else {
+			throw new IllegalArgumentException(
+					"com.marcolotz.filter.orientation must be any, axial, coronal or sagittal, not "
+							+ orientation);
+		}
+
+		orientationTolerance = conf.getFloat(
+				"com.marcolotz.filter.orientationTolerance", 0.9f);
+
+		minSliceThickness = conf.getFloat(
+				"com.marcolotz.filter.minSliceThickness", 0);
+		maxSliceThickness = conf.getFloat(
+				"com.marcolotz.filter.maxSliceThickness", 0);
+	}
+
+	/***
+	 * @return true if any of the filters is enabled.
+	 */
+	public boolean isEnabled() {
+		return modalities != null || bodyParts != null
+				|| manufacturers != null || orientationAxis != -1
+				|| minSliceThickness > 0 || maxSliceThickness > 0;
+	}
+
+	/***
+	 * Evaluates the filters on a slice header.
+	 * 
+	 * @param header
+	 * @return null if the slice should be processed, or the counter of the
+	 *         filter that rejected it.
+	 */
+	public LungCounters check(DicomHeader header) {
+		return check(header.getTag(DICOMTags.Modality),
+				header.getTag(DICOMTags.BodyPartExamined),
+				header.getTag(DICOMTags.Manufacturer),
+				header.getTag(DICOMTags.ImageOrientation),
+				header.getTag(DICOMTags.SliceThickness));
+	}
+
+	/***
+	 * Evaluates the filters on a series of the catalog, using the orientation
+	 * of its first slice.
+	 * 
+	 * @param entry
+	 * @return null if the series should be processed, or the counter of the
+	 *         filter that rejected it.
+	 */
+	public LungCounters check(SeriesCatalogEntryWritable entry) {
+		KeyStructureWritable key = entry.getKeyStructure();
+
+		return check(key.getModality(), key.getBodyPartExamined(),
+				key.getManufacturer(), entry.getImageOrientation(),
+				key.getSliceThickness());
+	}
+
+	private LungCounters check(String modality, String bodyPart,
+			String manufacturer, String orientation, String sliceThickness) {
+		if (!matches(modalities, modality, false)) {
+			return LungCounters.REJECTED_MODALITY;
+		}
+
+		if (!matches(bodyParts, bodyPart, false)) {
+			return LungCounters.REJECTED_BODY_PART;
+		}
+
+		if (!matches(manufacturers, manufacturer, true)) {
+			return LungCounters.REJECTED_MANUFACTURER;
+		}
+
+		if (!checkOrientation(orientation)) {
+			return LungCounters.REJECTED_ORIENTATION;
+		}
+
+		if (!checkSliceThickness(sliceThickness)) {
+			return LungCounters.REJECTED_SLICE_THICKNESS;
+		}
+
+		return null;
+	}
+
+	/***
+	 * Missing tags are serialized by the SerializerConverter as "null".
+	 */
+	private static boolean isMissing(String value) {
+		return value == null || value.trim().isEmpty()
+				|| value.equals("null");
+	}
+
+	/***
+	 * @param accepted
+	 * @param value
+	 * @param partial
+	 *            if true, the value only needs to contain an accepted string.
+	 *            Manufacturer names are not written consistently.
+	 */
+	private static boolean matches(String[] accepted, String value,
+			boolean partial) {
+		if (accepted == null || isMissing(value)) {
+			return true;
+		}
+
+		value = value.trim().toUpperCase(Locale.ROOT);
+
+		for (String candidate : accepted) {
+			if (partial ? value.contains(candidate) : value.equals(candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/***
+	 * The normal of the slice plane is the cross product of the row and column
+	 * direction cosines. The slice is in the accepted plane if the normal is
+	 * close enough to the corresponding patient axis.
+	 */
+	private boolean checkOrientation(String value) {
+		if (orientationAxis == -1 || isMissing(value)) {
+			return true;
+		}
+
+		String[] cosines = value.trim().split("\\\\");
+		if (cosines.length != 6) {
+			return true;
+		}
+
+		double[] v = new double[6];
+		try {
+			for (int i = 0; i < 6; i++) {
+				v[i] = Double.parseDouble(cosines[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			return true;
+		}
+
+		double[] normal = { v[1] * v[5] - v[2] * v[4],
+				v[2] * v[3] - v[0] * v[5], v[0] * v[4] - v[1] * v[3] };
+
+		return Math.abs(normal[orientationAxis]) >= orientationTolerance;
+	}
+
+	private boolean checkSliceThickness(String value) {
+		if ((minSliceThickness <= 0 && maxSliceThickness <= 0)
+				|| isMissing(value)) {
+			return true;
+		}
+
+		double thickness;
+		try {
+			thickness = Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return true;
+		}
+
+		if (minSliceThickness > 0 && thickness < minSliceThickness) {
+			return false;
+		}
+		if (maxSliceThickness > 0 && thickness > maxSliceThickness) {
+			return false;
+		}
+		return true;
+	}
+
+	private static String[] readList(Configuration conf, String name) {
+		String[] values = conf.getTrimmedStrings(name);
+		if (values.length == 0) {
+			return null;
+		}
+
+		for (int i = 0; i < values.length; i++) {
+			values[i] = values[i].toUpperCase(Locale.ROOT);
+		}
+		return values;
+	}
+}
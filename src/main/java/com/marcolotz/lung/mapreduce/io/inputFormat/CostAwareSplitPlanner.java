@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.net.NodeBase;
+import org.apache.log4j.Logger;
+
+import com.marcolotz.lung.mapreduce.MRComponents.CatalogSliceWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalog;
+
+/**
+ * Groups whole files into CombineFileSplits using the same node, rack and
+ * overflow passes as the CombineFileInputFormat, but sizing the splits by the
+ * estimated processing cost of each file instead of its length. This way each
+ * mapper receives a similar amount of work, while most of the reads are still
+ * node-local.
+ * 
+ * Without the series catalog, the header of every file is read while the
+ * splits are planned. These reads, and the block location lookups, are done
+ * by com.marcolotz.splits.planningThreads threads, so that the planning is
+ * not bound by the latency of one file at a time.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+class CostAwareSplitPlanner {
+
+	private static final Logger LOG = Logger
+			.getLogger(CostAwareSplitPlanner.class);
+
+	/* Maximum number of hosts reported by a non node-local split */
+	private static final int maximumLocations = 5;
+
+	private final long maxSplitCost;
+	private final long minSplitCostNode;
+	private final long minSplitCostRack;
+
+	/* Default number of threads that describe the files */
+	private static final int defaultPlanningThreads = 16;
+
+	/* The estimators keep a header parser, one per planning thread */
+	private final ThreadLocal<PixelCostEstimator> estimators = new ThreadLocal<PixelCostEstimator>() {
+		@Override
+		protected PixelCostEstimator initialValue() {
+			return new PixelCostEstimator();
+		}
+	};
+
+	/* Known costs of the cataloged files, may be null */
+	private final SeriesCatalog catalog;
+
+	/***
+	 * Information about a single input file. Files are never split, since the
+	 * DICOM images can only be decoded as a whole.
+	 */
+	private static class FileInfo {
+		Path path;
+		long length;
+		long cost;
+		String[] hosts;
+		String[] racks;
+		boolean assigned;
+	}
+
+	/***
+	 * @param maxSplitCost
+	 * @param minSplitCostNode
+	 * @param minSplitCostRack
+	 * @param catalog
+	 *            series catalog with the cost of each file. If null, or if a
+	 *            file is not in it, the cost is estimated from the file header.
+	 */
+	public CostAwareSplitPlanner(long maxSplitCost, long minSplitCostNode,
+			long minSplitCostRack, SeriesCatalog catalog) {
+		this.maxSplitCost = maxSplitCost;
+		this.minSplitCostNode = minSplitCostNode;
+		this.minSplitCostRack = minSplitCostRack;
+		this.catalog = catalog;
+	}
+
+	/***
+	 * Generates the input splits of the given files.
+	 *
+	 * @param conf
+	 * @param files
+	 * @return the list of CombineFileSplits
+	 * @throws IOException
+	 */
+	public List<InputSplit> plan(Configuration conf, List<FileStatus> files)
+			throws IOException {
+
+		List<FileInfo> infos = describeAll(conf, files);
+
+		/* Files of each node and rack, keeping the listing order */
+		Map<String, List<FileInfo>> nodeToFiles = new LinkedHashMap<String, List<FileInfo>>();
+		Map<String, List<FileInfo>> rackToFiles = new LinkedHashMap<String, List<FileInfo>>();
+
+		for (FileInfo info : infos) {
+			for (String host : info.hosts) {
+				addToMap(nodeToFiles, host, info);
+			}
+			for (String rack : info.racks) {
+				addToMap(rackToFiles, rack, info);
+			}
+		}
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+
+		/* Node-local splits */
+		for (Map.Entry<String, List<FileInfo>> node : nodeToFiles.entrySet()) {
+			groupFiles(node.getValue(), minSplitCostNode,
+					new String[] { node.getKey() }, false, splits);
+		}
+
+		/* Rack-local splits */
+		for (Map.Entry<String, List<FileInfo>> rack : rackToFiles.entrySet()) {
+			groupFiles(rack.getValue(), minSplitCostRack, null, false, splits);
+		}
+
+		/* Whatever was left, with no locality at all */
+		groupFiles(infos, 0, null, true, splits);
+
+		LOG.info("Generated " + splits.size() + " cost-aware splits for "
+				+ infos.size() + " files");
+
+		return splits;
+	}
+
+	/***
+	 * Describes the files concurrently, keeping the listing order.
+	 * 
+	 * @param conf
+	 * @param files
+	 * @return the information of every file that is not a directory
+	 * @throws IOException
+	 */
+	private List<FileInfo> describeAll(final Configuration conf,
+			List<FileStatus> files) throws IOException {
+		List<FileInfo> infos = new ArrayList<FileInfo>(files.size());
+
+		int threads = Math.min(getPlanningThreads(conf), files.size());
+		if (threads <= 1) {
+			for (FileStatus status : files) {
+				if (!status.isDirectory()) {
+					infos.add(describe(conf, status));
+				}
+			}
+			return infos;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<FileInfo>> described = new ArrayList<Future<FileInfo>>(
+					files.size());
+			for (final FileStatus status : files) {
+				if (status.isDirectory()) {
+					continue;
+				}
+				described.add(executor.submit(new Callable<FileInfo>() {
+					@Override
+					public FileInfo call() throws IOException {
+						return describe(conf, status);
+					}
+				}));
+			}
+
+			for (Future<FileInfo> info : described) {
+				infos.add(info.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while planning the splits", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not describe an input file",
+					e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return infos;
+	}
+
+	/***
+	 * @param conf
+	 * @return the number of threads that describe the input files.
+	 */
+	static int getPlanningThreads(Configuration conf) {
+		return Math.max(conf.getInt("com.marcolotz.splits.planningThreads",
+				defaultPlanningThreads), 1);
+	}
+
+	private FileInfo describe(Configuration conf, FileStatus status)
+			throws IOException {
+		FileSystem fs = status.getPath().getFileSystem(conf);
+
+		FileInfo info = new FileInfo();
+		info.path = status.getPath();
+		info.length = status.getLen();
+		CatalogSliceWritable slice = catalog == null ? null : catalog
+				.getSlice(status.getPath());
+
+		if (slice != null) {
+			info.cost = slice.getCost();
+		} else {
+			info.cost = estimators.get().estimate(fs, status);
+		}
+
+		BlockLocation[] blocks = fs.getFileBlockLocations(status, 0,
+				status.getLen());
+
+		if (blocks == null || blocks.length == 0) {
+			info.hosts = new String[0];
+			info.racks = new String[0];
+			return info;
+		}
+
+		/* Slices fit in a single block, its replicas give the locality */
+		info.hosts = blocks[0].getHosts();
+
+		String[] topologyPaths = blocks[0].getTopologyPaths();
+		info.racks = new String[topologyPaths.length];
+		for (int i = 0; i < topologyPaths.length; i++) {
+			info.racks[i] = new NodeBase(topologyPaths[i]).getNetworkLocation();
+		}
+
+		if (info.racks.length == 0 && info.hosts.length != 0) {
+			info.racks = new String[] { NetworkTopology.DEFAULT_RACK };
+		}
+
+		return info;
+	}
+
+	/***
+	 * Packs the unassigned files of the list into splits of at most the
+	 * maximum cost. Like in the CombineFileInputFormat, the remaining files
+	 * are only packed if a minimum is set and their cost reaches it, otherwise
+	 * they are left for the next pass. The overflow pass packs them all.
+	 *
+	 * @param candidates
+	 * @param minimumCost
+	 *            minimum cost of the split of the remaining files, 0 for no
+	 *            such split
+	 * @param locations
+	 *            locations of the generated splits. If null, the most common
+	 *            hosts of the grouped files are used.
+	 * @param overflow
+	 *            true for the last pass, which packs the remaining files
+	 *            whatever their cost
+	 * @param splits
+	 *            output list
+	 */
+	private void groupFiles(List<FileInfo> candidates, long minimumCost,
+			String[] locations, boolean overflow, List<InputSplit> splits) {
+		List<FileInfo> group = new ArrayList<FileInfo>();
+		long groupCost = 0;
+
+		for (FileInfo info : candidates) {
+			if (info.assigned) {
+				continue;
+			}
+
+			group.add(info);
+			info.assigned = true;
+			groupCost += info.cost;
+
+			if (maxSplitCost != 0 && groupCost >= maxSplitCost) {
+				splits.add(createSplit(group, locations));
+				group.clear();
+				groupCost = 0;
+			}
+		}
+
+		if (group.isEmpty()) {
+			return;
+		}
+
+		if (overflow || (minimumCost != 0 && groupCost >= minimumCost)) {
+			splits.add(createSplit(group, locations));
+		} else {
+			/* Gives them back for a less local pass */
+			for (FileInfo info : group) {
+				info.assigned = false;
+			}
+		}
+	}
+
+	private CombineFileSplit createSplit(List<FileInfo> group,
+			String[] locations) {
+		Path[] paths = new Path[group.size()];
+		long[] starts = new long[group.size()];
+		long[] lengths = new long[group.size()];
+
+		for (int i = 0; i < group.size(); i++) {
+			paths[i] = group.get(i).path;
+			starts[i] = 0;
+			lengths[i] = group.get(i).length;
+		}
+
+		if (locations == null) {
+			locations = getCommonHosts(group);
+		}
+
+		return new CombineFileSplit(paths, starts, lengths, locations);
+	}
+
+	/***
+	 * @param group
+	 * @return the hosts holding the largest share of the group cost.
+	 */
+	private String[] getCommonHosts(List<FileInfo> group) {
+		final Map<String, Long> hostCost = new LinkedHashMap<String, Long>();
+
+		for (FileInfo info : group) {
+			for (String host : info.hosts) {
+				Long cost = hostCost.get(host);
+				hostCost.put(host, (cost == null ? 0 : cost) + info.cost);
+			}
+		}
+
+		Set<String> hosts = new LinkedHashSet<String>();
+		while (hosts.size() < maximumLocations
+				&& hosts.size() < hostCost.size()) {
+			String best = null;
+			for (Map.Entry<String, Long> entry : hostCost.entrySet()) {
+				if (!hosts.contains(entry.getKey())
+						&& (best == null || entry.getValue() > hostCost
+								.get(best))) {
+					best = entry.getKey();
+				}
+			}
+			hosts.add(best);
+		}
+
+		return hosts.toArray(new String[hosts.size()]);
+	}
+
+	private static void addToMap(Map<String, List<FileInfo>> map, String key,
+			FileInfo info) {
+		List<FileInfo> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<FileInfo>();
+			map.put(key, list);
+		}
+		list.add(info);
+	}
+}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * Opens the DICOM files of the input, which may be compressed: the codec is
+ * chosen by the file extension, among the codecs of io.compression.codecs,
+ * like ".gz" or ".bz2". The files are decompressed while they are streamed,
+ * and the decompressors are taken from the CodecPool, since each task reads
+ * many small files. For the same reason, the codec factory of the last
+ * configuration is kept: a task reads all its files with the same one.
+ * 
+ * The length of a compressed file is not the length of the DICOM image, thus
+ * the readers must not rely on it for those files.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class DicomFileInput {
+
+	/* Minimum growth of the buffer of a file whose length is unknown */
+	private static final int minimumGrowth = 64 * 1024;
+
+	/***
+	 * Codec factory built from a configuration.
+	 */
+	private static class CodecFactory {
+		private final Configuration conf;
+		private final CompressionCodecFactory factory;
+
+		CodecFactory(Configuration conf) {
+			this.conf = conf;
+			this.factory = new CompressionCodecFactory(conf);
+		}
+	}
+
+	/* Codec factory of the last configuration used */
+	private static volatile CodecFactory lastCodecFactory;
+
+	/***
+	 * @param path
+	 * @param conf
+	 * @return the codec of the file, or null if it is not compressed.
+	 */
+	public static CompressionCodec getCodec(Path path, Configuration conf) {
+		CodecFactory codecFactory = lastCodecFactory;
+
+		if (codecFactory == null || codecFactory.conf != conf) {
+			codecFactory = new CodecFactory(conf);
+			lastCodecFactory = codecFactory;
+		}
+
+		return codecFactory.factory.getCodec(path);
+	}
+
+	/***
+	 * Opens a file of the input, decompressing it if needed.
+	 * 
+	 * @param path
+	 * @param conf
+	 * @return the stream of the DICOM image
+	 * @throws IOException
+	 */
+	public static InputStream open(Path path, Configuration conf)
+			throws IOException {
+		InputStream in = path.getFileSystem(conf).open(path);
+		CompressionCodec codec = getCodec(path, conf);
+
+		if (codec == null) {
+			return in;
+		}
+
+		try {
+			return decompress(in, codec);
+		} catch (IOException e) {
+			IOUtils.closeStream(in);
+			throw e;
+		}
+	}
+
+	/***
+	 * Decompresses a stream with a pooled decompressor, which is returned to
+	 * the pool when the stream is closed.
+	 * 
+	 * @param in
+	 *            the compressed stream
+	 * @param codec
+	 * @return the decompressed stream
+	 * @throws IOException
+	 */
+	public static InputStream decompress(InputStream in, CompressionCodec codec)
+			throws IOException {
+		final Decompressor decompressor = CodecPool.getDecompressor(codec);
+
+		return new FilterInputStream(codec.createInputStream(in, decompressor)) {
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+
+				try {
+					super.close();
+				} finally {
+					CodecPool.returnDecompressor(decompressor);
+				}
+			}
+		};
+	}
+
+	/***
+	 * Reads a whole file of the input into the target buffer. The previous
+	 * content of the buffer is discarded.
+	 * 
+	 * @param path
+	 * @param length
+	 *            the length of the file
+	 * @param conf
+	 * @param target
+	 * @throws IOException
+	 */
+	public static void read(Path path, long length, Configuration conf,
+			BytesWritable target) throws IOException {
+		boolean compressed = getCodec(path, conf) != null;
+
+		if (!compressed && length > Integer.MAX_VALUE) {
+			throw new IOException("File " + path
+					+ " is longer than Integer.MAX_VALUE.");
+		}
+
+		InputStream in = null;
+		try {
+			in = open(path, conf);
+			if (compressed) {
+				target.setSize(0);
+				readRemaining(in, target);
+			} else {
+				PayloadBuffer.readFully(in, (int) length, target);
+			}
+		} finally {
+			IOUtils.closeStream(in);
+		}
+	}
+
+	/***
+	 * Appends the rest of a stream of unknown length to the target buffer,
+	 * growing it as needed.
+	 * 
+	 * @param in
+	 * @param target
+	 * @throws IOException
+	 */
+	public static void readRemaining(InputStream in, BytesWritable target)
+			throws IOException {
+		int length = target.getLength();
+
+		while (true) {
+			if (length == target.getCapacity()) {
+				if (length == Integer.MAX_VALUE) {
+					throw new IOException(
+							"File is longer than Integer.MAX_VALUE.");
+				}
+				target.setCapacity((int) Math.min(Integer.MAX_VALUE,
+						Math.max((long) length * 2, length + minimumGrowth)));
+			}
+
+			int count = in.read(target.getBytes(), length,
+					target.getCapacity() - length);
+			if (count < 0) {
+				break;
+			}
+
+			length += count;
+			target.setSize(length);
+		}
+	}
+}
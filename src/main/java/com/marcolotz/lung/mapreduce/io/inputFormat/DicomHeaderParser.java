@@ -0,0 +1,572 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+
+/**
+ * Lightweight streaming DICOM header parser. It reads the preamble and the
+ * data element headers up to the Pixel Data tag (7FE0,0010) and never reads
+ * or decodes the pixels themselves. It is used whenever only the metadata is
+ * needed, like in the catalog, filtering and split planning.
+ *
+ * Only the top level elements are kept, the content of sequences is skipped,
+ * except for the shared and per-frame functional groups of multi-frame
+ * objects. The position of each top level element is recorded as well, so
+ * that the header can be copied element by element. Supports the implicit and
+ * explicit VR transfer syntaxes, in both little and big endian. Parsing stops
+ * quietly if the stream ends before the pixel data.
+ *
+ * A parser instance is not thread-safe, but can be reused for several files.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+public class DicomHeaderParser {
+
+	private static final int GroupLength = 0x00020000;
+
+	private static final int Item = 0xFFFEE000;
+	private static final int ItemDelimitation = 0xFFFEE00D;
+	private static final int SequenceDelimitation = 0xFFFEE0DD;
+
+	private static final long UndefinedLength = 0xFFFFFFFFL;
+
+	private static final String ImplicitVRLittleEndian = "1.2.840.10008.1.2";
+	private static final String ExplicitVRBigEndian = "1.2.840.10008.1.2.2";
+
+	/* Longer values are never metadata used by this application */
+	private static final int maximumValueLength = 4096;
+
+	private final byte[] buffer = new byte[maximumValueLength];
+
+	/* Top level elements: tags and offsets of their first byte */
+	private int[] elementTags = new int[64];
+	private long[] elementOffsets = new long[64];
+	private int elementCount;
+
+	/* Offset of the Pixel Data element, before its tag */
+	private long pixelDataElementOffset;
+
+	/* Header of the nested values being read, null to skip them */
+	private DicomHeader target;
+
+	private InputStream in;
+	private long position;
+
+	private DicomHeader header;
+	private boolean pixelDataFound;
+
+	/* Encoding of the element being read */
+	private boolean explicitVR;
+	private boolean bigEndian;
+
+	/* Encoding of the data set, after the meta information group */
+	private boolean datasetExplicitVR;
+	private boolean datasetBigEndian;
+
+	private boolean inMetaGroup;
+	private long metaGroupEnd;
+
+	/***
+	 * Parses the header of a DICOM file. Only the bytes up to the Pixel Data
+	 * value are consumed from the stream.
+	 *
+	 * @param input
+	 *            the stream positioned at the beginning of the file. If it
+	 *            does not support mark, it is wrapped in a BufferedInputStream,
+	 *            which may read ahead.
+	 * @return the header tags
+	 * @throws IOException
+	 */
+	public DicomHeader parse(InputStream input) throws IOException {
+		in = input.markSupported() ? input : new BufferedInputStream(input);
+
+		position = 0;
+		header = new DicomHeader();
+		pixelDataFound = false;
+
+		explicitVR = false;
+		bigEndian = false;
+		datasetExplicitVR = false;
+		datasetBigEndian = false;
+		inMetaGroup = false;
+		metaGroupEnd = -1;
+
+		elementCount = 0;
+		pixelDataElementOffset = -1;
+		target = null;
+
+		try {
+			readPreamble();
+			readElements(-1, false, false);
+		} catch (EOFException e) {
+			/* Truncated or headerless file: keeps what was found */
+		}
+
+		return header;
+	}
+
+	/***
+	 * @return the number of bytes consumed from the stream. After a parse that
+	 *         found the pixel data, it is the offset of the pixel data value.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/***
+	 * @return true if the data set of the last parsed file uses explicit VR.
+	 */
+	public boolean isExplicitVR() {
+		return datasetExplicitVR;
+	}
+
+	/***
+	 * @return true if the data set of the last parsed file is big endian.
+	 */
+	public boolean isBigEndian() {
+		return datasetBigEndian;
+	}
+
+	/***
+	 * @return the number of top level elements before the pixel data in the
+	 *         last parsed file, including the meta information group.
+	 */
+	public int getElementCount() {
+		return elementCount;
+	}
+
+	public int getElementTag(int index) {
+		return elementTags[index];
+	}
+
+	/***
+	 * @param index
+	 * @return the offset of the first byte of the element. It ends where the
+	 *         next element, or the Pixel Data element, starts.
+	 */
+	public long getElementOffset(int index) {
+		return elementOffsets[index];
+	}
+
+	/***
+	 * @return the offset of the Pixel Data element of the last parsed file, or
+	 *         -1 if it was not found.
+	 */
+	public long getPixelDataElementOffset() {
+		return pixelDataElementOffset;
+	}
+
+	/***
+	 * Part 10 files start with a 128 bytes preamble followed by "DICM" and an
+	 * explicit VR little endian meta information group. Files without it are
+	 * read as an implicit VR little endian data set.
+	 */
+	private void readPreamble() throws IOException {
+		in.mark(132);
+
+		int read = 0;
+		while (read < 132) {
+			int count = in.read(buffer, read, 132 - read);
+			if (count < 0) {
+				break;
+			}
+			read += count;
+		}
+
+		if (read == 132 && buffer[128] == 'D' && buffer[129] == 'I'
+				&& buffer[130] == 'C' && buffer[131] == 'M') {
+			position = 132;
+			explicitVR = true;
+			datasetExplicitVR = true;
+			inMetaGroup = true;
+		} else {
+			in.reset();
+		}
+	}
+
+	/***
+	 * Reads data elements until the end position, a delimitation item or the
+	 * pixel data.
+	 *
+	 * @param end
+	 *            the position where the elements end, or -1 if they end with
+	 *            a delimitation item
+	 * @param nested
+	 *            whether the elements are inside a sequence
+	 * @param frameItems
+	 *            whether the items are the frames of the per-frame functional
+	 *            groups
+	 * @throws IOException
+	 */
+	private void readElements(long end, boolean nested, boolean frameItems)
+			throws IOException {
+		while (!pixelDataFound && (end < 0 || position < end)) {
+			long elementStart = position;
+
+			int b0 = readByte();
+			int b1 = readByte();
+
+			if (inMetaGroup) {
+				boolean metaGroupOver = (metaGroupEnd >= 0) ? position - 2 >= metaGroupEnd
+						: (b0 | (b1 << 8)) != 0x0002;
+				if (metaGroupOver) {
+					inMetaGroup = false;
+					explicitVR = datasetExplicitVR;
+					bigEndian = datasetBigEndian;
+				}
+			}
+
+			int group = bigEndian ? (b0 << 8) | b1 : b0 | (b1 << 8);
+			int tag = (group << 16) | readUnsignedShort();
+
+			if (tag == ItemDelimitation || tag == SequenceDelimitation) {
+				readUnsignedInt();
+				return;
+			}
+
+			if (tag == Item) {
+				long length = readUnsignedInt();
+				long itemEnd = length == UndefinedLength ? -1 : position
+						+ length;
+
+				if (frameItems) {
+					target = new DicomHeader();
+					header.addFrameGroup(target);
+					readElements(itemEnd, true, false);
+					target = null;
+				} else {
+					readElements(itemEnd, true, false);
+				}
+				continue;
+			}
+
+			if (!nested && tag != DICOMTags.PixelData) {
+				addElement(tag, elementStart);
+			}
+
+			String vr = null;
+			long length;
+
+			if (explicitVR) {
+				vr = new String(new char[] { (char) readByte(),
+						(char) readByte() });
+				if (hasLongLength(vr)) {
+					skip(2);
+					length = readUnsignedInt();
+				} else {
+					length = readUnsignedShort();
+				}
+			} else {
+				length = readUnsignedInt();
+			}
+
+			if (tag == DICOMTags.PixelData && !nested) {
+				pixelDataElementOffset = elementStart;
+				header.setPixelDataOffset(position);
+				header.putTag(DICOMTags.PixelData, " " + position);
+				header.setPixelDataLength(length == UndefinedLength ? -1
+						: length);
+				pixelDataFound = true;
+				return;
+			}
+
+			if (!nested
+					&& (tag == DICOMTags.SharedFunctionalGroups || tag == DICOMTags.PerFrameFunctionalGroups)) {
+				readFunctionalGroups(tag, length);
+				continue;
+			}
+
+			if (length == UndefinedLength) {
+				/* Sequence, or unknown VR, ending with a delimitation item */
+				readElements(-1, true, false);
+				continue;
+			}
+
+			if (target != null && isSequence(vr, length)) {
+				/* Nested sequence of a functional group macro */
+				readElements(position + length, true, false);
+				continue;
+			}
+
+			if ((nested && target == null) || "SQ".equals(vr) || isBinary(vr)
+					|| length > maximumValueLength) {
+				skip(length);
+				continue;
+			}
+
+			readFully((int) length);
+			String value = formatValue(tag, vr, (int) length);
+
+			if (nested) {
+				target.putTag(tag, " " + value);
+				continue;
+			}
+
+			if (tag == GroupLength) {
+				metaGroupEnd = parseGroupLength(value);
+			} else if (tag == DICOMTags.TransferSyntaxUID) {
+				setTransferSyntax(value.trim());
+			}
+
+			/* ImageJ keeps the space that follows the colon of the info line */
+			header.putTag(tag, " " + value);
+		}
+	}
+
+	/***
+	 * Reads the shared or per-frame functional groups sequence. All the
+	 * attributes inside the functional group macros are kept, in the shared
+	 * header or in the header of their frame.
+	 */
+	private void readFunctionalGroups(int tag, long length) throws IOException {
+		long end = length == UndefinedLength ? -1 : position + length;
+
+		if (tag == DICOMTags.SharedFunctionalGroups) {
+			target = header.getSharedGroups();
+			readElements(end, true, false);
+			target = null;
+		} else {
+			readElements(end, true, true);
+		}
+	}
+
+	/***
+	 * With implicit VR there is no way to tell a sequence from its value
+	 * representation, but its content starts with an item tag.
+	 */
+	private boolean isSequence(String vr, long length) throws IOException {
+		if (vr != null) {
+			return vr.equals("SQ");
+		}
+		if (length < 8) {
+			return false;
+		}
+
+		in.mark(4);
+		int b0 = in.read();
+		int b1 = in.read();
+		int b2 = in.read();
+		int b3 = in.read();
+		in.reset();
+
+		int group = bigEndian ? (b0 << 8) | b1 : b0 | (b1 << 8);
+		int element = bigEndian ? (b2 << 8) | b3 : b2 | (b3 << 8);
+
+		return ((group << 16) | element) == Item;
+	}
+
+	/***
+	 * @return the end of the meta information group, or -1 if its length is
+	 *         malformed. The group then ends with its last 0002 element.
+	 */
+	private long parseGroupLength(String value) {
+		try {
+			return position + Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void addElement(int tag, long offset) {
+		if (elementCount == elementTags.length) {
+			elementTags = Arrays.copyOf(elementTags, elementCount * 2);
+			elementOffsets = Arrays.copyOf(elementOffsets, elementCount * 2);
+		}
+		elementTags[elementCount] = tag;
+		elementOffsets[elementCount] = offset;
+		elementCount++;
+	}
+
+	private void setTransferSyntax(String transferSyntaxUID) {
+		datasetExplicitVR = !transferSyntaxUID.equals(ImplicitVRLittleEndian);
+		datasetBigEndian = transferSyntaxUID.equals(ExplicitVRBigEndian);
+	}
+
+	/***
+	 * Converts the value in the buffer to text, like ImageJ displays it.
+	 */
+	private String formatValue(int tag, String vr, int length) {
+		if (vr == null) {
+			/* Implicit VR: only the image description tags are binary */
+			vr = isUnsignedShortTag(tag) ? "US" : "LO";
+		}
+
+		if (vr.equals("US") || vr.equals("SS")) {
+			StringBuilder value = new StringBuilder();
+			for (int i = 0; i + 1 < length; i += 2) {
+				int number = getUnsignedShort(i);
+				if (vr.equals("SS")) {
+					number = (short) number;
+				}
+				appendValue(value, Integer.toString(number));
+			}
+			return value.toString();
+		}
+
+		if (vr.equals("UL") || vr.equals("SL") || vr.equals("FL")) {
+			StringBuilder value = new StringBuilder();
+			for (int i = 0; i + 3 < length; i += 4) {
+				long number = getUnsignedInt(i);
+				if (vr.equals("UL")) {
+					appendValue(value, Long.toString(number));
+				} else if (vr.equals("SL")) {
+					appendValue(value, Integer.toString((int) number));
+				} else {
+					appendValue(value,
+							Float.toString(Float.intBitsToFloat((int) number)));
+				}
+			}
+			return value.toString();
+		}
+
+		if (vr.equals("FD")) {
+			StringBuilder value = new StringBuilder();
+			for (int i = 0; i + 7 < length; i += 8) {
+				long low = getUnsignedInt(i);
+				long high = getUnsignedInt(i + 4);
+				long bits = bigEndian ? (low << 32) | high : (high << 32) | low;
+				appendValue(value,
+						Double.toString(Double.longBitsToDouble(bits)));
+			}
+			return value.toString();
+		}
+
+		/*
+		 * Text value representations. Like ImageJ, the padding is kept and the
+		 * null characters are shown as spaces, so that the values read here
+		 * are equal to the values read from a decoded image.
+		 */
+		return new String(buffer, 0, length, StandardCharsets.ISO_8859_1)
+				.replace('\0', ' ');
+	}
+
+	private static void appendValue(StringBuilder builder, String value) {
+		if (builder.length() > 0) {
+			builder.append(' ');
+		}
+		builder.append(value);
+	}
+
+	/***
+	 * Image description tags of the group 0028 that have the US value
+	 * representation. Needed to read implicit VR files.
+	 */
+	private static boolean isUnsignedShortTag(int tag) {
+		switch (tag) {
+		case 0x00280002: // Samples per Pixel
+		case 0x00280010: // Rows
+		case 0x00280011: // Columns
+		case 0x00280100: // Bits Allocated
+		case 0x00280101: // Bits Stored
+		case 0x00280102: // High Bit
+		case 0x00280103: // Pixel Representation
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean hasLongLength(String vr) {
+		return vr.equals("OB") || vr.equals("OW") || vr.equals("OF")
+				|| vr.equals("OD") || vr.equals("OL") || vr.equals("SQ")
+				|| vr.equals("UT") || vr.equals("UN") || vr.equals("UC")
+				|| vr.equals("UR");
+	}
+
+	private static boolean isBinary(String vr) {
+		return vr != null
+				&& (vr.equals("OB") || vr.equals("OW") || vr.equals("OF")
+						|| vr.equals("OD") || vr.equals("OL")
+						|| vr.equals("UN") || vr.equals("AT"));
+	}
+
+	/* ======================= Stream helpers ======================= */
+
+	private int readByte() throws IOException {
+		int value = in.read();
+		if (value < 0) {
+			throw new EOFException();
+		}
+		position++;
+		return value;
+	}
+
+	private int readUnsignedShort() throws IOException {
+		int b0 = readByte();
+		int b1 = readByte();
+		return bigEndian ? (b0 << 8) | b1 : b0 | (b1 << 8);
+	}
+
+	private long readUnsignedInt() throws IOException {
+		long s0 = readUnsignedShort();
+		long s1 = readUnsignedShort();
+		return bigEndian ? (s0 << 16) | s1 : s0 | (s1 << 16);
+	}
+
+	private int getUnsignedShort(int offset) {
+		int b0 = buffer[offset] & 0xFF;
+		int b1 = buffer[offset + 1] & 0xFF;
+		return bigEndian ? (b0 << 8) | b1 : b0 | (b1 << 8);
+	}
+
+	private long getUnsignedInt(int offset) {
+		long s0 = getUnsignedShort(offset);
+		long s1 = getUnsignedShort(offset + 2);
+		return bigEndian ? (s0 << 16) | s1 : s0 | (s1 << 16);
+	}
+
+	private void readFully(int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int count = in.read(buffer, read, length - read);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+		position += length;
+	}
+
+	private void skip(long length) throws IOException {
+		long remaining = length;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				/* skip may return 0 before the end, read checks it */
+				readByte();
+				skipped = 1;
+			} else {
+				position += skipped;
+			}
+			remaining -= skipped;
+		}
+	}
+}
@@ -19,6 +19,7 @@
  ******************************************************************************/
 package com.marcolotz.lung.mapreduce.io.inputFormat;
 
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
 import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
 import com.marcolotz.lung.mapreduce.MapperComponents.ImageStructure;
 
@@ -53,9 +54,12 @@ public class DistributedDicomReader {
 		source = image;
 
 		if (source != null) {
-			keyStructure = new KeyStructureWritable(source);
+			/* The image info is parsed once, for both structures */
+			DicomHeader header = DicomHeader.fromImage(source);
 
-			imageStructure = new ImageStructure(source);
+			keyStructure = new KeyStructureWritable(header);
+
+			imageStructure = new ImageStructure(header);
 		} else {
 			// TODO: Make a throw exception here.
 			// System.out.println("Problem reading the DICOM image.");
@@ -64,6 +68,44 @@ public class DistributedDicomReader {
 		totalLatency = System.currentTimeMillis() - startTime;
 	}
 
+	/***
+	 * Reader for an image whose header was already parsed by the
+	 * {@link DicomHeaderParser}, so the image info is not parsed again.
+	 * 
+	 * @param image
+	 * @param header
+	 */
+	public DistributedDicomReader(DICOM image, DicomHeader header) {
+
+		startTime = System.currentTimeMillis();
+
+		source = image;
+
+		keyStructure = new KeyStructureWritable(header);
+		imageStructure = new ImageStructure(header);
+
+		totalLatency = System.currentTimeMillis() - startTime;
+	}
+
+	/***
+	 * Header-only reader: generates the key and image structures from a header
+	 * read by the {@link DicomHeaderParser}, without decoding the pixel data.
+	 * There is no image available in this mode.
+	 * 
+	 * @param header
+	 */
+	public DistributedDicomReader(DicomHeader header) {
+
+		startTime = System.currentTimeMillis();
+
+		source = null;
+
+		keyStructure = new KeyStructureWritable(header);
+		imageStructure = new ImageStructure(header);
+
+		totalLatency = System.currentTimeMillis() - startTime;
+	}
+
 	@Override
 	public String toString() {
 		String buffer = new String("");
@@ -77,6 +119,9 @@ public class DistributedDicomReader {
 		return this.totalLatency;
 	}
 
+	/***
+	 * @return the decoded image, or null for a header-only reader.
+	 */
 	public DICOM getImage() {
 		return this.source;
 	}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the next files of a CombineFileSplit in a background thread, while the
+ * mapper processes the current one. This way the task does not wait for HDFS
+ * between slices, and the disk is not idle while the images are processed.
+ * 
+ * At most the given number of files ahead of the current one are held in
+ * memory. Files larger than the maximum prefetch size are left for the record
+ * reader, which then reads them itself as usual.
+ * 
+ * The record readers of a split are created by reflection, thus they find the
+ * prefetcher of their split with {@link #get(CombineFileSplit)}.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+class FilePrefetcher {
+
+	private static final Logger LOG = Logger.getLogger(FilePrefetcher.class);
+
+	/* Prefetchers of the splits being read, by split instance */
+	private static final Map<CombineFileSplit, FilePrefetcher> prefetchers = new IdentityHashMap<CombineFileSplit, FilePrefetcher>();
+
+	private final CombineFileSplit split;
+	private final Configuration conf;
+
+	/* Number of files read ahead of the current one */
+	private final int depth;
+	private final long maxFileSize;
+
+	private final ExecutorService executor;
+
+	/* Pending reads, by path index. Null if not submitted or already taken */
+	private final List<Future<byte[]>> reads;
+	private int nextSubmit = 0;
+
+	/***
+	 * @param conf
+	 * @return the number of files to read ahead, 0 if the prefetch is
+	 *         disabled.
+	 */
+	public static int getDepth(Configuration conf) {
+		return Math.max(conf.getInt("com.marcolotz.reader.prefetch", 0), 0);
+	}
+
+	/***
+	 * @param split
+	 * @return the prefetcher reading the split, or null if there is none.
+	 */
+	public static FilePrefetcher get(CombineFileSplit split) {
+		synchronized (prefetchers) {
+			return prefetchers.get(split);
+		}
+	}
+
+	/***
+	 * Creates the prefetcher of a split and starts reading its first files.
+	 * 
+	 * @param split
+	 * @param conf
+	 * @param depth
+	 *            number of files read ahead of the current one
+	 */
+	public FilePrefetcher(CombineFileSplit split, Configuration conf, int depth) {
+		this.split = split;
+		this.conf = conf;
+		this.depth = depth;
+		maxFileSize = conf.getLong("com.marcolotz.reader.prefetchMaxFileSize",
+				64L * 1024 * 1024);
+
+		reads = new ArrayList<Future<byte[]>>(
+				Collections.<Future<byte[]>> nCopies(split.getNumPaths(), null));
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DICOM prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		synchronized (prefetchers) {
+			prefetchers.put(split, this);
+		}
+
+		submitUpTo(depth);
+	}
+
+	/***
+	 * Returns the content of a file of the split, waiting for it if it is
+	 * still being read, and starts reading the following files.
+	 * 
+	 * @param index
+	 *            index of the path in the split
+	 * @return the whole file, or null if it was not prefetched.
+	 * @throws IOException
+	 *             if the file could not be read.
+	 */
+	public synchronized byte[] take(int index) throws IOException {
+		submitUpTo(index + depth);
+
+		Future<byte[]> read = reads.set(index, null);
+
+		if (read == null) {
+			return null;
+		}
+
+		try {
+			return read.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while prefetching "
+					+ split.getPath(index), e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not prefetch " + split.getPath(index),
+					e.getCause());
+		}
+	}
+
+	/***
+	 * Stops the reads and releases the prefetched files.
+	 */
+	public synchronized void close() {
+		synchronized (prefetchers) {
+			prefetchers.remove(split);
+		}
+
+		for (int i = 0; i < reads.size(); i++) {
+			Future<byte[]> read = reads.set(i, null);
+			if (read != null) {
+				read.cancel(true);
+			}
+		}
+		executor.shutdownNow();
+	}
+
+	private void submitUpTo(int lastIndex) {
+		lastIndex = Math.min(lastIndex, reads.size() - 1);
+
+		for (; nextSubmit <= lastIndex; nextSubmit++) {
+			final Path path = split.getPath(nextSubmit);
+			final long length = split.getLength(nextSubmit);
+
+			if (length > maxFileSize) {
+				continue;
+			}
+
+			reads.set(nextSubmit, executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return readFile(path, (int) length);
+				}
+			}));
+		}
+	}
+
+	private byte[] readFile(Path path, int length) throws IOException {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Prefetching " + path);
+		}
+
+		byte[] content = new byte[length];
+
+		FSDataInputStream in = null;
+		try {
+			in = path.getFileSystem(conf).open(path);
+			IOUtils.readFully(in, content, 0, length);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+		return content;
+	}
+}
@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+
+/**
+ * Splits a multi-frame DICOM file into single-frame DICOM images, one frame at
+ * a time, while the file is read sequentially. Only the header and a single
+ * frame are held in memory.
+ *
+ * Each frame image is a copy of the original header, without the functional
+ * groups sequences, where the attributes of the frame replace the ones of the
+ * whole object: position, orientation, spacing, thickness, rescale, window,
+ * instance number and the number of frames, which becomes 1. The
+ * SOPInstanceUID gets the frame number as a suffix, so that every frame is
+ * still a distinct image for the rest of the application. When the suffix
+ * would make it longer than 64 characters, a 2.25 UID derived from it is used
+ * instead.
+ *
+ * Only uncompressed pixel data can be split, since compressed frames are not
+ * stored with a fixed length.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+class FrameSplitter {
+
+	/* Attributes given per frame, and their value representations */
+	private static final int[] frameTags = { DICOMTags.SOPInstanceUID,
+			DICOMTags.SliceThickness, DICOMTags.ImageNumber,
+			DICOMTags.ImagePosition, DICOMTags.ImageOrientation,
+			DICOMTags.NumberOfFrames, DICOMTags.PixelSpacing,
+			DICOMTags.WindowCenter, DICOMTags.WindowWidth,
+			DICOMTags.RescaleIntercept, DICOMTags.RescaleSlope };
+
+	/* Maximum length of a UI value */
+	private static final int maximumUIDLength = 64;
+
+	private final DicomHeader header;
+	private final InputStream pixelData;
+
+	/* Original header up to the Pixel Data element */
+	private final byte[] headerBytes;
+
+	/* Top level elements of the header */
+	private final int[] elementTags;
+	private final int[] elementOffsets;
+
+	private final boolean explicitVR;
+	private final boolean bigEndian;
+
+	private final int frameCount;
+	private final int frameLength;
+	private final boolean byteData;
+
+	private int nextFrame = 0;
+
+	/***
+	 * @param header
+	 *            the parsed header of the file
+	 * @param parser
+	 *            the parser that read the header, for the element layout
+	 * @param headerBytes
+	 *            the file bytes, at least up to the Pixel Data element
+	 * @param pixelData
+	 *            the file stream, positioned at the Pixel Data value
+	 */
+	public FrameSplitter(DicomHeader header, DicomHeaderParser parser,
+			byte[] headerBytes, InputStream pixelData) {
+		this.header = header;
+		this.pixelData = pixelData;
+
+		int headerLength = (int) parser.getPixelDataElementOffset();
+		this.headerBytes = new byte[headerLength];
+		System.arraycopy(headerBytes, 0, this.headerBytes, 0, headerLength);
+
+		elementTags = new int[parser.getElementCount()];
+		elementOffsets = new int[parser.getElementCount() + 1];
+		for (int i = 0; i < elementTags.length; i++) {
+			elementTags[i] = parser.getElementTag(i);
+			elementOffsets[i] = (int) parser.getElementOffset(i);
+		}
+		elementOffsets[elementTags.length] = headerLength;
+
+		explicitVR = parser.isExplicitVR();
+		bigEndian = parser.isBigEndian();
+
+		frameCount = header.getFrameCount();
+		frameLength = getFrameLength(header);
+		byteData = header.getInt(DICOMTags.BitsAllocated, 16) <= 8;
+	}
+
+	/***
+	 * @param header
+	 * @return true if the file has several uncompressed frames that can be
+	 *         split.
+	 */
+	public static boolean canSplit(DicomHeader header) {
+		if (header.getFrameCount() <= 1 || header.getPixelDataLength() < 0) {
+			return false;
+		}
+
+		long frameLength = getFrameLength(header);
+		return frameLength > 0
+				&& frameLength * header.getFrameCount() <= header
+						.getPixelDataLength();
+	}
+
+	private static int getFrameLength(DicomHeader header) {
+		long length = (long) header.getInt(DICOMTags.Rows, 0)
+				* header.getInt(DICOMTags.Columns, 0)
+				* header.getInt(DICOMTags.SamplesPerPixel, 1)
+				* Math.max(header.getInt(DICOMTags.BitsAllocated, 16) / 8, 1);
+
+		return length > Integer.MAX_VALUE ? 0 : (int) length;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/***
+	 * @return the index of the next frame to be read, from 0
+	 */
+	public int getFrameIndex() {
+		return nextFrame;
+	}
+
+	public boolean hasNextFrame() {
+		return nextFrame < frameCount;
+	}
+
+	/***
+	 * Writes the next frame, as a single-frame DICOM file, into the target
+	 * buffer. The frames are read from the stream in order.
+	 *
+	 * @param target
+	 * @throws IOException
+	 */
+	public void readNextFrame(BytesWritable target) throws IOException {
+		Map<Integer, byte[]> overrides = getFrameValues(nextFrame);
+
+		/* Computes the image length first, to fill the buffer in place */
+		int length = elementOffsets[0];
+		for (int i = 0; i < elementTags.length; i++) {
+			if (!isDropped(elementTags[i])
+					&& !overrides.containsKey(elementTags[i])) {
+				length += elementOffsets[i + 1] - elementOffsets[i];
+			}
+		}
+		for (byte[] value : overrides.values()) {
+			length += getElementHeaderLength(false) + value.length;
+		}
+		length += getElementHeaderLength(true) + frameLength;
+
+		target.setSize(0);
+		target.setSize(length);
+		byte[] bytes = target.getBytes();
+
+		/* Preamble, or nothing for files without it */
+		System.arraycopy(headerBytes, 0, bytes, 0, elementOffsets[0]);
+		int position = elementOffsets[0];
+
+		/* Elements and frame values, in ascending tag order */
+		TreeMap<Integer, byte[]> pending = new TreeMap<Integer, byte[]>(
+				overrides);
+
+		for (int i = 0; i < elementTags.length; i++) {
+			int tag = elementTags[i];
+
+			while (!pending.isEmpty() && pending.firstKey() < tag) {
+				Map.Entry<Integer, byte[]> entry = pending.pollFirstEntry();
+				position = writeElement(bytes, position, entry.getKey(),
+						entry.getValue());
+			}
+
+			if (isDropped(tag)) {
+				continue;
+			}
+
+			byte[] value = pending.remove(tag);
+			if (value != null) {
+				position = writeElement(bytes, position, tag, value);
+			} else {
+				int elementLength = elementOffsets[i + 1] - elementOffsets[i];
+				System.arraycopy(headerBytes, elementOffsets[i], bytes,
+						position, elementLength);
+				position += elementLength;
+			}
+		}
+
+		for (Map.Entry<Integer, byte[]> entry : pending.entrySet()) {
+			position = writeElement(bytes, position, entry.getKey(),
+					entry.getValue());
+		}
+
+		position = writeTagHeader(bytes, position, DICOMTags.PixelData,
+				byteData ? "OB" : "OW", frameLength);
+
+		IOUtils.readFully(pixelData, bytes, position, frameLength);
+
+		nextFrame++;
+	}
+
+	/***
+	 * @param frame
+	 * @return the encoded values of the frame attributes, by tag
+	 */
+	private Map<Integer, byte[]> getFrameValues(int frame) {
+		Map<Integer, byte[]> values = new TreeMap<Integer, byte[]>();
+
+		for (int tag : frameTags) {
+			String value;
+
+			if (tag == DICOMTags.NumberOfFrames) {
+				value = "1";
+			} else if (tag == DICOMTags.ImageNumber) {
+				value = Integer.toString(frame + 1);
+			} else if (tag == DICOMTags.SOPInstanceUID) {
+				value = header.getTag(tag);
+				if (value == null) {
+					continue;
+				}
+				value = getFrameInstanceUID(value.trim(), frame);
+			} else {
+				value = header.getFrameTag(frame, tag);
+				if (value == null) {
+					continue;
+				}
+				value = value.trim();
+			}
+
+			values.put(tag, encode(value, tag == DICOMTags.SOPInstanceUID));
+		}
+
+		return values;
+	}
+
+	/***
+	 * @param instanceUID
+	 *            of the multi-frame object
+	 * @param frame
+	 * @return the SOPInstanceUID of the frame: the one of the object with the
+	 *         frame number as a suffix or, if it would be longer than a UID may
+	 *         be, a UUID derived UID built from the same values, so that a
+	 *         frame gets the same UID on every run.
+	 */
+	static String getFrameInstanceUID(String instanceUID, int frame) {
+		String frameUID = instanceUID + "." + (frame + 1);
+		if (frameUID.length() <= maximumUIDLength) {
+			return frameUID;
+		}
+
+		UUID uuid = UUID.nameUUIDFromBytes(frameUID
+				.getBytes(StandardCharsets.US_ASCII));
+		byte[] bytes = ByteBuffer.allocate(16)
+				.putLong(uuid.getMostSignificantBits())
+				.putLong(uuid.getLeastSignificantBits()).array();
+		return "2.25." + new BigInteger(1, bytes).toString();
+	}
+
+	/***
+	 * The functional groups are replaced by the frame values.
+	 */
+	private static boolean isDropped(int tag) {
+		return tag == DICOMTags.SharedFunctionalGroups
+				|| tag == DICOMTags.PerFrameFunctionalGroups;
+	}
+
+	private static String getVR(int tag) {
+		if (tag == DICOMTags.SOPInstanceUID) {
+			return "UI";
+		}
+		if (tag == DICOMTags.ImageNumber || tag == DICOMTags.NumberOfFrames) {
+			return "IS";
+		}
+		return "DS";
+	}
+
+	/* Values must have an even length, UIDs are padded with a null byte */
+	private static byte[] encode(String value, boolean uid) {
+		if (value.length() % 2 != 0) {
+			value = value + (uid ? '\0' : ' ');
+		}
+		return value.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private int getElementHeaderLength(boolean longLength) {
+		if (!explicitVR) {
+			return 8;
+		}
+		return longLength ? 12 : 8;
+	}
+
+	private int writeElement(byte[] bytes, int position, int tag, byte[] value) {
+		position = writeTagHeader(bytes, position, tag, getVR(tag),
+				value.length);
+		System.arraycopy(value, 0, bytes, position, value.length);
+		return position + value.length;
+	}
+
+	/***
+	 * Writes the tag, value representation and length of an element, in the
+	 * encoding of the original data set.
+	 */
+	private int writeTagHeader(byte[] bytes, int position, int tag, String vr,
+			int length) {
+		position = writeShort(bytes, position, tag >>> 16);
+		position = writeShort(bytes, position, tag & 0xFFFF);
+
+		if (!explicitVR) {
+			return writeInt(bytes, position, length);
+		}
+
+		bytes[position++] = (byte) vr.charAt(0);
+		bytes[position++] = (byte) vr.charAt(1);
+
+		if (vr.equals("OB") || vr.equals("OW")) {
+			position = writeShort(bytes, position, 0);
+			return writeInt(bytes, position, length);
+		}
+		return writeShort(bytes, position, length);
+	}
+
+	private int writeShort(byte[] bytes, int position, int value) {
+		if (bigEndian) {
+			bytes[position] = (byte) (value >>> 8);
+			bytes[position + 1] = (byte) value;
+		} else {
+			bytes[position] = (byte) value;
+			bytes[position + 1] = (byte) (value >>> 8);
+		}
+		return position + 2;
+	}
+
+	private int writeInt(byte[] bytes, int position, int value) {
+		if (bigEndian) {
+			position = writeShort(bytes, position, value >>> 16);
+			return writeShort(bytes, position, value & 0xFFFF);
+		}
+		position = writeShort(bytes, position, value & 0xFFFF);
+		return writeShort(bytes, position, value >>> 16);
+	}
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+import com.marcolotz.lung.mapreduce.MRComponents.CatalogSliceWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+
+/**
+ * Input format of the catalog job. It combines the DICOM files like the
+ * {@link MultipleFilesInputFormat}, but only their headers are read: each
+ * record is the series key of a file and its catalog slice.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class HeaderOnlyInputFormat extends
+		CombineFileInputFormat<KeyStructureWritable, CatalogSliceWritable> {
+
+	// 128 MB, default block size Cloudera YARN.
+	private static final long defaultMaxSplitSize = 134217728L;
+
+	/* Only the headers are read, so the splits can be much larger */
+	private static final int headerSplitFactor = 16;
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		long maxSize = job.getConfiguration().getLong(
+				"com.marcolotz.splits.maxSize", defaultMaxSplitSize);
+
+		setMaxSplitSize(maxSize * headerSplitFactor);
+
+		return super.getSplits(job);
+	}
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path file) {
+		return false;
+	}
+
+	@Override
+	public RecordReader<KeyStructureWritable, CatalogSliceWritable> createRecordReader(
+			InputSplit split, TaskAttemptContext context) throws IOException {
+
+		if (!(split instanceof CombineFileSplit)) {
+			throw new IllegalArgumentException(
+					"split must be a CombineFileSplit");
+		}
+		return new CombineFileRecordReader<KeyStructureWritable, CatalogSliceWritable>(
+				(CombineFileSplit) split, context, HeaderOnlyRecordReader.class);
+	}
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+import com.marcolotz.lung.mapreduce.MRComponents.CatalogSliceWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+
+/**
+ * The reader that {@link HeaderOnlyInputFormat} uses. It reads a single file
+ * of the CombineFileSplit up to its pixel data, and generates the series key
+ * and the catalog slice of the file.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class HeaderOnlyRecordReader extends
+		RecordReader<KeyStructureWritable, CatalogSliceWritable> {
+
+	private final Path fileToRead;
+	private final long fileLength;
+
+	private final TaskAttemptContext context;
+
+	private boolean isProcessed = false;
+
+	private KeyStructureWritable key;
+	private CatalogSliceWritable value;
+
+	/**
+	 * Implementation detail: This constructor is built to be called via
+	 * reflection from within CombineFileRecordReader.
+	 * 
+	 * @param fileSplit
+	 * @param context
+	 * @param pathToProcess
+	 */
+	public HeaderOnlyRecordReader(CombineFileSplit fileSplit,
+			TaskAttemptContext context, Integer pathToProcess) {
+		this.fileToRead = fileSplit.getPath(pathToProcess);
+		this.fileLength = fileSplit.getLength(pathToProcess);
+		this.context = context;
+	}
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		// no-op.
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		if (isProcessed) {
+			return false;
+		}
+
+		DicomHeader header;
+
+		InputStream in = null;
+		try {
+			in = DicomFileInput.open(fileToRead, context.getConfiguration());
+			header = new DicomHeaderParser().parse(in);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+
+		key = new KeyStructureWritable(header);
+		value = new CatalogSliceWritable(fileToRead.toString(), fileLength,
+				PixelCostEstimator.estimate(header, fileLength), header);
+
+		isProcessed = true;
+		return true;
+	}
+
+	@Override
+	public KeyStructureWritable getCurrentKey() throws IOException,
+			InterruptedException {
+		return key;
+	}
+
+	@Override
+	public CatalogSliceWritable getCurrentValue() throws IOException,
+			InterruptedException {
+		return value;
+	}
+
+	@Override
+	public float getProgress() throws IOException, InterruptedException {
+		return isProcessed ? 1.0f : 0.0f;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The file is closed right after its header is read.
+	}
+}
@@ -21,7 +21,11 @@
 package com.marcolotz.lung.mapreduce.io.inputFormat;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.NullWritable;
@@ -32,21 +36,132 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
 import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.log4j.Logger;
+
+import com.marcolotz.lung.mapreduce.MRComponents.IncrementalManifest;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalog;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalogEntryWritable;
+import com.marcolotz.lung.mapreduce.MapperComponents.SliceFilter;
 
 /**
  * A solution to the small files problem. This classes aglutinates local images
  * in order make a block size input split.
  * 
+ * The split sizes are read from the configuration file. With the "bytes" cost
+ * model the splits are planned by the CombineFileInputFormat itself. With the
+ * "pixels" cost model each file costs the size of its decoded pixel data, so
+ * that every mapper receives a similar amount of image processing work.
+ * 
+ * When the series catalog is enabled, the files of the series rejected by the
+ * slice filters are not listed at all, and the pixel costs are taken from the
+ * catalog instead of the file headers.
+ * 
+ * In the incremental mode, the files that did not change since the last run
+ * are not listed, since their results are kept in the manifest, which also
+ * records the plan of the run from this listing.
+ * 
+ * With com.marcolotz.reader.prefetch set, the next files of the split are read
+ * in the background while the current slice is processed.
+ * 
  * @author Marco Aurelio Lotz
  * 
  */
 public class MultipleFilesInputFormat extends
 		CombineFileInputFormat<NullWritable, BytesWritable> {
 
+	// 128 MB, default block size Cloudera YARN.
+	private static final long defaultMaxSplitSize = 134217728L;
+
+	private static final Logger LOG = Logger
+			.getLogger(MultipleFilesInputFormat.class);
+
+	/* Catalog and manifest of the split planning in progress, null if not used */
+	private SeriesCatalog catalog;
+	private IncrementalManifest manifest;
+
 	public MultipleFilesInputFormat() {
 		super();
-		// TODO: Read the max split size from the configuration file.
-		setMaxSplitSize(134217728); // 128 MB, default block size Cloudera YARN.
+	}
+
+	/***
+	 * Reads the split planning parameters from the configuration and generates
+	 * the splits according to the configured cost model.
+	 */
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		Configuration conf = job.getConfiguration();
+
+		long maxSize = conf.getLong("com.marcolotz.splits.maxSize",
+				defaultMaxSplitSize);
+		long minSizeNode = conf.getLong("com.marcolotz.splits.minSizePerNode",
+				0);
+		long minSizeRack = conf.getLong("com.marcolotz.splits.minSizePerRack",
+				0);
+
+		if (minSizeNode > maxSize || minSizeRack > maxSize) {
+			throw new IOException(
+					"Minimum split size per node or rack is larger than the maximum split size");
+		}
+		if (minSizeNode > minSizeRack && minSizeRack != 0) {
+			throw new IOException(
+					"Minimum split size per node is larger than the minimum split size per rack");
+		}
+
+		String costModel = conf.get("com.marcolotz.splits.costModel", "bytes");
+
+		catalog = SeriesCatalog.load(conf);
+		manifest = IncrementalManifest.load(conf);
+
+		if (costModel.equalsIgnoreCase("pixels")) {
+			CostAwareSplitPlanner planner = new CostAwareSplitPlanner(maxSize,
+					minSizeNode, minSizeRack, catalog);
+			return planner.plan(conf, listStatus(job));
+		}
+
+		setMaxSplitSize(maxSize);
+		setMinSplitSizeNode(minSizeNode);
+		setMinSplitSizeRack(minSizeRack);
+
+		return super.getSplits(job);
+	}
+
+	/***
+	 * Lists the input files, leaving out the files of the cataloged series that
+	 * the slice filters reject and the files that the manifest already covers.
+	 * Files that are not in the catalog are kept.
+	 */
+	@Override
+	protected List<FileStatus> listStatus(JobContext job) throws IOException {
+		List<FileStatus> files = super.listStatus(job);
+
+		SliceFilter filter = new SliceFilter(job.getConfiguration());
+		boolean filterSeries = catalog != null && filter.isEnabled();
+
+		if (!filterSeries && manifest == null) {
+			return files;
+		}
+
+		List<FileStatus> accepted = files;
+		if (filterSeries) {
+			accepted = new ArrayList<FileStatus>(files.size());
+			for (FileStatus file : files) {
+				SeriesCatalogEntryWritable series = catalog.getSeriesOf(file
+						.getPath());
+				if (series == null || filter.check(series) == null) {
+					accepted.add(file);
+				}
+			}
+		}
+
+		if (manifest != null) {
+			/* The plan of the run is taken from this same listing */
+			accepted = manifest.plan(job.getConfiguration(), accepted);
+		}
+
+		LOG.info("Listed " + accepted.size() + " of " + files.size()
+				+ " input files to process");
+
+		return accepted;
 	}
 
 	@Override
@@ -77,6 +192,13 @@ public class MultipleFilesInputFormat extends
 			throw new IllegalArgumentException(
 					"split must be a CombineFileSplit");
 		}
+
+		int prefetchDepth = FilePrefetcher.getDepth(context.getConfiguration());
+		if (prefetchDepth > 0) {
+			return new PrefetchingRecordReader((CombineFileSplit) split,
+					context, prefetchDepth);
+		}
+
 		return new CombineFileRecordReader<NullWritable, BytesWritable>(
 				(CombineFileSplit) split, context,
 				MultipleFilesRecordReader.class);
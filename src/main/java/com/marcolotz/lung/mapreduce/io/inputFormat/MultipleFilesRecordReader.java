@@ -20,23 +20,41 @@
 
 package com.marcolotz.lung.mapreduce.io.inputFormat;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
 import org.apache.log4j.Logger;
 
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+
 /**
  * The reader that {@link MultipleFilesInputFormat} uses.
+ * 
+ * Single-frame files are read as a whole into a single record. Files with
+ * several uncompressed frames are streamed instead: each frame becomes a
+ * record of its own, holding a single-frame DICOM image with the position and
+ * number of that frame, and only one frame is kept in memory at a time.
+ * 
+ * Compressed files, like ".dcm.gz", are decompressed while they are read, with
+ * the codec of their extension.
+ * 
+ * If the split is read by a {@link PrefetchingRecordReader}, the file content
+ * is taken from its prefetcher instead of being read here.
+ * 
  * @author Marco Aurelio Lotz
  *
  */
@@ -46,6 +64,10 @@ public class MultipleFilesRecordReader extends
 	private static final Logger LOG = Logger
 			.getLogger(MultipleFilesRecordReader.class);
 
+	/** The split and the index of the file in it. */
+	private final CombineFileSplit mSplit;
+	private final int mPathIndex;
+
 	/** The path to the file to read. */
 	private final Path mFileToRead;
 
@@ -58,9 +80,18 @@ public class MultipleFilesRecordReader extends
 	/** Whether this FileSplit has been processed. */
 	private boolean isProcessed;
 
-	/** Sequence of bytes that represents a whole file */
+	/** Sequence of bytes that represents a whole file or a single frame */
 	private final BytesWritable fileContent;
 
+	/** The current record, the file content or a prefetched file */
+	private BytesWritable currentValue;
+
+	/** Open file and frame splitter, while the frames are being emitted */
+	private InputStream frameStream;
+	private FrameSplitter frameSplitter;
+
+	private final DicomHeaderParser parser = new DicomHeaderParser();
+
 	/**
 	 * Implementation detail: This constructor is built to be called via
 	 * reflection from within CombineFileRecordReader.
@@ -77,6 +108,8 @@ public class MultipleFilesRecordReader extends
 			TaskAttemptContext context, Integer pathToProcess) {
 		isProcessed = false;
 
+		mSplit = fileSplit;
+		mPathIndex = pathToProcess;
 		mFileToRead = fileSplit.getPath(pathToProcess);
 		mFileLength = fileSplit.getLength(pathToProcess);
 
@@ -100,16 +133,18 @@ public class MultipleFilesRecordReader extends
 			}
 		}
 
-		fileContent = new BytesWritable();
+		fileContent = PayloadBuffer.getBuffer(mConf);
+		currentValue = fileContent;
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public void close() throws IOException {
 		/*
-		 * The file should closed right after it has been read. Thus performs
-		 * nothing.
+		 * Single-frame files are closed right after they have been read. Only
+		 * an interrupted multi-frame file may still be open.
 		 */
+		closeFrames();
 	}
 
 	/***
@@ -142,15 +177,15 @@ public class MultipleFilesRecordReader extends
 	@Override
 	public BytesWritable getCurrentValue() throws IOException,
 			InterruptedException {
-		return fileContent;
+		return currentValue;
 	}
 
 	/**
-	 * Returns whether the file has been processed or not. Since only one record
-	 * will be generated for a file, progress will be 0.0 if it has not been
-	 * processed, and 1.0 if it has.
+	 * Returns whether the file has been processed or not. A single-frame file
+	 * generates only one record, thus progress will be 0.0 if it has not been
+	 * processed, and 1.0 if it has. Multi-frame files progress frame by frame.
 	 * 
-	 * @return 0.0 if the file has not been processed. 1.0 if it has.
+	 * @return the fraction of the file that was processed.
 	 * @throws IOException
 	 *             never.
 	 * @throws InterruptedException
@@ -158,6 +193,10 @@ public class MultipleFilesRecordReader extends
 	 */
 	@Override
 	public float getProgress() throws IOException, InterruptedException {
+		if (frameSplitter != null) {
+			return (float) frameSplitter.getFrameIndex()
+					/ frameSplitter.getFrameCount();
+		}
 		return (isProcessed) ? (float) 1.0 : (float) 0.0;
 	}
 
@@ -182,14 +221,15 @@ public class MultipleFilesRecordReader extends
 
 	/**
 	 * <p>
-	 * If the file has not already been read, this reads it into memory, so that
-	 * a call to getCurrentValue() will return the entire contents of this file
-	 * as Text, and getCurrentKey() will return the qualified path to this file
-	 * as Text. Then, returns true. If it has already been read, then returns
-	 * false without updating any internal state.
+	 * If the file has not already been read, this reads its header and then
+	 * either the whole file into memory, or the first of its frames, so that a
+	 * call to getCurrentValue() will return the entire contents of this file,
+	 * or of the frame, as a BytesWritable. Then, returns true. The next calls
+	 * return the remaining frames, if there are any. When everything was read,
+	 * returns false without updating any internal state.
 	 * </p>
 	 * 
-	 * @return Whether the file was read or not.
+	 * @return Whether a record was read or not.
 	 * @throws IOException
 	 *             if there is an error reading the file.
 	 * @throws InterruptedException
@@ -197,28 +237,160 @@ public class MultipleFilesRecordReader extends
 	 */
 	@Override
 	public boolean nextKeyValue() throws IOException, InterruptedException {
-		if (!isProcessed) {
+		if (frameSplitter != null) {
+			if (frameSplitter.hasNextFrame()) {
+				frameSplitter.readNextFrame(fileContent);
+				return true;
+			}
+			closeFrames();
+			return false;
+		}
+
+		if (isProcessed) {
+			return false;
+		}
+		isProcessed = true;
+
+		CompressionCodec codec = DicomFileInput.getCodec(mFileToRead, mConf);
+
+		/* The prefetcher registers itself after the first reader is created */
+		FilePrefetcher prefetcher = FilePrefetcher.get(mSplit);
+		byte[] prefetched = null;
+		if (prefetcher != null) {
+			prefetched = prefetcher.take(mPathIndex);
+			if (prefetched != null && codec == null) {
+				readPrefetched(prefetched);
+				return true;
+			}
+		}
+
+		InputStream in;
+		if (prefetched != null) {
+			in = new ByteArrayInputStream(prefetched);
+		} else {
+			FileSystem fs = mFileToRead.getFileSystem(mConf);
+			in = fs.open(mFileToRead);
+		}
+
+		try {
+			if (codec != null) {
+				/* Compressed files are decompressed while they are streamed */
+				in = DicomFileInput.decompress(in, codec);
+			}
+
+			/* The bytes read for the header are kept as the file start */
+			fileContent.setSize(0);
+			HeaderCapture capture = new HeaderCapture(in, fileContent);
+			InputStream buffered = new BufferedInputStream(capture);
+
+			DicomHeader header = parser.parse(buffered);
+
+			if (FrameSplitter.canSplit(header)) {
+				capture.stop();
+				frameSplitter = new FrameSplitter(header, parser,
+						fileContent.getBytes(), buffered);
+				frameStream = in;
+				in = null;
+
+				LOG.info("Streaming " + frameSplitter.getFrameCount()
+						+ " frames of " + mFileToRead);
+
+				frameSplitter.readNextFrame(fileContent);
+				return true;
+			}
+
+			if (codec != null) {
+				/* The decompressed length is only known at the end */
+				DicomFileInput.readRemaining(in, fileContent);
+				return true;
+			}
+
 			if (mFileLength > (long) Integer.MAX_VALUE) {
 				throw new IOException("File is longer than Integer.MAX_VALUE.");
 			}
-			byte[] contents = new byte[(int) mFileLength];
 
-			FileSystem fs = mFileToRead.getFileSystem(mConf);
+			/* Set the rest of the file contents, with no intermediate copy */
+			int captured = fileContent.getLength();
+			fileContent.setSize((int) mFileLength);
+			IOUtils.readFully(in, fileContent.getBytes(), captured,
+					(int) mFileLength - captured);
 
-			FSDataInputStream in = null;
-			try {
-				// Set the contents of this file.
-				in = fs.open(mFileToRead);
-				IOUtils.readFully(in, contents, 0, contents.length);
-				fileContent.set(contents, 0, contents.length);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+		return true;
+	}
+
+	/***
+	 * Uses a file read by the prefetcher: its frames, or the whole file
+	 * without any copy.
+	 */
+	private void readPrefetched(byte[] content) throws IOException {
+		InputStream in = new ByteArrayInputStream(content);
+		DicomHeader header = parser.parse(in);
+
+		if (FrameSplitter.canSplit(header)) {
+			frameSplitter = new FrameSplitter(header, parser, content, in);
+			frameSplitter.readNextFrame(fileContent);
+			return;
+		}
+
+		currentValue = new BytesWritable(content);
+	}
+
+	private void closeFrames() {
+		IOUtils.closeStream(frameStream);
+		frameStream = null;
+	}
+
+	/***
+	 * Appends every byte read from the file to the record buffer, until it is
+	 * stopped. This way the bytes read for parsing the header are not read
+	 * again when the whole file is needed.
+	 */
+	private static class HeaderCapture extends FilterInputStream {
+
+		private final BytesWritable target;
+		private boolean capturing = true;
+
+		HeaderCapture(InputStream in, BytesWritable target) {
+			super(in);
+			this.target = target;
+		}
+
+		void stop() {
+			capturing = false;
+		}
 
-			} finally {
-				IOUtils.closeStream(in);
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+
+			if (capturing && count > 0) {
+				int length = target.getLength();
+				target.setSize(length + count);
+				System.arraycopy(b, off, target.getBytes(), length, count);
 			}
-			isProcessed = true;
-			return true;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			/* Skipped bytes must be captured too */
+			byte[] skipped = new byte[(int) Math.min(n, 4096)];
+			return Math.max(read(skipped, 0, skipped.length), 0);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
 		}
-		return false;
 	}
 
 }
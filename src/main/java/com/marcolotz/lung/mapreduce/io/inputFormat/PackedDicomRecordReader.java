@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+
+/**
+ * The reader that {@link PackedDicomInputFormat} uses. It delegates to a
+ * SequenceFileRecordReader and hides the SOPInstanceUID key, so the mapper
+ * receives the same (NullWritable, BytesWritable) pair as with the
+ * {@link MultipleFilesRecordReader}.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+public class PackedDicomRecordReader extends
+		RecordReader<NullWritable, BytesWritable> {
+
+	private final SequenceFileRecordReader<Text, BytesWritable> containerReader = new SequenceFileRecordReader<Text, BytesWritable>();
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		containerReader.initialize(split, context);
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		return containerReader.nextKeyValue();
+	}
+
+	/***
+	 * There is no key in this case, in order to keep the mapper input
+	 * compatible with the other input formats.
+	 */
+	@Override
+	public NullWritable getCurrentKey() throws IOException,
+			InterruptedException {
+		return NullWritable.get();
+	}
+
+	@Override
+	public BytesWritable getCurrentValue() throws IOException,
+			InterruptedException {
+		return containerReader.getCurrentValue();
+	}
+
+	/**
+	 * @return the SOPInstanceUID of the current record.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Text getCurrentSOPInstanceUID() throws IOException,
+			InterruptedException {
+		return containerReader.getCurrentKey();
+	}
+
+	@Override
+	public float getProgress() throws IOException, InterruptedException {
+		return containerReader.getProgress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		containerReader.close();
+	}
+}
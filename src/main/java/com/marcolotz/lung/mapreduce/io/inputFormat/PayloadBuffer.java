@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Handles the BytesWritable that carries a DICOM file from the record readers
+ * to the mapper. The file is read straight into the BytesWritable backing
+ * array, and the mapper gets views of that same array, so a slice is held in
+ * memory only once.
+ *
+ * When the buffer reuse is enabled, all the record readers of a task thread
+ * share a single growable buffer instead of allocating one per file. The
+ * content of the buffer is then only valid until the next record is read. It
+ * is enabled unless com.marcolotz.reader.reuseBuffer is set to false.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+public class PayloadBuffer {
+
+	/* One buffer per reading thread, i.e. per map task */
+	private static final ThreadLocal<BytesWritable> taskBuffer = new ThreadLocal<BytesWritable>() {
+		@Override
+		protected BytesWritable initialValue() {
+			return new BytesWritable();
+		}
+	};
+
+	/***
+	 * @param conf
+	 * @return true if the record readers should share the task buffer, which
+	 *         is the default.
+	 */
+	public static boolean isReuseEnabled(Configuration conf) {
+		return conf.getBoolean("com.marcolotz.reader.reuseBuffer", true);
+	}
+
+	/***
+	 * Returns the buffer that a record reader should fill. It is the shared
+	 * buffer of the task if the reuse is enabled, or a new one otherwise.
+	 *
+	 * @param conf
+	 * @return the buffer used for the file content
+	 */
+	public static BytesWritable getBuffer(Configuration conf) {
+		if (isReuseEnabled(conf)) {
+			return taskBuffer.get();
+		}
+		return new BytesWritable();
+	}
+
+	/***
+	 * Reads length bytes from the stream directly into the target backing
+	 * array, growing it if needed. The previous content is discarded.
+	 *
+	 * @param in
+	 * @param length
+	 * @param target
+	 * @throws IOException
+	 */
+	public static void readFully(InputStream in, int length,
+			BytesWritable target) throws IOException {
+		/* Avoids copying the old content when the buffer has to grow */
+		target.setSize(0);
+		target.setSize(length);
+		IOUtils.readFully(in, target.getBytes(), 0, length);
+	}
+
+	/***
+	 * @param payload
+	 * @return a stream over the valid bytes of the payload. No copy is made.
+	 */
+	public static InputStream asStream(BytesWritable payload) {
+		return new ByteArrayInputStream(payload.getBytes(), 0,
+				payload.getLength());
+	}
+
+	/***
+	 * @param payload
+	 * @return a read-only ByteBuffer over the valid bytes of the payload. No
+	 *         copy is made.
+	 */
+	public static ByteBuffer asByteBuffer(BytesWritable payload) {
+		return ByteBuffer.wrap(payload.getBytes(), 0, payload.getLength())
+				.slice().asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IOUtils;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+
+/**
+ * Estimates the amount of work that a DICOM file represents for the mapper.
+ * The processing time of a slice grows with its pixel count, not with its
+ * file size, thus the cost is the size of the decoded pixel data: rows x
+ * columns x frames x bytes per pixel. Only the header of the file is read.
+ *
+ * Files that can not be understood fall back to their length, which is the
+ * cost used by the plain CombineFileInputFormat.
+ *
+ * @author Marco Aurelio Lotz
+ *
+ */
+class PixelCostEstimator {
+
+	private final DicomHeaderParser parser = new DicomHeaderParser();
+
+	/***
+	 * Returns the estimated cost of processing the given file.
+	 *
+	 * @param fs
+	 * @param status
+	 * @return decoded pixel bytes, or the file length if the header could not
+	 *         be understood.
+	 * @throws IOException
+	 */
+	public long estimate(FileSystem fs, FileStatus status) throws IOException {
+		DicomHeader header;
+
+		InputStream in = null;
+		try {
+			in = DicomFileInput.open(status.getPath(), fs.getConf());
+			header = parser.parse(in);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+
+		return estimate(header, status.getLen());
+	}
+
+	/***
+	 * Returns the estimated cost of a file whose header was already parsed.
+	 * 
+	 * @param header
+	 * @param fileLength
+	 * @return decoded pixel bytes, or the file length if the header could not
+	 *         be understood.
+	 */
+	public static long estimate(DicomHeader header, long fileLength) {
+		int rows = header.getInt(DICOMTags.Rows, 0);
+		int columns = header.getInt(DICOMTags.Columns, 0);
+		int frames = header.getInt(DICOMTags.NumberOfFrames, 1);
+		int bitsAllocated = header.getInt(DICOMTags.BitsAllocated, 16);
+
+		if (rows <= 0 || columns <= 0) {
+			return fileLength;
+		}
+
+		return (long) rows * columns * Math.max(frames, 1)
+				* Math.max(bitsAllocated / 8, 1);
+	}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/**
+ * CombineFileRecordReader that reads the next files of its split in advance,
+ * through a {@link FilePrefetcher}. The files are still handed to the mapper
+ * one by one by MultipleFilesRecordReaders, thus the current input file of the
+ * mapper context is kept as usual.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+class PrefetchingRecordReader extends
+		CombineFileRecordReader<NullWritable, BytesWritable> {
+
+	private final FilePrefetcher prefetcher;
+
+	public PrefetchingRecordReader(CombineFileSplit split,
+			TaskAttemptContext context, int depth) throws IOException {
+		super(split, context, MultipleFilesRecordReader.class);
+
+		/* The first reader was already created, readers look it up on read */
+		prefetcher = new FilePrefetcher(split, context.getConfiguration(),
+				depth);
+	}
+
+	@Override
+	public void close() throws IOException {
+		prefetcher.close();
+		super.close();
+	}
+}
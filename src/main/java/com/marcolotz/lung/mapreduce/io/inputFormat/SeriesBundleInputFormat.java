@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.log4j.Logger;
+
+import com.marcolotz.lung.mapreduce.MRComponents.CatalogSliceWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalog;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalogEntryWritable;
+import com.marcolotz.lung.mapreduce.MapperComponents.SliceFilter;
+
+/**
+ * Input format that delivers a whole series as a single record, with its
+ * slices in order. With it the series level analysis can run in a map-only
+ * job, since the slices of a series no longer have to be gathered by the
+ * shuffle.
+ * 
+ * The files are grouped by the SeriesInstanceUID of the series catalog, and
+ * ordered by their image number. Files that are not in the catalog, or all the
+ * files if the grouping is "directory", are grouped by their parent directory
+ * and ordered by name. Whole series are then packed into splits of about
+ * com.marcolotz.splits.maxSize bytes.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SeriesBundleInputFormat extends
+		FileInputFormat<Text, SeriesBundleWritable> {
+
+	private static final Logger LOG = Logger
+			.getLogger(SeriesBundleInputFormat.class);
+
+	// 128 MB, default block size Cloudera YARN.
+	private static final long defaultMaxSplitSize = 134217728L;
+
+	/* Maximum number of hosts reported by a split */
+	private static final int maximumLocations = 5;
+
+	/***
+	 * A file of a series and its position in it.
+	 */
+	private static class SliceFile {
+		FileStatus status;
+		int imageNumber;
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		Configuration conf = job.getConfiguration();
+
+		long maxSize = conf.getLong("com.marcolotz.splits.maxSize",
+				defaultMaxSplitSize);
+
+		SeriesCatalog catalog = null;
+		if (conf.get("com.marcolotz.bundle.grouping", "catalog")
+				.equalsIgnoreCase("catalog")) {
+			Configuration catalogConf = new Configuration(conf);
+			catalogConf.setBoolean("com.marcolotz.catalog.enabled", true);
+			catalog = SeriesCatalog.load(catalogConf);
+
+			if (catalog == null) {
+				LOG.warn("There is no series catalog at "
+						+ SeriesCatalog.getCatalogPath(conf)
+						+ ", grouping the series by directory");
+			}
+		}
+
+		Map<String, List<SliceFile>> series = groupSeries(conf,
+				listStatus(job), catalog);
+
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		List<SeriesBundleWritable> bundles = new ArrayList<SeriesBundleWritable>();
+		Map<String, Long> hostBytes = new LinkedHashMap<String, Long>();
+		long splitLength = 0;
+
+		for (Map.Entry<String, List<SliceFile>> entry : series.entrySet()) {
+			SeriesBundleWritable bundle = new SeriesBundleWritable(
+					entry.getKey());
+
+			for (SliceFile slice : entry.getValue()) {
+				bundle.addSlice(slice.status.getPath(), slice.status.getLen());
+				splitLength += slice.status.getLen();
+				addHosts(conf, slice.status, hostBytes);
+			}
+			bundles.add(bundle);
+
+			if (splitLength >= maxSize) {
+				splits.add(new SeriesSplit(bundles, splitLength,
+						getTopHosts(hostBytes)));
+				bundles = new ArrayList<SeriesBundleWritable>();
+				hostBytes = new LinkedHashMap<String, Long>();
+				splitLength = 0;
+			}
+		}
+
+		if (!bundles.isEmpty()) {
+			splits.add(new SeriesSplit(bundles, splitLength,
+					getTopHosts(hostBytes)));
+		}
+
+		LOG.info("Generated " + splits.size() + " splits for " + series.size()
+				+ " series");
+
+		return splits;
+	}
+
+	/***
+	 * Groups the files by series, leaving out the cataloged series rejected by
+	 * the slice filters, and sorts the slices of each series.
+	 */
+	private Map<String, List<SliceFile>> groupSeries(Configuration conf,
+			List<FileStatus> files, SeriesCatalog catalog) {
+		SliceFilter filter = new SliceFilter(conf);
+
+		Map<String, List<SliceFile>> series = new LinkedHashMap<String, List<SliceFile>>();
+
+		for (FileStatus file : files) {
+			SliceFile slice = new SliceFile();
+			slice.status = file;
+
+			String seriesKey;
+
+			SeriesCatalogEntryWritable entry = catalog == null ? null
+					: catalog.getSeriesOf(file.getPath());
+
+			if (entry != null) {
+				if (filter.isEnabled() && filter.check(entry) != null) {
+					continue;
+				}
+
+				CatalogSliceWritable catalogSlice = catalog.getSlice(file
+						.getPath());
+				slice.imageNumber = catalogSlice.getImageNumber();
+				seriesKey = entry.getSeriesInstanceUID().trim();
+			} else {
+				seriesKey = file.getPath().getParent().toString();
+			}
+
+			List<SliceFile> slices = series.get(seriesKey);
+			if (slices == null) {
+				slices = new ArrayList<SliceFile>();
+				series.put(seriesKey, slices);
+			}
+			slices.add(slice);
+		}
+
+		Comparator<SliceFile> order = new Comparator<SliceFile>() {
+			@Override
+			public int compare(SliceFile o1, SliceFile o2) {
+				if (o1.imageNumber != o2.imageNumber) {
+					return o1.imageNumber < o2.imageNumber ? -1 : 1;
+				}
+				return o1.status.getPath().getName()
+						.compareTo(o2.status.getPath().getName());
+			}
+		};
+
+		for (List<SliceFile> slices : series.values()) {
+			Collections.sort(slices, order);
+		}
+
+		return series;
+	}
+
+	private static void addHosts(Configuration conf, FileStatus file,
+			Map<String, Long> hostBytes) throws IOException {
+		FileSystem fs = file.getPath().getFileSystem(conf);
+		BlockLocation[] blocks = fs.getFileBlockLocations(file, 0,
+				file.getLen());
+
+		if (blocks == null) {
+			return;
+		}
+
+		for (BlockLocation block : blocks) {
+			for (String host : block.getHosts()) {
+				Long bytes = hostBytes.get(host);
+				hostBytes.put(host, (bytes == null ? 0 : bytes)
+						+ block.getLength());
+			}
+		}
+	}
+
+	/***
+	 * @return the hosts holding most of the split bytes.
+	 */
+	private static String[] getTopHosts(final Map<String, Long> hostBytes) {
+		List<String> hosts = new ArrayList<String>(hostBytes.keySet());
+
+		Collections.sort(hosts, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return hostBytes.get(o2).compareTo(hostBytes.get(o1));
+			}
+		});
+
+		if (hosts.size() > maximumLocations) {
+			hosts = hosts.subList(0, maximumLocations);
+		}
+		return hosts.toArray(new String[hosts.size()]);
+	}
+
+	@Override
+	public RecordReader<Text, SeriesBundleWritable> createRecordReader(
+			InputSplit split, TaskAttemptContext context) throws IOException,
+			InterruptedException {
+		return new SeriesBundleRecordReader();
+	}
+}
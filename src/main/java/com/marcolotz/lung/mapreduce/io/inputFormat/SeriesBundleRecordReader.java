@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * The reader that {@link SeriesBundleInputFormat} uses. It delivers each
+ * series of the {@link SeriesSplit} as a single record, keyed by the series
+ * identifier.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SeriesBundleRecordReader extends
+		RecordReader<Text, SeriesBundleWritable> {
+
+	private List<SeriesBundleWritable> series;
+	private int current = -1;
+
+	private final Text key = new Text();
+
+	@Override
+	public void initialize(InputSplit split, TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		series = ((SeriesSplit) split).getSeries();
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		if (current + 1 >= series.size()) {
+			return false;
+		}
+
+		current++;
+		key.set(series.get(current).getSeriesInstanceUID());
+		return true;
+	}
+
+	@Override
+	public Text getCurrentKey() throws IOException, InterruptedException {
+		return key;
+	}
+
+	@Override
+	public SeriesBundleWritable getCurrentValue() throws IOException,
+			InterruptedException {
+		return series.get(current);
+	}
+
+	@Override
+	public float getProgress() throws IOException, InterruptedException {
+		return series.isEmpty() ? 1.0f : (float) (current + 1) / series.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The slices are opened and closed by the SeriesBundleWritable.
+	}
+}
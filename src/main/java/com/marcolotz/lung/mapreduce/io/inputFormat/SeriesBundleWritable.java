@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+
+import com.marcolotz.lung.mapreduce.MRComponents.SerializerConverter;
+
+/**
+ * A whole DICOM series, as delivered by the {@link SeriesBundleInputFormat}:
+ * the paths of its slices, in order. The slices are only read when requested,
+ * one at a time, so a series never has to fit in memory.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SeriesBundleWritable implements Writable {
+
+	private String seriesInstanceUID;
+
+	private List<Path> paths = new ArrayList<Path>();
+	private List<Long> lengths = new ArrayList<Long>();
+
+	public SeriesBundleWritable() {
+	}
+
+	public SeriesBundleWritable(String seriesInstanceUID) {
+		this.seriesInstanceUID = seriesInstanceUID;
+	}
+
+	public void addSlice(Path path, long length) {
+		paths.add(path);
+		lengths.add(length);
+	}
+
+	/***
+	 * @return the SeriesInstanceUID, or the series directory when the series
+	 *         were grouped by directory.
+	 */
+	public String getSeriesInstanceUID() {
+		return seriesInstanceUID;
+	}
+
+	public int getSliceCount() {
+		return paths.size();
+	}
+
+	public Path getSlicePath(int index) {
+		return paths.get(index);
+	}
+
+	/***
+	 * Reads a slice of the series into the target buffer.
+	 * 
+	 * @param index
+	 *            position of the slice in the series
+	 * @param conf
+	 * @param target
+	 * @throws IOException
+	 */
+	public void readSlice(int index, Configuration conf, BytesWritable target)
+			throws IOException {
+		DicomFileInput.read(paths.get(index), lengths.get(index), conf, target);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		SerializerConverter.writeString(seriesInstanceUID, out);
+
+		out.writeInt(paths.size());
+		for (int i = 0; i < paths.size(); i++) {
+			SerializerConverter.writeString(paths.get(i).toString(), out);
+			out.writeLong(lengths.get(i));
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		seriesInstanceUID = SerializerConverter.readString(in);
+
+		int sliceCount = in.readInt();
+		paths = new ArrayList<Path>(sliceCount);
+		lengths = new ArrayList<Long>(sliceCount);
+
+		for (int i = 0; i < sliceCount; i++) {
+			paths.add(new Path(SerializerConverter.readString(in)));
+			lengths.add(in.readLong());
+		}
+	}
+}
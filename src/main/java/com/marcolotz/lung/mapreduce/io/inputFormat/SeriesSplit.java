@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+ * The split of the {@link SeriesBundleInputFormat}: one or more whole series.
+ * A series is never divided between splits.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SeriesSplit extends InputSplit implements Writable {
+
+	private List<SeriesBundleWritable> series = new ArrayList<SeriesBundleWritable>();
+	private long length;
+
+	/* Not serialized, only used by the scheduler */
+	private String[] locations = new String[0];
+
+	public SeriesSplit() {
+	}
+
+	public SeriesSplit(List<SeriesBundleWritable> series, long length,
+			String[] locations) {
+		this.series = series;
+		this.length = length;
+		this.locations = locations;
+	}
+
+	public List<SeriesBundleWritable> getSeries() {
+		return series;
+	}
+
+	@Override
+	public long getLength() throws IOException, InterruptedException {
+		return length;
+	}
+
+	@Override
+	public String[] getLocations() throws IOException, InterruptedException {
+		return locations;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(length);
+		out.writeInt(series.size());
+		for (SeriesBundleWritable bundle : series) {
+			bundle.write(out);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		length = in.readLong();
+
+		int seriesCount = in.readInt();
+		series = new ArrayList<SeriesBundleWritable>(seriesCount);
+		for (int i = 0; i < seriesCount; i++) {
+			SeriesBundleWritable bundle = new SeriesBundleWritable();
+			bundle.readFields(in);
+			series.add(bundle);
+		}
+	}
+}
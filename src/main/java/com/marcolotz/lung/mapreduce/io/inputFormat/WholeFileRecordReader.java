@@ -23,10 +23,7 @@ package com.marcolotz.lung.mapreduce.io.inputFormat;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -48,7 +45,7 @@ import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 class WholeFileRecordReader extends RecordReader<NullWritable, BytesWritable> {
 	private FileSplit fileSplit;
 	private Configuration conf;
-	private BytesWritable value = new BytesWritable();
+	private BytesWritable value;
 	private boolean processed = false;
 
 	@Override
@@ -56,28 +53,17 @@ class WholeFileRecordReader extends RecordReader<NullWritable, BytesWritable> {
 			throws IOException, InterruptedException {
 		this.fileSplit = (FileSplit) split;
 		this.conf = context.getConfiguration();
+		this.value = PayloadBuffer.getBuffer(conf);
 	}
 
 	@Override
 	public boolean nextKeyValue() throws IOException, InterruptedException {
 		/* if that record reader for that input split was not called yet */
 		if (!processed) {
-			byte[] contents = new byte[(int) fileSplit.getLength()];
-
 			Path file = fileSplit.getPath();
 
-			// Reads from the conf file what is the desired file system.
-			FileSystem fs = file.getFileSystem(conf);
-
-			FSDataInputStream in = null;
-
-			try {
-				in = fs.open(file);
-				IOUtils.readFully(in, contents, 0, contents.length);
-				value.set(contents, 0, contents.length);
-			} finally {
-				IOUtils.closeStream(in);
-			}
+			// Decompresses the file if its extension has a codec.
+			DicomFileInput.read(file, fileSplit.getLength(), conf, value);
 
 			processed = true;
 			return true;
@@ -20,29 +20,43 @@
 
 package com.marcolotz.lung.mapreduce.mapper;
 
-import ij.plugin.DICOM;
-
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 
-import com.marcolotz.imageprocess.GrayNoduleCandidates;
 import com.marcolotz.imageprocess.ImageProcessor;
-import com.marcolotz.imageprocess.NullPreProcessor;
-import com.marcolotz.imageprocess.TresholdLung;
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.IncrementalManifest;
 import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.LungCounters;
+import com.marcolotz.lung.mapreduce.MRComponents.ManifestEntryWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.ManifestReader;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalog;
+import com.marcolotz.lung.mapreduce.MapperComponents.DuplicateFilter;
 import com.marcolotz.lung.mapreduce.MapperComponents.ImageMetadata;
-import com.marcolotz.lung.mapreduce.MapperComponents.ImageStructure;
-import com.marcolotz.lung.mapreduce.io.inputFormat.DistributedDicomReader;
 
 /**
  * Mapper used in the HadoopLung application. All the images are processed in
  * the Map phase.
  * 
+ * With com.marcolotz.mapper.threads above 1, the slices of the task are
+ * processed concurrently by that many threads, each one with its own
+ * {@link SlicePipeline}. The records are still read by the task thread, which
+ * copies them into a bounded pool of buffers, so the memory used grows with
+ * the number of threads and not with the split size.
+ * 
  * @author Marco Aurelio Lotz
  * 
  */
@@ -52,6 +66,74 @@ public class LungMapper
 
 	// private static final Log LOG = LogFactory.getLog(LungMapper.class);
 
+	/* Built once per task, reused for every slice */
+	private SlicePipeline slicePipeline;
+
+	/* Image processing stages of the task, with its tile scheduler */
+	private ImageProcessor stages;
+
+	/* Number of slices processed concurrently */
+	private int threads;
+
+	/* Incremental mode: every slice read is recorded in the new manifest */
+	private MultipleOutputs<KeyStructureWritable, ImageMetadata> multipleOutputs;
+	private ManifestReader manifest;
+
+	@Override
+	protected void setup(Context context) throws IOException,
+			InterruptedException {
+		threads = getThreads(context.getConfiguration());
+		stages = new ImageProcessor(context.getConfiguration());
+
+		/* The series catalog already filtered the input files */
+		slicePipeline = new SlicePipeline(context.getConfiguration(),
+				SeriesCatalog.isEnabled(context.getConfiguration()),
+				new DuplicateFilter(context.getConfiguration()), stages);
+
+		if (IncrementalManifest.isEnabled(context.getConfiguration())) {
+			multipleOutputs = new MultipleOutputs<KeyStructureWritable, ImageMetadata>(
+					context);
+			manifest = new ManifestReader(context.getConfiguration());
+			slicePipeline.setManifest(manifest);
+		}
+	}
+
+	@Override
+	protected void cleanup(Context context) throws IOException,
+			InterruptedException {
+		stages.shutdown();
+
+		if (multipleOutputs != null) {
+			multipleOutputs.close();
+			manifest.close();
+		}
+	}
+
+	/***
+	 * @param conf
+	 * @return the number of slices processed concurrently by a map task.
+	 */
+	public static int getThreads(Configuration conf) {
+		return Math.max(conf.getInt("com.marcolotz.mapper.threads", 1), 1);
+	}
+
+	@Override
+	public void run(Context context) throws IOException, InterruptedException {
+		setup(context);
+		try {
+			if (threads > 1) {
+				runThreads(context);
+			} else {
+				while (context.nextKeyValue()) {
+					map(context.getCurrentKey(), context.getCurrentValue(),
+							context);
+				}
+			}
+		} finally {
+			cleanup(context);
+		}
+	}
+
 	/***
 	 * The key generated by the record reader is a NullWritable with no content.
 	 * The value is a byte array that represents a DICOM image.
@@ -65,73 +147,183 @@ public class LungMapper
 	@Override
 	protected void map(NullWritable nothing, BytesWritable dicomImage,
 			Context context) throws IOException, InterruptedException {
+		processSlice(context, slicePipeline, dicomImage, context
+				.getConfiguration().get(MRJobConfig.MAP_INPUT_FILE));
+	}
 
-		/***
-		 * Local Attributes declarations
-		 */
-		DistributedDicomReader reader;
-		ImageProcessor imageProcessor;
-
-		KeyStructureWritable keyStructure;
-		ImageStructure imageStructure;
-		ImageMetadata imageMetadata;
-
-		// Generates a DICOM image from the BytesWritable input.
-		DICOM image = convertToDICOM(dicomImage);
-
-		// Process image meta information
-		// generating a key-value pair for the image
-		reader = new DistributedDicomReader(image);
-
-		// Gets the key from the reader.
-		keyStructure = reader.getKeyStructure();
-
-		// Gets the image meta data from the reader
-		imageStructure = reader.getImageStructure();
-
-		/***
-		 * Process the DICOM image: inside the image processor one can use
-		 * plugins.
-		 */
-		imageProcessor = new ImageProcessor(NullPreProcessor.class,
-				TresholdLung.class, GrayNoduleCandidates.class,
-				context.getConfiguration());
-		imageProcessor.setInput(image);
-		imageProcessor.run();
-
-		/***
-		 * Updates the imageStructure with the nodes detected by the @imageProcessor
-		 */
-		imageStructure
-				.setNodeCandidatesList(imageProcessor.getNodeCandidates());
-
-		/***
-		 * Generates the emitted value. The value has Metadata from the image
-		 * Structure, including image information and blob data.
-		 */
-		imageMetadata = new ImageMetadata(imageStructure);
+	/***
+	 * Reads the records in the task thread and processes them in a pool of
+	 * threads. Each thread has its own pipeline, while the configuration, the
+	 * duplicate filter and the image processing stages are shared. The first
+	 * failure of a thread fails the task.
+	 * 
+	 * @param context
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void runThreads(final Context context) throws IOException,
+			InterruptedException {
+		final Configuration conf = context.getConfiguration();
+		final boolean inputFiltered = SeriesCatalog.isEnabled(conf);
+		final DuplicateFilter duplicateFilter = new DuplicateFilter(conf);
 
-		// Emits the key-value pair
-		context.write(keyStructure, imageMetadata);
+		final ThreadLocal<SlicePipeline> pipelines = new ThreadLocal<SlicePipeline>() {
+			@Override
+			protected SlicePipeline initialValue() {
+				SlicePipeline pipeline = new SlicePipeline(conf,
+						inputFiltered, duplicateFilter, new ImageProcessor(
+								stages));
+				pipeline.setManifest(manifest);
+				return pipeline;
+			}
+		};
+
+		/* Two buffers per thread: one being processed and one waiting */
+		final BlockingQueue<BytesWritable> freeBuffers = new ArrayBlockingQueue<BytesWritable>(
+				threads * 2);
+		for (int i = 0; i < threads * 2; i++) {
+			freeBuffers.add(new BytesWritable());
+		}
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			while (failure.get() == null && context.nextKeyValue()) {
+				final BytesWritable buffer = freeBuffers.take();
+
+				/* The reader may reuse its buffer for the next record */
+				buffer.set(context.getCurrentValue());
+				final String inputFile = conf.get(MRJobConfig.MAP_INPUT_FILE);
+
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (failure.get() == null) {
+								processSlice(context, pipelines.get(), buffer,
+										inputFile);
+							}
+						} catch (Throwable t) {
+							failure.compareAndSet(null, t);
+						} finally {
+							freeBuffers.add(buffer);
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				context.progress();
+			}
+		}
+
+		Throwable t = failure.get();
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t instanceof InterruptedException) {
+			throw (InterruptedException) t;
+		} else if (t != null) {
+			throw new IOException("Slice processing failed", t);
+		}
 	}
 
-	/**
-	 * Converts from bytesWritable to DICOM image.
+	/***
+	 * Processes a slice and emits its results. It may be called concurrently,
+	 * with a pipeline per thread: the outputs are written, and the counters
+	 * incremented, holding the context lock.
 	 * 
+	 * @param context
+	 * @param pipeline
 	 * @param dicomImage
-	 * @return DICOM image
+	 * @param inputFile
+	 *            the file of the slice, for the manifest of the incremental
+	 *            mode
+	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private DICOM convertToDICOM(BytesWritable dicomImage) {
-		byte[] inputContent = dicomImage.getBytes();
+	private void processSlice(Context context, SlicePipeline pipeline,
+			BytesWritable dicomImage, String inputFile) throws IOException,
+			InterruptedException {
+
+		if (!pipeline.process(dicomImage)) {
+			synchronized (context) {
+				context.getCounter(pipeline.getRejection()).increment(1);
+			}
 
-		InputStream inputStream = new ByteArrayInputStream(inputContent);
+			/* A failed slice is left out of the manifest, to be read again */
+			if (multipleOutputs != null
+					&& pipeline.getRejection() != LungCounters.REJECTED_PROCESSING) {
+				String sopInstanceUID = pipeline.getHeader().getTag(
+						DICOMTags.SOPInstanceUID);
+				writeManifest(context, inputFile, pipeline.getContentDigest(),
+						sopInstanceUID, null, null);
+			}
+			return;
+		}
 
-		DICOM convertedImage = new DICOM(inputStream);
+		KeyStructureWritable keyStructure = pipeline.getKeyStructure();
+		ImageMetadata imageMetadata = pipeline.getImageMetadata();
 
-		// Gives a generic name to the image file
-		convertedImage.run("Dicom Image");
+		// Emits the key-value pair
+		synchronized (context) {
+			context.write(keyStructure, imageMetadata);
+			context.getCounter(
+					pipeline.isStored() ? LungCounters.SLICES_UNCHANGED
+							: LungCounters.SLICES_PROCESSED).increment(1);
+		}
 
-		return convertedImage;
+		if (multipleOutputs != null) {
+			writeManifest(context, inputFile, pipeline.getContentDigest(),
+					null, keyStructure, imageMetadata);
+		}
 	}
 
+	/***
+	 * Records the slice in the new manifest of the incremental mode, with the
+	 * fingerprint of its file when the input was listed. A file changed since
+	 * has then a different fingerprint, and it is read again by the next run.
+	 * 
+	 * @param context
+	 * @param inputFile
+	 *            the file of the slice, set by the CombineFileRecordReader
+	 * @param contentDigest
+	 *            SHA-1 of the file
+	 * @param sopInstanceUID
+	 *            of a rejected slice
+	 * @param keyStructure
+	 *            of a processed slice, null if the slice was rejected
+	 * @param imageMetadata
+	 *            of a processed slice, null if the slice was rejected
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void writeManifest(Context context, String inputFile,
+			String contentDigest, String sopInstanceUID,
+			KeyStructureWritable keyStructure, ImageMetadata imageMetadata)
+			throws IOException, InterruptedException {
+		ManifestEntryWritable listed = inputFile == null ? null : manifest
+				.getListedFile(inputFile);
+		if (listed == null) {
+			throw new IOException(
+					"The incremental mode needs the MultipleFilesInputFormat, which plans the files to read");
+		}
+
+		ManifestEntryWritable entry;
+		if (imageMetadata != null) {
+			entry = new ManifestEntryWritable(inputFile, listed.getLength(),
+					listed.getModificationTime(), contentDigest, keyStructure,
+					imageMetadata);
+		} else {
+			entry = new ManifestEntryWritable(inputFile, listed.getLength(),
+					listed.getModificationTime(), contentDigest,
+					sopInstanceUID);
+		}
+
+		synchronized (context) {
+			multipleOutputs.write(IncrementalManifest.namedOutput, new Text(
+					entry.getKey()), entry);
+		}
+	}
 }
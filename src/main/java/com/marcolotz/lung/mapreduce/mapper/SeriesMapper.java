@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.mapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import com.marcolotz.imageprocess.ImageProcessor;
+import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.LungCounters;
+import com.marcolotz.lung.mapreduce.MapperComponents.DuplicateFilter;
+import com.marcolotz.lung.mapreduce.MapperComponents.ImageMetadata;
+import com.marcolotz.lung.mapreduce.ReducerComponents.ReducedValueWritable;
+import com.marcolotz.lung.mapreduce.io.inputFormat.PayloadBuffer;
+import com.marcolotz.lung.mapreduce.io.inputFormat.SeriesBundleWritable;
+import com.marcolotz.lung.mapreduce.io.outputFormat.SeriesDataWritable;
+
+/**
+ * Mapper of the map-only series mode. Each record is a whole series delivered
+ * by the SeriesBundleInputFormat: its slices are processed one at a time, like
+ * the {@link LungMapper} does, and the series result is written directly,
+ * without the shuffle and the LungReducer.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class SeriesMapper extends
+		Mapper<Text, SeriesBundleWritable, SeriesDataWritable, NullWritable> {
+
+	/* Built once per task, reused for every slice */
+	private SlicePipeline slicePipeline;
+
+	/* Image processing stages of the task, with its tile scheduler */
+	private ImageProcessor stages;
+
+	private BytesWritable sliceBuffer;
+
+	@Override
+	protected void setup(Context context) throws IOException,
+			InterruptedException {
+		stages = new ImageProcessor(context.getConfiguration());
+		slicePipeline = new SlicePipeline(context.getConfiguration(), false,
+				new DuplicateFilter(context.getConfiguration()), stages);
+		sliceBuffer = PayloadBuffer.getBuffer(context.getConfiguration());
+	}
+
+	@Override
+	protected void cleanup(Context context) throws IOException,
+			InterruptedException {
+		stages.shutdown();
+	}
+
+	@Override
+	protected void map(Text seriesKey, SeriesBundleWritable series,
+			Context context) throws IOException, InterruptedException {
+
+		KeyStructureWritable keyStructure = null;
+		List<ImageMetadata> slices = new ArrayList<ImageMetadata>(
+				series.getSliceCount());
+
+		/* The whole series is in the bundle, no reducer is needed */
+		for (int i = 0; i < series.getSliceCount(); i++) {
+			series.readSlice(i, context.getConfiguration(), sliceBuffer);
+
+			if (!slicePipeline.process(sliceBuffer)) {
+				context.getCounter(slicePipeline.getRejection()).increment(1);
+				continue;
+			}
+
+			if (keyStructure == null) {
+				keyStructure = slicePipeline.getKeyStructure();
+			}
+
+			slices.add(slicePipeline.getImageMetadata());
+
+			context.getCounter(LungCounters.SLICES_PROCESSED).increment(1);
+			context.progress();
+		}
+
+		if (keyStructure == null) {
+			/* All the slices were rejected */
+			return;
+		}
+
+		/* Same order of the LungReducer output */
+		Collections.sort(slices);
+
+		ReducedValueWritable reducedValue = new ReducedValueWritable();
+		for (ImageMetadata slice : slices) {
+			reducedValue.addToReducedList(slice);
+		}
+
+		context.write(new SeriesDataWritable(keyStructure, reducedValue),
+				NullWritable.get());
+	}
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.mapper;
+
+import ij.plugin.DICOM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.log4j.Logger;
+
+import com.marcolotz.imageprocess.ImageProcessor;
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.LungCounters;
+import com.marcolotz.lung.mapreduce.MRComponents.ManifestEntryWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.ManifestReader;
+import com.marcolotz.lung.mapreduce.MapperComponents.DuplicateFilter;
+import com.marcolotz.lung.mapreduce.MapperComponents.ImageMetadata;
+import com.marcolotz.lung.mapreduce.MapperComponents.ImageStructure;
+import com.marcolotz.lung.mapreduce.MapperComponents.SliceFilter;
+import com.marcolotz.lung.mapreduce.io.inputFormat.DicomHeaderParser;
+import com.marcolotz.lung.mapreduce.io.inputFormat.PayloadBuffer;
+
+/**
+ * The processing of a single slice, shared by the {@link LungMapper} and the
+ * {@link SeriesMapper}: header filters, duplicate filter, decoding and the
+ * image processing pipeline.
+ * 
+ * It is built once, in the setup of the mapper, so that the filters, the
+ * header parser and the pipeline stages, with their scratch buffers, are
+ * reused for every slice of the task. Only the results of a slice are
+ * allocated for it.
+ * 
+ * A slice whose image processing fails is rejected, and counted in
+ * REJECTED_PROCESSING, instead of failing the task.
+ * 
+ * A pipeline processes one slice at a time. Multithreaded map tasks use a
+ * pipeline per thread, sharing the duplicate filter and the image processing
+ * stages.
+ * 
+ * In the incremental mode, a slice whose content is already in the manifest
+ * of the last run is not decoded: its stored results are used.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+class SlicePipeline {
+
+	private static final Logger LOG = Logger.getLogger(SlicePipeline.class);
+
+	private final SliceFilter sliceFilter;
+	private final DuplicateFilter duplicateFilter;
+	private final DicomHeaderParser headerParser = new DicomHeaderParser();
+	private final ImageProcessor imageProcessor;
+	private final MessageDigest digest = DuplicateFilter.createDigest();
+
+	/* Incremental mode: manifest of the last run, null if not used */
+	private ManifestReader manifest;
+
+	/* False if the input was already filtered, by the series catalog */
+	private final boolean filterHeaders;
+
+	/* Results of the last slice */
+	private DicomHeader header;
+	private String contentDigest;
+	private boolean stored;
+	private LungCounters rejection;
+	private KeyStructureWritable keyStructure;
+	private ImageMetadata imageMetadata;
+
+	/***
+	 * @param conf
+	 * @param inputFiltered
+	 *            true if the slice filters were already applied to the input
+	 * @param duplicateFilter
+	 *            the duplicate filter of the task
+	 * @param imageProcessor
+	 *            the image processor of this pipeline, which may share its
+	 *            stages with the ones of other pipelines
+	 */
+	public SlicePipeline(Configuration conf, boolean inputFiltered,
+			DuplicateFilter duplicateFilter, ImageProcessor imageProcessor) {
+		sliceFilter = new SliceFilter(conf);
+		this.duplicateFilter = duplicateFilter;
+		this.imageProcessor = imageProcessor;
+
+		filterHeaders = sliceFilter.isEnabled() && !inputFiltered;
+	}
+
+	/***
+	 * Enables the incremental mode: the content digest of every slice is
+	 * computed for the manifest, and the slices already in the manifest of
+	 * the last run are not processed again.
+	 * 
+	 * @param manifest
+	 *            shared by the pipelines of the task
+	 */
+	public void setManifest(ManifestReader manifest) {
+		this.manifest = manifest;
+	}
+
+	/***
+	 * Processes a slice. If it is accepted, the key and the value to emit are
+	 * available from {@link #getKeyStructure()} and
+	 * {@link #getImageMetadata()}, otherwise the reason is given by
+	 * {@link #getRejection()}.
+	 * 
+	 * @param dicomImage
+	 *            the DICOM file
+	 * @return true if the slice was processed, false if it was rejected.
+	 * @throws IOException
+	 */
+	public boolean process(BytesWritable dicomImage) throws IOException {
+		header = null;
+		contentDigest = null;
+		stored = false;
+		rejection = null;
+		keyStructure = null;
+		imageMetadata = null;
+
+		if (filterHeaders || duplicateFilter.isEnabled() || manifest != null) {
+			header = headerParser.parse(PayloadBuffer.asStream(dicomImage));
+		}
+
+		/***
+		 * The content digest is only computed for the manifest and for the
+		 * duplicates of the slices without a SOPInstanceUID. The other
+		 * duplicates are told apart by a cheaper checksum.
+		 */
+		if (manifest != null
+				|| (duplicateFilter.isEnabled() && DuplicateFilter
+						.isIdentifiedByContent(header))) {
+			contentDigest = DuplicateFilter.getContentDigest(digest,
+					dicomImage.getBytes(), dicomImage.getLength());
+		}
+
+		/***
+		 * Evaluates the slice filters and drops the duplicates on the header,
+		 * before spending any time decoding the pixel data.
+		 */
+		if (filterHeaders) {
+			rejection = sliceFilter.check(header);
+		}
+
+		if (rejection == null && duplicateFilter.isEnabled()) {
+			long checksum = DuplicateFilter.isIdentifiedByContent(header) ? 0
+					: DuplicateFilter.getChecksum(dicomImage.getBytes(),
+							dicomImage.getLength());
+			rejection = duplicateFilter.check(header, contentDigest, checksum);
+		}
+
+		if (rejection != null) {
+			return false;
+		}
+
+		if (manifest != null && useStoredResults()) {
+			return true;
+		}
+
+		// Generates a DICOM image from the BytesWritable input.
+		DICOM image = convertToDICOM(dicomImage);
+
+		// Process image meta information, parsing the info only if needed
+		if (header == null) {
+			header = DicomHeader.fromImage(image);
+		}
+
+		keyStructure = new KeyStructureWritable(header);
+		ImageStructure imageStructure = new ImageStructure(header);
+
+		/***
+		 * Process the DICOM image: inside the image processor one can use
+		 * plugins.
+		 */
+		imageProcessor.setInput(image);
+		try {
+			imageProcessor.run();
+		} catch (RuntimeException e) {
+			LOG.warn("Image processing failed for slice "
+					+ header.getTag(DICOMTags.SOPInstanceUID), e);
+			rejection = LungCounters.REJECTED_PROCESSING;
+			return false;
+		}
+
+		/***
+		 * Updates the imageStructure with the nodes detected by the @imageProcessor
+		 */
+		imageStructure
+				.setNodeCandidatesList(imageProcessor.getNodeCandidates());
+
+		/***
+		 * Generates the emitted value. The value has Metadata from the image
+		 * Structure, including image information and blob data.
+		 */
+		imageMetadata = new ImageMetadata(imageStructure);
+		imageMetadata.setContentDigest(contentDigest);
+
+		return true;
+	}
+
+	/***
+	 * Looks for the content of the slice in the manifest of the last run, for
+	 * instance if its file was only touched or copied.
+	 * 
+	 * @return true if the stored results of the slice are used.
+	 * @throws IOException
+	 */
+	private boolean useStoredResults() throws IOException {
+		KeyStructureWritable sliceKey = new KeyStructureWritable(header);
+
+		ManifestEntryWritable entry = manifest.findContent(
+				sliceKey.getSeriesInstanceUID(),
+				DuplicateFilter.getIdentity(
+						header.getTag(DICOMTags.SOPInstanceUID), contentDigest),
+				contentDigest);
+		if (entry == null) {
+			return false;
+		}
+
+		keyStructure = entry.getKeyStructure();
+		imageMetadata = entry.getImageMetadata();
+		stored = true;
+		return true;
+	}
+
+	/***
+	 * @return the header of the last slice
+	 */
+	public DicomHeader getHeader() {
+		return header;
+	}
+
+	/***
+	 * @return the SHA-1 of the last slice file, in hexadecimal, or null if it
+	 *         was not needed.
+	 */
+	public String getContentDigest() {
+		return contentDigest;
+	}
+
+	/***
+	 * @return true if the results of the last slice were taken from the
+	 *         manifest, without processing it.
+	 */
+	public boolean isStored() {
+		return stored;
+	}
+
+	/***
+	 * @return the counter of the reason why the last slice was rejected, or
+	 *         null if it was processed.
+	 */
+	public LungCounters getRejection() {
+		return rejection;
+	}
+
+	public KeyStructureWritable getKeyStructure() {
+		return keyStructure;
+	}
+
+	public ImageMetadata getImageMetadata() {
+		return imageMetadata;
+	}
+
+	/**
+	 * Converts from bytesWritable to DICOM image.
+	 * 
+	 * @param dicomImage
+	 * @return DICOM image
+	 */
+	static DICOM convertToDICOM(BytesWritable dicomImage) {
+		/* A view over the valid bytes of the value, without copying them */
+		InputStream inputStream = PayloadBuffer.asStream(dicomImage);
+
+		DICOM convertedImage = new DICOM(inputStream);
+
+		// Gives a generic name to the image file
+		convertedImage.run("Dicom Image");
+
+		return convertedImage;
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.mapreduce.hadooplung.reducer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import com.marcolotz.lung.mapreduce.MRComponents.CatalogSliceWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.SeriesCatalogEntryWritable;
+
+/**
+ * The reducer of the catalog job. It groups the slices of each series into a
+ * single catalog entry, keyed by the SeriesInstanceUID.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class CatalogReducer
+		extends
+		Reducer<KeyStructureWritable, CatalogSliceWritable, Text, SeriesCatalogEntryWritable> {
+
+	private final Text outputKey = new Text();
+
+	@Override
+	protected void reduce(KeyStructureWritable inputKey,
+			Iterable<CatalogSliceWritable> values, Context context)
+			throws IOException, InterruptedException {
+
+		List<CatalogSliceWritable> slices = new ArrayList<CatalogSliceWritable>();
+
+		/* Hadoop reuses the value object, thus each slice is copied */
+		for (CatalogSliceWritable slice : values) {
+			slices.add(new CatalogSliceWritable(slice));
+		}
+
+		/* Keeps the catalog independent of the map output order */
+		Collections.sort(slices, new Comparator<CatalogSliceWritable>() {
+			@Override
+			public int compare(CatalogSliceWritable o1, CatalogSliceWritable o2) {
+				return o1.getPath().compareTo(o2.getPath());
+			}
+		});
+
+		SeriesCatalogEntryWritable entry = new SeriesCatalogEntryWritable(
+				inputKey);
+		for (CatalogSliceWritable slice : slices) {
+			entry.addSlice(slice);
+		}
+
+		outputKey.set(String.valueOf(inputKey.getSeriesInstanceUID()));
+		context.write(outputKey, entry);
+	}
+}
@@ -23,12 +23,22 @@ package com.marcolotz.mapreduce.hadooplung.reducer;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.ReflectionUtils;
 
+import com.marcolotz.lung.mapreduce.MRComponents.IncrementalManifest;
 import com.marcolotz.lung.mapreduce.MRComponents.KeyStructureWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.LungCounters;
+import com.marcolotz.lung.mapreduce.MRComponents.ManifestEntryWritable;
+import com.marcolotz.lung.mapreduce.MRComponents.ManifestReader;
+import com.marcolotz.lung.mapreduce.MapperComponents.DuplicateFilter;
 import com.marcolotz.lung.mapreduce.MapperComponents.ImageMetadata;
 import com.marcolotz.lung.mapreduce.ReducerComponents.ReducedValueWritable;
 import com.marcolotz.lung.mapreduce.io.outputFormat.SeriesDataWritable;
@@ -36,12 +46,69 @@ import com.marcolotz.lung.mapreduce.io.outputFormat.SeriesDataWritable;
 /**
  * The reducer used in HadoopLung. It manager series meta informations.
  * 
+ * When the duplicate filter is enabled, it also drops the duplicate slices
+ * that different map tasks processed, by SOPInstanceUID or, for slices without
+ * it, by content digest.
+ * 
+ * In the incremental mode it only receives the new or changed slices. Their
+ * series are merged with the stored slices that are still valid, then written
+ * to a directory per series, so that the output of the other series is kept.
+ * The series that only lost slices are reduced again at the end of the task.
+ * 
  * @author Marco Aurelio Lotz
  * 
  */
 public class LungReducer
 		extends
 		Reducer<KeyStructureWritable, ImageMetadata, SeriesDataWritable, NullWritable> {
+
+	private boolean dropDuplicates;
+
+	/* Incremental mode: null if not used */
+	private ManifestReader manifest;
+	private MultipleOutputs<SeriesDataWritable, NullWritable> multipleOutputs;
+
+	/* Incremental mode: series reduced by the task */
+	private final Set<String> reducedSeries = new HashSet<String>();
+
+	@Override
+	protected void setup(Context context) throws IOException,
+			InterruptedException {
+		dropDuplicates = DuplicateFilter.isEnabled(context.getConfiguration());
+
+		if (IncrementalManifest.isEnabled(context.getConfiguration())) {
+			manifest = new ManifestReader(context.getConfiguration());
+			multipleOutputs = new MultipleOutputs<SeriesDataWritable, NullWritable>(
+					context);
+		}
+	}
+
+	@Override
+	protected void cleanup(Context context) throws IOException,
+			InterruptedException {
+		if (manifest == null) {
+			return;
+		}
+
+		try {
+			/* Series of this partition that only lost slices */
+			Partitioner<KeyStructureWritable, ImageMetadata> partitioner = getPartitioner(context);
+			int partition = context.getTaskAttemptID().getTaskID().getId();
+
+			for (KeyStructureWritable series : manifest.getRemovedSeries()) {
+				if (!reducedSeries.contains(series.getSeriesInstanceUID())
+						&& partitioner.getPartition(series, null,
+								context.getNumReduceTasks()) == partition) {
+					reduce(series, Collections.<ImageMetadata> emptyList(),
+							context);
+				}
+			}
+		} finally {
+			multipleOutputs.close();
+			manifest.close();
+		}
+	}
+
 	@Override
 	protected void reduce(KeyStructureWritable inputKey,
 			Iterable<ImageMetadata> values, Context context)
@@ -53,6 +120,9 @@ public class LungReducer
 
 		ArrayList<ImageMetadata> sortedList = new ArrayList<ImageMetadata>();
 
+		/* SOPInstanceUIDs, or content digests, of the slices already added */
+		Set<Object> seenSlices = new HashSet<Object>();
+
 		/*
 		 * Generates a new list used for sorting
 		 * 
@@ -71,9 +141,18 @@ public class LungReducer
 			// Clones iterator content
 			ImageMetadata buffer = new ImageMetadata(itr.next());
 
+			if (dropDuplicates && !seenSlices.add(getIdentity(buffer))) {
+				context.getCounter(LungCounters.DUPLICATE_MERGED).increment(1);
+				continue;
+			}
+
 			sortedList.add(buffer);
 		}
 
+		if (manifest != null) {
+			addStoredSlices(inputKey, sortedList, seenSlices, context);
+		}
+
 		// sorted based on the Image Number attribute
 		Collections.sort(sortedList);
 
@@ -89,6 +168,74 @@ public class LungReducer
 				reducedValue);
 
 		/* Emits the structure */
-		context.write(seriesData, NullWritable.get());
+		if (manifest == null) {
+			context.write(seriesData, NullWritable.get());
+			return;
+		}
+
+		reducedSeries.add(inputKey.getSeriesInstanceUID());
+		if (!sortedList.isEmpty()) {
+			multipleOutputs.write(seriesData, NullWritable.get(),
+					IncrementalManifest.getSeriesOutputPath(inputKey
+							.getSeriesInstanceUID()));
+		}
+	}
+
+	/***
+	 * Adds the stored slices of the series whose files did not change. They
+	 * come after the new slices, so that it is the stored copy of a duplicate
+	 * that is dropped.
+	 * 
+	 * @param series
+	 * @param slices
+	 * @param seenSlices
+	 * @param context
+	 * @throws IOException
+	 */
+	private void addStoredSlices(KeyStructureWritable series,
+			ArrayList<ImageMetadata> slices, Set<Object> seenSlices,
+			Context context) throws IOException {
+		for (ManifestEntryWritable entry : manifest.getSeries(series
+				.getSeriesInstanceUID())) {
+			if (manifest.isRemoved(entry)) {
+				context.getCounter(LungCounters.MANIFEST_REMOVED).increment(1);
+				continue;
+			}
+
+			ImageMetadata slice = entry.getImageMetadata();
+			if (dropDuplicates && !seenSlices.add(getIdentity(slice))) {
+				context.getCounter(LungCounters.DUPLICATE_MERGED).increment(1);
+				continue;
+			}
+
+			slices.add(slice);
+			context.getCounter(LungCounters.SLICES_REPLAYED).increment(1);
+		}
+	}
+
+	/***
+	 * @return the partitioner of the job, to find the series of this task.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private static Partitioner<KeyStructureWritable, ImageMetadata> getPartitioner(
+			Context context) throws IOException {
+		try {
+			return (Partitioner<KeyStructureWritable, ImageMetadata>) ReflectionUtils
+					.newInstance(context.getPartitionerClass(),
+							context.getConfiguration());
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/***
+	 * @param slice
+	 * @return the SOPInstanceUID of the slice, or its content digest if it has
+	 *         none.
+	 */
+	private static Object getIdentity(ImageMetadata slice) {
+		return DuplicateFilter.getIdentity(slice.getSOPInstanceUID(),
+				slice.getContentDigest());
 	}
 }
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the removal of the border components and the hole filling of the
+ * {@link BorderFill}, with a single band and with the bands of a
+ * {@link TileScheduler}.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class BorderFillTest extends TestCase {
+
+	private ForkJoinPool pool;
+
+	@Override
+	protected void setUp() {
+		pool = new ForkJoinPool(8);
+	}
+
+	@Override
+	protected void tearDown() {
+		pool.shutdown();
+	}
+
+	public void testRemovesBorderComponents() {
+		assertFill(new String[] {
+				"##......",
+				"#...##..",
+				"....##..",
+				".......#",
+				".#.....#",
+				"........" }, new String[] {
+				"........",
+				"....##..",
+				"....##..",
+				"........",
+				".#......",
+				"........" });
+	}
+
+	public void testBorderComponentsAreEightConnected() {
+		/* The inner square touches the border component by a corner */
+		assertFill(new String[] {
+				"#.......",
+				".#......",
+				"..##....",
+				"..##..#.",
+				"........" }, new String[] {
+				"........",
+				"........",
+				"........",
+				"......#.",
+				"........" });
+	}
+
+	public void testFillsRingHoles() {
+		assertFill(new String[] {
+				"...........",
+				".#####.....",
+				".#...#.##..",
+				".#...#.#.#.",
+				".#####.##..",
+				"..........." }, new String[] {
+				"...........",
+				".#####.....",
+				".#####.##..",
+				".#####.###.",
+				".#####.##..",
+				"..........." });
+	}
+
+	public void testFillsHolesClosedByDiagonals() {
+		/* The background only leaves the hole through a diagonal gap */
+		assertFill(new String[] {
+				".......",
+				"..###..",
+				".#...#.",
+				".#...#.",
+				"..###..",
+				"......." }, new String[] {
+				".......",
+				"..###..",
+				".#####.",
+				".#####.",
+				"..###..",
+				"......." });
+	}
+
+	public void testKeepsOpenConcavities() {
+		assertFill(new String[] {
+				".......",
+				".#####.",
+				".#.....",
+				".#####.",
+				"......." }, new String[] {
+				".......",
+				".#####.",
+				".#.....",
+				".#####.",
+				"......." });
+	}
+
+	public void testBandsGiveSameOutput() {
+		Random random = new Random(7);
+
+		for (int parallelism = 2; parallelism <= 8; parallelism++) {
+			TileScheduler bands = new TileScheduler(new ForkJoinPool(
+					parallelism), 3);
+
+			try {
+				for (int trial = 0; trial < 5; trial++) {
+					int width = 30 + random.nextInt(100);
+					int height = 24 + random.nextInt(50);
+					BitMask mask = new BitMask(width, height);
+					double density = 0.2 + 0.15 * (trial % 4);
+					for (int y = 0; y < height; y++) {
+						for (int x = 0; x < width; x++) {
+							if (random.nextDouble() < density) {
+								mask.set(x, y);
+							}
+						}
+					}
+
+					BitMask expected = new BitMask(width, height);
+					new BorderFill().removeBorderComponents(mask, expected);
+
+					BitMask actual = new BitMask(width, height);
+					new BorderFill().removeBorderComponents(mask, actual,
+							bands);
+					assertSameMask(expected, actual);
+
+					/* Same on a shared pool with more bands */
+					new BorderFill().removeBorderComponents(mask, actual,
+							new TileScheduler(pool, 3));
+					assertSameMask(expected, actual);
+				}
+			} finally {
+				bands.shutdown();
+			}
+		}
+	}
+
+	public void testBandsFillHolesAcrossSeams() {
+		/* A tall ring whose hole spans every band */
+		String[] rows = new String[40];
+		String[] filled = new String[40];
+		rows[0] = filled[0] = "........";
+		rows[1] = filled[1] = ".######.";
+		for (int y = 2; y < 38; y++) {
+			rows[y] = ".#....#.";
+			filled[y] = ".######.";
+		}
+		rows[38] = filled[38] = ".######.";
+		rows[39] = filled[39] = "........";
+
+		TileScheduler bands = new TileScheduler(pool, 4);
+		assertTrue(bands.getBandCount(40) > 1);
+
+		BitMask output = new BitMask(8, 40);
+		new BorderFill().removeBorderComponents(parse(rows), output, bands);
+		assertSameMask(parse(filled), output);
+	}
+
+	private static void assertFill(String[] rows, String[] expected) {
+		BitMask output = new BitMask(rows[0].length(), rows.length);
+		new BorderFill().removeBorderComponents(parse(rows), output);
+		assertSameMask(parse(expected), output);
+	}
+
+	private static void assertSameMask(BitMask expected, BitMask actual) {
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				assertEquals("pixel " + x + "," + y, expected.get(x, y),
+						actual.get(x, y));
+			}
+		}
+	}
+
+	private static BitMask parse(String[] rows) {
+		BitMask mask = new BitMask(rows[0].length(), rows.length);
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < rows[y].length(); x++) {
+				if (rows[y].charAt(x) == '#') {
+					mask.set(x, y);
+				}
+			}
+		}
+		return mask;
+	}
+}
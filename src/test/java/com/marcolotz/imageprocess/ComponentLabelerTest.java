@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the 8-connected labeling of the {@link ComponentLabeler}, with a
+ * single band and with the bands of a {@link TileScheduler}.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ComponentLabelerTest extends TestCase {
+
+	private ForkJoinPool pool;
+
+	@Override
+	protected void setUp() {
+		pool = new ForkJoinPool(8);
+	}
+
+	@Override
+	protected void tearDown() {
+		pool.shutdown();
+	}
+
+	public void testDiagonalNeighboursAreConnected() {
+		String[] rows = { "#...#.", ".#.#..", "..#...", "......", "#.#..#",
+				"......" };
+		ComponentLabeler labeler = new ComponentLabeler();
+
+		List<ConnectedComponent> components = labeler.label(parse(rows),
+				rows[0].length(), rows.length);
+
+		/* The V is one component, the pixels of the last row are apart */
+		assertEquals(4, components.size());
+		assertEquals(4, labeler.getTotalCount());
+
+		ConnectedComponent v = components.get(0);
+		assertEquals(0, v.getX());
+		assertEquals(0, v.getY());
+		assertEquals(5, v.getWidth());
+		assertEquals(3, v.getHeight());
+		assertEquals(5, v.getPixelCount());
+
+		/* Raster order of the first pixel */
+		assertEquals(0, components.get(1).getX());
+		assertEquals(2, components.get(2).getX());
+		assertEquals(5, components.get(3).getX());
+		for (ConnectedComponent pixel : components.subList(1, 4)) {
+			assertEquals(4, pixel.getY());
+			assertEquals(1, pixel.getPixelCount());
+		}
+	}
+
+	public void testLabelImage() {
+		String[] rows = { "##..", "...#", "#..#" };
+		ComponentLabeler labeler = new ComponentLabeler();
+
+		List<ConnectedComponent> components = labeler.label(parse(rows), 4, 3);
+		assertEquals(3, components.size());
+
+		int[] labels = Arrays.copyOf(labeler.getLabels(), 12);
+		int first = components.get(0).getLabel();
+		int second = components.get(1).getLabel();
+		int third = components.get(2).getLabel();
+
+		assertTrue(first != 0 && second != 0 && third != 0);
+		assertTrue(first != second && second != third && first != third);
+		assertTrue(Arrays.equals(new int[] { first, first, 0, 0, 0, 0, 0,
+				second, third, 0, 0, second }, labels));
+	}
+
+	public void testSizeFilter() {
+		String[] rows = { "###..#", "###...", "###...", "......", "####..",
+				"......" };
+		ComponentLabeler labeler = new ComponentLabeler();
+
+		List<ConnectedComponent> components = labeler.label(parse(rows), 6,
+				6, 3, 3, TileScheduler.sequential());
+
+		assertEquals(3, labeler.getTotalCount());
+		assertEquals(1, components.size());
+		assertEquals(9, components.get(0).getPixelCount());
+
+		/* The filtered components are not labeled */
+		int[] labels = labeler.getLabels();
+		assertEquals(0, labels[5]);
+		assertEquals(0, labels[4 * 6]);
+	}
+
+	public void testBandsGiveSameComponents() {
+		Random random = new Random(42);
+		TileScheduler bands = new TileScheduler(pool, 3);
+
+		for (int parallelism = 2; parallelism <= 8; parallelism++) {
+			TileScheduler limited = new TileScheduler(new ForkJoinPool(
+					parallelism), 3);
+
+			try {
+				for (int trial = 0; trial < 5; trial++) {
+					int width = 17 + random.nextInt(50);
+					int height = 24 + random.nextInt(50);
+					byte[] mask = getRandomMask(random, width, height,
+							0.3 + 0.1 * (trial % 3));
+
+					assertSameLabeling(mask, width, height, 0, 0, bands);
+					assertSameLabeling(mask, width, height, 0, 0, limited);
+					assertSameLabeling(mask, width, height, 3, 2, limited);
+				}
+			} finally {
+				limited.shutdown();
+			}
+		}
+	}
+
+	public void testBandsJoinAcrossSeams() {
+		/* A diagonal and a vertical line crossing every seam */
+		int width = 40;
+		int height = 40;
+		byte[] mask = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			mask[y * width + y] = 1;
+			mask[y * width + 30] = 1;
+		}
+
+		TileScheduler bands = new TileScheduler(pool, 4);
+		assertTrue(bands.getBandCount(height) > 1);
+
+		List<ConnectedComponent> components = assertSameLabeling(mask, width,
+				height, 0, 0, bands);
+		assertEquals(1, components.size());
+		assertEquals(80 - 1, components.get(0).getPixelCount());
+	}
+
+	/***
+	 * Labels the mask with a single band and with the bands of the
+	 * scheduler, and checks that the results are the same.
+	 * 
+	 * @return the components found with the bands
+	 */
+	private static List<ConnectedComponent> assertSameLabeling(byte[] mask,
+			int width, int height, int minimumWidth, int minimumHeight,
+			TileScheduler scheduler) {
+		ComponentLabeler single = new ComponentLabeler();
+		List<ConnectedComponent> expected = single.label(mask, width, height,
+				minimumWidth, minimumHeight, TileScheduler.sequential());
+
+		ComponentLabeler banded = new ComponentLabeler();
+		List<ConnectedComponent> actual = banded.label(mask, width, height,
+				minimumWidth, minimumHeight, scheduler);
+
+		assertEquals(single.getTotalCount(), banded.getTotalCount());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSameComponent(expected.get(i), actual.get(i));
+		}
+
+		assertTrue(Arrays.equals(
+				Arrays.copyOf(single.getLabels(), width * height),
+				Arrays.copyOf(banded.getLabels(), width * height)));
+
+		return actual;
+	}
+
+	private static void assertSameComponent(ConnectedComponent expected,
+			ConnectedComponent actual) {
+		assertEquals(expected.getLabel(), actual.getLabel());
+		assertEquals(expected.getX(), actual.getX());
+		assertEquals(expected.getY(), actual.getY());
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		assertEquals(expected.getPixelCount(), actual.getPixelCount());
+		assertEquals(expected.getCentroidX(), actual.getCentroidX(), 1e-9);
+		assertEquals(expected.getCentroidY(), actual.getCentroidY(), 1e-9);
+		assertEquals(expected.getEnclosedArea(), actual.getEnclosedArea(),
+				1e-9);
+		assertEquals(expected.getPerimeter(), actual.getPerimeter(), 1e-9);
+	}
+
+	private static byte[] getRandomMask(Random random, int width, int height,
+			double density) {
+		byte[] mask = new byte[width * height];
+		for (int i = 0; i < mask.length; i++) {
+			mask[i] = (byte) (random.nextDouble() < density ? 1 : 0);
+		}
+		return mask;
+	}
+
+	/***
+	 * @param rows
+	 *            of the mask, with '#' for the pixels set
+	 * @return the mask, a byte per pixel
+	 */
+	static byte[] parse(String... rows) {
+		int width = rows[0].length();
+		byte[] mask = new byte[width * rows.length];
+
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < width; x++) {
+				if (rows[y].charAt(x) == '#') {
+					mask[y * width + x] = 1;
+				}
+			}
+		}
+		return mask;
+	}
+}
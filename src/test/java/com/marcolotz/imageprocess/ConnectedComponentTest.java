@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the enclosed area and the perimeter of the components measured by
+ * the {@link ComponentLabeler}: the polygon that joins the centres of the
+ * border pixels, with straight steps of 0.948 and diagonal steps of 1.34.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ConnectedComponentTest extends TestCase {
+
+	private static final double delta = 1e-9;
+
+	public void testSinglePixel() {
+		ConnectedComponent pixel = getSingleComponent(".....", "..#..",
+				".....");
+
+		assertEquals(1, pixel.getPixelCount());
+		assertEquals(0, pixel.getEnclosedArea(), delta);
+		assertEquals(1, pixel.getPerimeter(), delta);
+	}
+
+	public void testRectangle() {
+		ConnectedComponent rectangle = getSingleComponent("......",
+				".####.", ".####.", ".####.", "......");
+
+		assertEquals(12, rectangle.getPixelCount());
+		assertEquals(3 * 2, rectangle.getEnclosedArea(), delta);
+		assertEquals(10 * 0.948, rectangle.getPerimeter(), delta);
+		assertEquals(2.5, rectangle.getCentroidX(), delta);
+		assertEquals(2, rectangle.getCentroidY(), delta);
+	}
+
+	public void testLine() {
+		ConnectedComponent line = getSingleComponent("#####");
+
+		assertEquals(0, line.getEnclosedArea(), delta);
+		assertEquals(8 * 0.948, line.getPerimeter(), delta);
+	}
+
+	public void testRingWithPixelHole() {
+		ConnectedComponent ring = getSingleComponent(".......", ".#####.",
+				".#####.", ".##.##.", ".#####.", ".#####.", ".......");
+
+		/* The hole border is the diamond through its four neighbours */
+		assertEquals(24, ring.getPixelCount());
+		assertEquals(4 * 4 - 2, ring.getEnclosedArea(), delta);
+		assertEquals(16 * 0.948 + 4 * 1.34, ring.getPerimeter(), delta);
+	}
+
+	public void testRingWithLargeHole() {
+		ConnectedComponent ring = getSingleComponent(".......", ".#####.",
+				".#...#.", ".#...#.", ".#...#.", ".#####.", ".......");
+
+		/* The hole border cuts the corners of the ring */
+		assertEquals(16, ring.getPixelCount());
+		assertEquals(4 * 4 - (4 * 4 - 4 * 0.5), ring.getEnclosedArea(), delta);
+		assertEquals((16 + 8) * 0.948 + 4 * 1.34, ring.getPerimeter(), delta);
+	}
+
+	public void testDiagonalLine() {
+		ConnectedComponent diagonal = getSingleComponent("#....", ".#...",
+				"..#..");
+
+		assertEquals(0, diagonal.getEnclosedArea(), delta);
+		assertEquals(4 * 1.34, diagonal.getPerimeter(), delta);
+
+		ConnectedComponent antiDiagonal = getSingleComponent("....#",
+				"...#.", "..#..");
+
+		assertEquals(0, antiDiagonal.getEnclosedArea(), delta);
+		assertEquals(4 * 1.34, antiDiagonal.getPerimeter(), delta);
+	}
+
+	public void testTouchesBorder() {
+		ConnectedComponent inner = getSingleComponent("....", ".##.",
+				"....");
+		assertFalse(inner.touchesBorder(4, 3));
+
+		ConnectedComponent corner = getSingleComponent("...", "...", "..#");
+		assertTrue(corner.touchesBorder(3, 3));
+	}
+
+	private static ConnectedComponent getSingleComponent(String... rows) {
+		int width = rows[0].length();
+		byte[] mask = ComponentLabelerTest.parse(rows);
+
+		List<ConnectedComponent> components = new ComponentLabeler().label(
+				mask, width, rows.length);
+		assertEquals(1, components.size());
+		return components.get(0);
+	}
+}
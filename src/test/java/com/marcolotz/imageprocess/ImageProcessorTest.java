@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.imageprocess;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Tests that a failed run of the {@link ImageProcessor} leaves no results of
+ * the previous slice.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class ImageProcessorTest extends TestCase {
+
+	/***
+	 * Lung extractor that fails on demand.
+	 */
+	public static class FailingLung extends TresholdLung {
+		static volatile boolean failing = false;
+
+		@Override
+		protected Slice process(Slice input, ProcessingContext context) {
+			if (failing) {
+				throw new IllegalStateException("Lung extraction failed");
+			}
+			return super.process(input, context);
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		FailingLung.failing = false;
+	}
+
+	public void testFailedRunClearsResults() {
+		ImageProcessor processor = new ImageProcessor(NullPreProcessor.class,
+				FailingLung.class, GrayNoduleCandidates.class,
+				new Configuration(false));
+
+		processor.setInput(getPhantom(256, 256));
+		processor.run();
+		assertFalse(processor.getNodeCandidates().isEmpty());
+		assertNotNull(processor.getNodeCandidatesSlice());
+
+		FailingLung.failing = true;
+		processor.setInput(getPhantom(256, 256));
+		try {
+			processor.run();
+			fail("The failure of the stage was not thrown");
+		} catch (IllegalStateException e) {
+			assertEquals("Lung extraction failed", e.getMessage());
+		}
+
+		assertTrue(processor.getNodeCandidates().isEmpty());
+		assertNull(processor.getLungExtractedSlice());
+		assertNull(processor.getNodeCandidatesSlice());
+	}
+
+	/***
+	 * @return a slice with a body, two lungs and four nodules, in the stored
+	 *         values of the legacy Hounsfield table.
+	 */
+	private static Slice getPhantom(int width, int height) {
+		Random random = new Random(1);
+		short[] pixels = new short[width * height];
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double bx = (x - width / 2.0) / (width * 0.42);
+				double by = (y - height / 2.0) / (height * 0.32);
+
+				/* Air, body and lungs */
+				int value = 24 + random.nextInt(20);
+				if (bx * bx + by * by < 1) {
+					value = 1040 + random.nextInt(40);
+					for (int side = -1; side <= 1; side += 2) {
+						double lx = (x - width / 2.0 - side * width * 0.18)
+								/ (width * 0.13);
+						double ly = (y - height / 2.0) / (height * 0.22);
+						if (lx * lx + ly * ly < 1) {
+							value = 180 + random.nextInt(60);
+						}
+					}
+				}
+				pixels[y * width + x] = (short) value;
+			}
+		}
+
+		int[][] nodules = { { (int) (width * 0.3), (int) (height * 0.45), 6 },
+				{ (int) (width * 0.7), (int) (height * 0.55), 8 },
+				{ (int) (width * 0.32), (int) (height * 0.6), 2 },
+				{ (int) (width * 0.68), (int) (height * 0.4), 5 } };
+		for (int[] nodule : nodules) {
+			int radius = nodule[2];
+			for (int y = -radius; y <= radius; y++) {
+				for (int x = -radius; x <= radius; x++) {
+					if (x * x + y * y <= radius * radius) {
+						pixels[(nodule[1] + y) * width + nodule[0] + x] = (short) (990 + random
+								.nextInt(40));
+					}
+				}
+			}
+		}
+
+		return new Slice(width, height, pixels);
+	}
+}
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MRComponents;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+import com.marcolotz.lung.mapreduce.MapperComponents.DuplicateFilter;
+import com.marcolotz.lung.mapreduce.MapperComponents.ImageMetadata;
+
+/**
+ * Tests a round trip of the incremental mode on the local file system: the
+ * plan, the outputs written by the mappers and the reducers, and the
+ * publishing of the series and of the manifest.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class IncrementalManifestTest extends TestCase {
+
+	/* SeriesInstanceUIDs as parsed, with the leading space of the info */
+	private static final String firstSeries = " 1.2.840.1";
+	private static final String secondSeries = " 1.2.840.2";
+
+	private Configuration conf;
+	private FileSystem fs;
+	private Path base;
+
+	/* Series of each input file */
+	private final Map<String, String> seriesOf = new HashMap<String, String>();
+
+	@Override
+	protected void setUp() throws IOException {
+		conf = new Configuration();
+		fs = FileSystem.getLocal(conf);
+		base = new Path(new File(System.getProperty("java.io.tmpdir"),
+				"IncrementalManifestTest").getAbsolutePath());
+		fs.delete(base, true);
+
+		conf.setBoolean("com.marcolotz.incremental.enabled", true);
+		conf.set("com.marcolotz.incremental.manifestPath", new Path(base,
+				"manifest").toString());
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		fs.delete(base, true);
+	}
+
+	public void testSeriesOutputName() {
+		assertEquals("series-1.2.840.1",
+				IncrementalManifest.getSeriesOutputName(firstSeries));
+		assertEquals("series-1.2.840.1/part",
+				IncrementalManifest.getSeriesOutputPath(firstSeries));
+		assertEquals("series-1.2_3",
+				IncrementalManifest.getSeriesOutputName("1.2 3"));
+	}
+
+	public void testRoundTrip() throws IOException {
+		write("a", firstSeries, "aaaa");
+		write("b", firstSeries, "bbbbbb");
+		write("c", secondSeries, "cc");
+
+		assertEquals(3, runJob());
+		assertEquals(2, countSlices(firstSeries));
+		assertEquals(1, countSlices(secondSeries));
+		assertEquals(3, countManifest());
+
+		/* Nothing changed: nothing is read and the output is kept */
+		assertEquals(0, runJob());
+		assertEquals(2, countSlices(firstSeries));
+		assertEquals(1, countSlices(secondSeries));
+		assertEquals(3, countManifest());
+
+		/* The only slice of the second series is removed */
+		fs.delete(new Path(base, "in/c"), false);
+		assertEquals(0, runJob());
+		assertEquals(2, countSlices(firstSeries));
+		assertFalse(fs.exists(new Path(outputDir(),
+				IncrementalManifest.getSeriesOutputName(secondSeries))));
+		assertEquals(2, countManifest());
+
+		/* A slice is added to the first series */
+		write("d", firstSeries, "dddd");
+		assertEquals(1, runJob());
+		assertEquals(3, countSlices(firstSeries));
+		assertEquals(3, countManifest());
+	}
+
+	private Path outputDir() {
+		return new Path(base, "out");
+	}
+
+	private void write(String name, String series, String content)
+			throws IOException {
+		FSDataOutputStream out = fs.create(new Path(base, "in/" + name), true);
+		out.writeBytes(content);
+		out.close();
+		seriesOf.put(name, series);
+	}
+
+	/***
+	 * Plans the input, writes what the mappers and the reducers of the job
+	 * would write, and publishes it.
+	 * 
+	 * @return the number of files read by the job.
+	 */
+	private int runJob() throws IOException {
+		IncrementalManifest manifest = IncrementalManifest.load(conf);
+		List<FileStatus> listing = new ArrayList<FileStatus>();
+		for (FileStatus file : fs.listStatus(new Path(base, "in"))) {
+			listing.add(file);
+		}
+		List<FileStatus> toRead = manifest.plan(conf, listing);
+
+		Path jobOutputDir = new Path(base, "out.incremental");
+		fs.mkdirs(jobOutputDir);
+
+		ManifestReader reader = new ManifestReader(conf);
+		Set<String> reducedSeries = new HashSet<String>();
+		SequenceFile.Writer mapperOutput = SequenceFile.createWriter(conf,
+				SequenceFile.Writer.file(new Path(jobOutputDir,
+						IncrementalManifest.namedOutput + "-m-00000")),
+				SequenceFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(ManifestEntryWritable.class));
+		try {
+			for (FileStatus file : toRead) {
+				String name = file.getPath().getName();
+				ManifestEntryWritable listed = reader.getListedFile(file
+						.getPath().toString());
+				assertNotNull(listed);
+
+				ImageMetadata slice = new ImageMetadata();
+				slice.setContentDigest(name);
+				ManifestEntryWritable entry = new ManifestEntryWritable(file
+						.getPath().toString(), listed.getLength(),
+						listed.getModificationTime(), name,
+						getKeyStructure(seriesOf.get(name)), slice);
+				mapperOutput.append(new Text(entry.getKey()), entry);
+				reducedSeries.add(seriesOf.get(name));
+			}
+		} finally {
+			mapperOutput.close();
+		}
+
+		for (KeyStructureWritable series : reader.getRemovedSeries()) {
+			reducedSeries.add(series.getSeriesInstanceUID());
+		}
+
+		/* One line per slice in the output of each reduced series */
+		for (String series : reducedSeries) {
+			StringBuilder slices = new StringBuilder();
+			for (ManifestEntryWritable entry : reader.getSeries(series)) {
+				if (!reader.isRemoved(entry)) {
+					slices.append(entry.getPath()).append('\n');
+				}
+			}
+			for (FileStatus file : toRead) {
+				if (seriesOf.get(file.getPath().getName()).equals(series)) {
+					slices.append(file.getPath()).append('\n');
+				}
+			}
+
+			if (slices.length() > 0) {
+				FSDataOutputStream out = fs.create(new Path(jobOutputDir,
+						IncrementalManifest.getSeriesOutputPath(series)
+								+ "-r-00000"));
+				out.writeBytes(slices.toString());
+				out.close();
+			}
+		}
+		reader.close();
+
+		IncrementalManifest.publish(conf, jobOutputDir, outputDir());
+		assertFalse(fs.exists(jobOutputDir));
+		return toRead.size();
+	}
+
+	private static KeyStructureWritable getKeyStructure(String series) {
+		DicomHeader header = new DicomHeader();
+		header.putTag(DICOMTags.SeriesInstanceUID, series);
+		return new KeyStructureWritable(header);
+	}
+
+	/***
+	 * @return the number of slices in the published output of the series.
+	 */
+	private int countSlices(String series) throws IOException {
+		Path part = new Path(outputDir(),
+				IncrementalManifest.getSeriesOutputName(series)
+						+ "/part-r-00000");
+		assertTrue(part + " is missing", fs.exists(part));
+
+		byte[] content = new byte[(int) fs.getFileStatus(part).getLen()];
+		FSDataInputStream in = fs.open(part);
+		try {
+			IOUtils.readFully(in, content, 0, content.length);
+		} finally {
+			in.close();
+		}
+		return new String(content, "US-ASCII").split("\n").length;
+	}
+
+	/***
+	 * @return the number of entries of the published manifest.
+	 */
+	private int countManifest() throws IOException {
+		MapFile.Reader reader = new MapFile.Reader(
+				IncrementalManifest.getManifestPath(conf), conf);
+		try {
+			Text key = new Text();
+			ManifestEntryWritable entry = new ManifestEntryWritable();
+			int count = 0;
+			while (reader.next(key, entry)) {
+				count++;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.MapperComponents;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+import com.marcolotz.lung.mapreduce.MRComponents.LungCounters;
+
+/**
+ * Tests the {@link DuplicateFilter} on slices with and without a
+ * SOPInstanceUID.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class DuplicateFilterTest extends TestCase {
+
+	private DuplicateFilter filter;
+
+	@Override
+	protected void setUp() {
+		Configuration conf = new Configuration(false);
+		conf.setBoolean("com.marcolotz.dedup.enabled", true);
+		filter = new DuplicateFilter(conf);
+	}
+
+	public void testDisabledByDefault() {
+		assertFalse(DuplicateFilter.isEnabled(new Configuration(false)));
+	}
+
+	public void testSameInstance() {
+		DicomHeader header = getHeader(" 1.2.3.4");
+		assertFalse(DuplicateFilter.isIdentifiedByContent(header));
+
+		assertNull(filter.check(header, null, getChecksum("slice")));
+		assertEquals(LungCounters.DUPLICATE_CONTENT,
+				filter.check(header, null, getChecksum("slice")));
+		assertEquals(LungCounters.DUPLICATE_INSTANCE,
+				filter.check(header, null, getChecksum("re-export")));
+
+		/* Another instance with the same content is kept */
+		assertNull(filter.check(getHeader("1.2.3.5"), null,
+				getChecksum("slice")));
+	}
+
+	public void testWithoutInstanceUID() {
+		DicomHeader header = getHeader(null);
+		assertTrue(DuplicateFilter.isIdentifiedByContent(header));
+
+		assertNull(filter.check(header, getDigest("slice"), 0));
+		assertEquals(LungCounters.DUPLICATE_CONTENT,
+				filter.check(header, getDigest("slice"), 0));
+		assertNull(filter.check(header, getDigest("other slice"), 0));
+	}
+
+	public void testIdentity() {
+		assertEquals("1.2.3.4", DuplicateFilter.getIdentity(" 1.2.3.4", "d"));
+		assertEquals("d", DuplicateFilter.getIdentity(null, "d"));
+		assertEquals("d", DuplicateFilter.getIdentity("null", "d"));
+	}
+
+	private static DicomHeader getHeader(String sopInstanceUID) {
+		DicomHeader header = new DicomHeader();
+		if (sopInstanceUID != null) {
+			header.putTag(DICOMTags.SOPInstanceUID, sopInstanceUID);
+		}
+		return header;
+	}
+
+	private static long getChecksum(String content) {
+		byte[] bytes = content.getBytes(StandardCharsets.US_ASCII);
+		return DuplicateFilter.getChecksum(bytes, bytes.length);
+	}
+
+	private static String getDigest(String content) {
+		byte[] bytes = content.getBytes(StandardCharsets.US_ASCII);
+		return DuplicateFilter.getContentDigest(
+				DuplicateFilter.createDigest(), bytes, bytes.length);
+	}
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.marcolotz.lung.mapreduce.MRComponents.DICOMTags;
+import com.marcolotz.lung.mapreduce.MRComponents.DicomHeader;
+
+/**
+ * Tests the {@link DicomHeaderParser} on headers written byte by byte, in the
+ * supported transfer syntaxes.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class DicomHeaderParserTest extends TestCase {
+
+	private static final String implicitLittleEndian = "1.2.840.10008.1.2";
+	private static final String explicitLittleEndian = "1.2.840.10008.1.2.1";
+	private static final String explicitBigEndian = "1.2.840.10008.1.2.2";
+
+	private static final int groupLength = 0x00020000;
+
+	/***
+	 * Writes the data elements of a test file.
+	 */
+	private static class DicomWriter {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private boolean explicitVR = true;
+		private boolean bigEndian = false;
+
+		void preamble() throws IOException {
+			out.write(new byte[128]);
+			out.write("DICM".getBytes(StandardCharsets.US_ASCII));
+		}
+
+		/***
+		 * Meta information group, explicit VR little endian.
+		 */
+		void metaGroup(String transferSyntax) throws IOException {
+			DicomWriter group = new DicomWriter();
+			group.text(DICOMTags.TransferSyntaxUID, "UI", transferSyntax);
+
+			ul(groupLength, group.out.size());
+			out.write(group.out.toByteArray());
+		}
+
+		void dataset(boolean explicitVR, boolean bigEndian) {
+			this.explicitVR = explicitVR;
+			this.bigEndian = bigEndian;
+		}
+
+		void text(int tag, String vr, String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+			if (bytes.length % 2 != 0) {
+				bytes = Arrays.copyOf(bytes, bytes.length + 1);
+				bytes[bytes.length - 1] = (byte) (vr.equals("UI") ? 0 : ' ');
+			}
+			element(tag, vr, bytes);
+		}
+
+		void us(int tag, int value) throws IOException {
+			element(tag, "US", shortBytes(value));
+		}
+
+		void ul(int tag, long value) throws IOException {
+			byte[] low = shortBytes((int) (value & 0xFFFF));
+			byte[] high = shortBytes((int) (value >>> 16));
+			element(tag, "UL", bigEndian ? concat(high, low) : concat(low,
+					high));
+		}
+
+		/***
+		 * Header of the pixel data element, without the pixels.
+		 */
+		void pixelData(long length) throws IOException {
+			header(DICOMTags.PixelData, "OW", length);
+		}
+
+		void element(int tag, String vr, byte[] value) throws IOException {
+			header(tag, vr, value.length);
+			out.write(value);
+		}
+
+		private void header(int tag, String vr, long length)
+				throws IOException {
+			out.write(shortBytes(tag >>> 16));
+			out.write(shortBytes(tag & 0xFFFF));
+
+			if (!explicitVR) {
+				writeInt(length);
+				return;
+			}
+
+			out.write(vr.getBytes(StandardCharsets.US_ASCII));
+			if (vr.equals("OB") || vr.equals("OW") || vr.equals("SQ")) {
+				out.write(new byte[2]);
+				writeInt(length);
+			} else {
+				out.write(shortBytes((int) length));
+			}
+		}
+
+		private void writeInt(long value) throws IOException {
+			byte[] low = shortBytes((int) (value & 0xFFFF));
+			byte[] high = shortBytes((int) (value >>> 16));
+			out.write(bigEndian ? concat(high, low) : concat(low, high));
+		}
+
+		private byte[] shortBytes(int value) {
+			byte b0 = (byte) (value & 0xFF);
+			byte b1 = (byte) ((value >>> 8) & 0xFF);
+			return bigEndian ? new byte[] { b1, b0 } : new byte[] { b0, b1 };
+		}
+
+		private static byte[] concat(byte[] a, byte[] b) {
+			byte[] result = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, result, a.length, b.length);
+			return result;
+		}
+
+		int size() {
+			return out.size();
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	/***
+	 * Writes a Part 10 file with the usual image description tags.
+	 * 
+	 * @return the writer, just after the pixel data element header
+	 */
+	private static DicomWriter writeFile(String transferSyntax,
+			boolean explicitVR, boolean bigEndian) throws IOException {
+		DicomWriter writer = new DicomWriter();
+		writer.preamble();
+		writer.metaGroup(transferSyntax);
+
+		writer.dataset(explicitVR, bigEndian);
+		writer.text(DICOMTags.SOPInstanceUID, "UI", "1.2.3.4.5");
+		writer.text(DICOMTags.Modality, "CS", "CT");
+		writer.us(DICOMTags.Rows, 512);
+		writer.us(DICOMTags.Columns, 256);
+		writer.pixelData(512 * 256 * 2);
+		return writer;
+	}
+
+	private static DicomHeader parse(DicomHeaderParser parser, byte[] file)
+			throws IOException {
+		return parser.parse(new ByteArrayInputStream(file));
+	}
+
+	private static void assertImageTags(DicomHeader header) {
+		assertEquals("1.2.3.4.5", header.getTag(DICOMTags.SOPInstanceUID)
+				.trim());
+		assertEquals("CT", header.getTag(DICOMTags.Modality).trim());
+		assertEquals(512, header.getInt(DICOMTags.Rows, -1));
+		assertEquals(256, header.getInt(DICOMTags.Columns, -1));
+		assertEquals(512 * 256 * 2, header.getPixelDataLength());
+	}
+
+	public void testImplicitVRLittleEndian() throws IOException {
+		DicomWriter writer = writeFile(implicitLittleEndian, false, false);
+		DicomHeaderParser parser = new DicomHeaderParser();
+
+		DicomHeader header = parse(parser, writer.toByteArray());
+
+		assertImageTags(header);
+		assertFalse(parser.isExplicitVR());
+		assertFalse(parser.isBigEndian());
+		assertEquals(writer.size(), header.getPixelDataOffset());
+		assertEquals(writer.size(), parser.getPosition());
+	}
+
+	public void testExplicitVRLittleEndian() throws IOException {
+		DicomWriter writer = writeFile(explicitLittleEndian, true, false);
+		DicomHeaderParser parser = new DicomHeaderParser();
+
+		DicomHeader header = parse(parser, writer.toByteArray());
+
+		assertImageTags(header);
+		assertTrue(parser.isExplicitVR());
+		assertFalse(parser.isBigEndian());
+		assertEquals(writer.size(), header.getPixelDataOffset());
+	}
+
+	public void testExplicitVRBigEndian() throws IOException {
+		DicomWriter writer = writeFile(explicitBigEndian, true, true);
+		DicomHeaderParser parser = new DicomHeaderParser();
+
+		DicomHeader header = parse(parser, writer.toByteArray());
+
+		assertImageTags(header);
+		assertTrue(parser.isExplicitVR());
+		assertTrue(parser.isBigEndian());
+		assertEquals(writer.size(), header.getPixelDataOffset());
+	}
+
+	/***
+	 * Files without the preamble are read as implicit VR little endian.
+	 */
+	public void testHeaderlessFile() throws IOException {
+		DicomWriter writer = new DicomWriter();
+		writer.dataset(false, false);
+		writer.text(DICOMTags.SOPInstanceUID, "UI", "1.2.3.4.5");
+		writer.text(DICOMTags.Modality, "CS", "CT");
+		writer.us(DICOMTags.Rows, 512);
+		writer.us(DICOMTags.Columns, 256);
+		writer.pixelData(512 * 256 * 2);
+
+		DicomHeaderParser parser = new DicomHeaderParser();
+		assertImageTags(parse(parser, writer.toByteArray()));
+		assertEquals(4, parser.getElementCount());
+	}
+
+	/***
+	 * A file cut in the middle of an element keeps the elements before it.
+	 */
+	public void testTruncatedHeader() throws IOException {
+		byte[] file = writeFile(explicitLittleEndian, true, false)
+				.toByteArray();
+
+		DicomWriter beforeRows = new DicomWriter();
+		beforeRows.preamble();
+		beforeRows.metaGroup(explicitLittleEndian);
+		beforeRows.text(DICOMTags.SOPInstanceUID, "UI", "1.2.3.4.5");
+		beforeRows.text(DICOMTags.Modality, "CS", "CT");
+
+		/* Cut in the middle of the value of Rows */
+		byte[] truncated = Arrays.copyOf(file, beforeRows.size() + 9);
+
+		DicomHeaderParser parser = new DicomHeaderParser();
+		DicomHeader header = parse(parser, truncated);
+
+		assertEquals("CT", header.getTag(DICOMTags.Modality).trim());
+		assertNull(header.getTag(DICOMTags.Rows));
+		assertEquals(-1, parser.getPixelDataElementOffset());
+	}
+
+	/***
+	 * A group length that is not a number is ignored: the meta information
+	 * group ends with its last element.
+	 */
+	public void testMalformedGroupLength() throws IOException {
+		DicomWriter writer = new DicomWriter();
+		writer.preamble();
+		writer.element(groupLength, "UL", new byte[0]);
+		writer.text(DICOMTags.TransferSyntaxUID, "UI", explicitBigEndian);
+
+		writer.dataset(true, true);
+		writer.text(DICOMTags.SOPInstanceUID, "UI", "1.2.3.4.5");
+		writer.text(DICOMTags.Modality, "CS", "CT");
+		writer.us(DICOMTags.Rows, 512);
+		writer.us(DICOMTags.Columns, 256);
+		writer.pixelData(512 * 256 * 2);
+
+		DicomHeaderParser parser = new DicomHeaderParser();
+		assertImageTags(parse(parser, writer.toByteArray()));
+		assertTrue(parser.isBigEndian());
+	}
+}
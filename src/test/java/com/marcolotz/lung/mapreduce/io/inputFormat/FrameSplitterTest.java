@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2002-2016 "Marco Aurelio Barbosa Fagnani Gomes Lotz"
+ * [http://www.marcolotz.com]
+ *
+ * This file is part of Marco Lotz Hadoop Lung solution.
+ *
+ * Hadoop Lung is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package com.marcolotz.lung.mapreduce.io.inputFormat;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the SOPInstanceUIDs given to the frames by the {@link FrameSplitter}.
+ * 
+ * @author Marco Aurelio Lotz
+ * 
+ */
+public class FrameSplitterTest extends TestCase {
+
+	public void testFrameNumberSuffix() {
+		assertEquals("1.2.840.10008.9.1",
+				FrameSplitter.getFrameInstanceUID("1.2.840.10008.9", 0));
+		assertEquals("1.2.840.10008.9.12",
+				FrameSplitter.getFrameInstanceUID("1.2.840.10008.9", 11));
+	}
+
+	public void testLongUIDFallback() {
+		/* 62 characters: the suffix of the tenth frame makes 65 */
+		String instanceUID = "1.2.826.0.1.3680043.8.498.1234567890123456789012345678901234.6";
+		assertEquals(62, instanceUID.length());
+
+		assertEquals(instanceUID + ".9",
+				FrameSplitter.getFrameInstanceUID(instanceUID, 8));
+
+		String frameUID = FrameSplitter.getFrameInstanceUID(instanceUID, 9);
+		assertTrue(frameUID, frameUID.startsWith("2.25."));
+		assertTrue(frameUID, frameUID.length() <= 64);
+		assertTrue(frameUID, frameUID.substring(5).matches("[1-9][0-9]*"));
+
+		/* The same on every run, and distinct per frame */
+		assertEquals(frameUID,
+				FrameSplitter.getFrameInstanceUID(instanceUID, 9));
+		assertFalse(frameUID.equals(FrameSplitter.getFrameInstanceUID(
+				instanceUID, 10)));
+	}
+}